@@ -0,0 +1,152 @@
+package com.androidev.download;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compares the engine modes by downloading the same contents from a LocalHttpServer,
+ * call it on a background thread, the tasks and their files are deleted afterwards
+ */
+class DownloadBenchmark {
+
+    private static final long BASE_ID = Long.MAX_VALUE / 2;  // far from the ids of the app
+    private static final long TIMEOUT = 5 * 60 * 1000;
+    private static final long THREAD_SAMPLE_INTERVAL = 20;
+
+    static class Result {
+
+        int engineMode;
+        int taskCount;
+        int failedCount;
+        long millis;
+        int peakThreads;  // live threads of the process while downloading
+
+        @Override
+        public String toString() {
+            String mode = engineMode == DownloadManager.ENGINE_MODE_SELECTOR ? "selector" : "thread";
+            return String.format(Locale.US, "%s: %d tasks, %d failed, %d ms, %d threads at most",
+                    mode, taskCount, failedCount, millis, peakThreads);
+        }
+    }
+
+    private final int taskCount;
+    private final int contentLength;
+    private final long latency;
+    private final int concurrency;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param taskCount     tasks downloaded in every mode
+     * @param contentLength bytes of every task
+     * @param latency       milliseconds before every response of the server
+     * @param concurrency   tasks downloading at the same time
+     */
+    DownloadBenchmark(int taskCount, int contentLength, long latency, int concurrency) {
+        this.taskCount = taskCount;
+        this.contentLength = contentLength;
+        this.latency = latency;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return results of ENGINE_MODE_THREAD and ENGINE_MODE_SELECTOR, the settings of the engine are restored
+     */
+    List<Result> run() throws IOException, InterruptedException {
+        DownloadManager manager = DownloadManager.getInstance();
+        DownloadEngine engine = manager.getEngine();
+        Assert.assertNotNull(engine);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("benchmark can't run on the main thread!");
+        }
+        int engineMode = engine.engineMode;
+        int minTask = engine.concurrency.getMinLimit();
+        int maxTask = engine.concurrency.getMaxLimit();
+        LocalHttpServer server = new LocalHttpServer();
+        server.setLatency(latency);
+        byte[] content = new byte[contentLength];
+        new Random(contentLength).nextBytes(content);
+        for (int i = 0; i < taskCount; i++) {
+            server.put("/benchmark/" + i, content);
+        }
+        List<Result> results = new ArrayList<>();
+        try {
+            manager.setConcurrencyBounds(concurrency, concurrency);
+            results.add(run(manager, server, DownloadManager.ENGINE_MODE_THREAD));
+            results.add(run(manager, server, DownloadManager.ENGINE_MODE_SELECTOR));
+        } finally {
+            manager.setEngineMode(engineMode);
+            manager.setConcurrencyBounds(minTask, maxTask);
+            server.shutdown();
+        }
+        return results;
+    }
+
+    private Result run(final DownloadManager manager, final LocalHttpServer server, final int engineMode) throws InterruptedException {
+        manager.setEngineMode(engineMode);
+        final Result result = new Result();
+        result.engineMode = engineMode;
+        result.taskCount = taskCount;
+        final CountDownLatch latch = new CountDownLatch(taskCount);
+        final Set<String> completed = new HashSet<>();
+        final DownloadListener listener = new DownloadListener() {
+            @Override
+            public void onStateChanged(String key, int state) {
+                if (state != DownloadState.STATE_FINISHED && state != DownloadState.STATE_FAILED) return;
+                if (!completed.add(key)) return;
+                if (state == DownloadState.STATE_FAILED) result.failedCount++;
+                latch.countDown();
+            }
+
+            @Override
+            public void onProgressChanged(String key, long finishedLength, long contentLength) {
+            }
+        };
+        final List<DownloadTask> tasks = new ArrayList<>();
+        long start = SystemClock.elapsedRealtime();
+        handler.post(new Runnable() {  // the engine is used on the main thread
+            @Override
+            public void run() {
+                for (int i = 0; i < taskCount; i++) {
+                    long id = BASE_ID + engineMode * taskCount + i;
+                    DownloadTask task = manager.newTask(id, server.url("/benchmark/" + i), "benchmark-" + id + ".bin")
+                            .listener(listener).create();
+                    tasks.add(task);
+                    task.start();
+                }
+            }
+        });
+        int peakThreads = 0;
+        long deadline = start + TIMEOUT;
+        while (!latch.await(THREAD_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS) && SystemClock.elapsedRealtime() < deadline) {
+            peakThreads = Math.max(peakThreads, Thread.activeCount());
+        }
+        result.millis = SystemClock.elapsedRealtime() - start;
+        result.peakThreads = peakThreads;
+        final CountDownLatch deleted = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (DownloadTask task : tasks) {
+                    task.clear();
+                    task.delete();
+                }
+                deleted.countDown();
+            }
+        });
+        deleted.await();
+        return result;
+    }
+}
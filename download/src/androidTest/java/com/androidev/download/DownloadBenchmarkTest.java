@@ -0,0 +1,38 @@
+package com.androidev.download;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * runs DownloadBenchmark on a device, the results are logged
+ */
+@RunWith(AndroidJUnit4.class)
+public class DownloadBenchmarkTest {
+
+    private static final String TAG = "DownloadBenchmark";
+
+    @Test
+    public void bothModesFinishAllTasks() throws Exception {
+        final DownloadManager manager = DownloadManager.getInstance();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (manager.getEngine() == null) manager.initialize(InstrumentationRegistry.getTargetContext(), 3);
+            }
+        });
+        List<DownloadBenchmark.Result> results = new DownloadBenchmark(60, 256 * 1024, 100, 30).run();
+        assertEquals(2, results.size());
+        for (DownloadBenchmark.Result result : results) {
+            Log.i(TAG, result.toString());
+            assertEquals(result.toString(), 0, result.failedCount);
+        }
+    }
+}
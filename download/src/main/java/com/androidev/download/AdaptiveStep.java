@@ -0,0 +1,67 @@
+package com.androidev.download;
+
+/**
+ * sizes the read chunk and the store interval of a job from its measured throughput,
+ * not thread safe, guarded by the job
+ */
+class AdaptiveStep {
+
+    private static final long SAMPLE_INTERVAL = 500;
+    private static final long STORE_INTERVAL = 1000;  // store the progress about once a second
+
+    private final int minReadStep;
+    private final int maxReadStep;
+    private final long minStoreStep;
+    private final long maxStoreStep;
+
+    private int readStep;
+    private long storeStep;
+
+    private long sampleTime;
+    private long sampleLength;
+    private int sampleReads;
+    private int sampleFullReads;
+
+    AdaptiveStep(int minReadStep, int maxReadStep, long minStoreStep, long maxStoreStep, long now) {
+        this.minReadStep = minReadStep;
+        this.maxReadStep = maxReadStep;
+        this.minStoreStep = minStoreStep;
+        this.maxStoreStep = maxStoreStep;
+        this.readStep = minReadStep;
+        this.storeStep = minStoreStep;
+        this.sampleTime = now;
+    }
+
+    int getReadStep() {
+        return readStep;
+    }
+
+    long getStoreStep() {
+        return storeStep;
+    }
+
+    /**
+     * @param requested bytes asked for by the read
+     * @param length    bytes returned by the read
+     */
+    void onRead(long requested, long length, long now) {
+        sampleLength += length;
+        sampleReads++;
+        if (length >= requested) sampleFullReads++;
+        long elapsed = now - sampleTime;
+        if (elapsed < SAMPLE_INTERVAL) return;
+        // reads filling the whole chunk mean that the data is waiting in the socket, read more at a time,
+        // reads returning a small part mean that every read waits for a round trip, a big chunk is wasted
+        if (sampleFullReads * 4 >= sampleReads * 3) {
+            readStep = Math.min(readStep * 2, maxReadStep);
+        } else if (sampleFullReads * 4 < sampleReads) {
+            readStep = Math.max(readStep / 2, minReadStep);
+        }
+        long speed = sampleLength * 1000 / elapsed;
+        storeStep = Math.max(minStoreStep, Math.min(maxStoreStep, speed * STORE_INTERVAL / 1000));
+        sampleTime = now;
+        sampleLength = 0;
+        sampleReads = 0;
+        sampleFullReads = 0;
+    }
+}
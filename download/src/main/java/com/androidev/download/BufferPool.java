@@ -0,0 +1,108 @@
+package com.androidev.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * engine-wide pool of read buffers, heap arrays for WRITE_MODE_STREAM and direct buffers for WRITE_MODE_CHANNEL,
+ * a worker borrows one when it starts a segment and returns it whenever it stops
+ */
+class BufferPool {
+
+    private int bufferSize;
+    private int maxCount;
+    private final Deque<byte[]> arrays;
+    private final Deque<ByteBuffer> buffers;
+
+    private long hits;
+    private long misses;
+
+    BufferPool(int bufferSize, int maxCount) {
+        this.bufferSize = bufferSize;
+        this.maxCount = maxCount;
+        this.arrays = new ArrayDeque<>();
+        this.buffers = new ArrayDeque<>();
+    }
+
+    synchronized byte[] acquireArray() {
+        byte[] array = arrays.poll();
+        if (array != null) {
+            hits++;
+            return array;
+        }
+        misses++;
+        return new byte[bufferSize];
+    }
+
+    synchronized void release(byte[] array) {
+        if (array == null || array.length != bufferSize || arrays.size() >= maxCount) return;
+        arrays.push(array);
+    }
+
+    /**
+     * allocating a direct buffer is expensive, it should be reused
+     */
+    synchronized ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            hits++;
+        } else {
+            misses++;
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * a heap buffer or one of another size, such as the content of a MemorySink, is dropped
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize || buffers.size() >= maxCount) return;
+        buffers.push(buffer);
+    }
+
+    /**
+     * @param maxCount max idle buffers of each kind, the extra ones are dropped
+     */
+    synchronized void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+        while (arrays.size() > maxCount) arrays.poll();
+        while (buffers.size() > maxCount) buffers.poll();
+    }
+
+    synchronized int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * drop the idle buffers of the old size, the borrowed ones are dropped when they are released
+     */
+    synchronized void setBufferSize(int bufferSize) {
+        if (this.bufferSize == bufferSize) return;
+        this.bufferSize = bufferSize;
+        clear();
+    }
+
+    synchronized void clear() {
+        arrays.clear();
+        buffers.clear();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int getIdleCount() {
+        return arrays.size() + buffers.size();
+    }
+
+    synchronized int getMaxCount() {
+        return maxCount;
+    }
+}
@@ -0,0 +1,100 @@
+package com.androidev.download;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * what the servers told about the resources, by the url of the task, so that the follow-up jobs and resumes
+ * of the same resource skip the discovery round trips, the entries expire after the ttl
+ */
+class CapabilityCache {
+
+    static final long DEFAULT_TTL = 5 * 60 * 1000;
+    private static final int MAX_ENTRIES = 64;
+
+    static class Capability {
+
+        final String url;  // where the redirects lead
+        final boolean acceptsRanges;
+        final long contentLength;
+        final String eTag;
+        final String lastModified;
+        final long time;
+
+        Capability(String url, boolean acceptsRanges, long contentLength, String eTag, String lastModified) {
+            this(url, acceptsRanges, contentLength, eTag, lastModified, SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * @param time when the server told it, elapsed realtime
+         */
+        Capability(String url, boolean acceptsRanges, long contentLength, String eTag, String lastModified, long time) {
+            this.url = url;
+            this.acceptsRanges = acceptsRanges;
+            this.contentLength = contentLength;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.time = time;
+        }
+    }
+
+    private final Map<String, Capability> capabilities = new LinkedHashMap<String, Capability>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Capability> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private long ttl = DEFAULT_TTL;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param ttl milliseconds an entry is trusted, 0 disables the cache
+     */
+    synchronized void setTtl(long ttl) {
+        this.ttl = ttl;
+        if (ttl == 0) capabilities.clear();
+    }
+
+    /**
+     * @return null if the url is not probed or the entry is expired
+     */
+    Capability get(String url) {
+        return get(url, SystemClock.elapsedRealtime());
+    }
+
+    synchronized Capability get(String url, long now) {
+        Capability capability = capabilities.get(url);
+        if (capability != null && now - capability.time >= ttl) {
+            capabilities.remove(url);
+            capability = null;
+        }
+        if (capability == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return capability;
+    }
+
+    synchronized void put(String url, Capability capability) {
+        if (ttl > 0) capabilities.put(url, capability);
+    }
+
+    /**
+     * the resource is found changed
+     */
+    synchronized void remove(String url) {
+        capabilities.remove(url);
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
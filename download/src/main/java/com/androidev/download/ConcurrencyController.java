@@ -0,0 +1,120 @@
+package com.androidev.download;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * sizes the slots of the jobs from the throughput of all of them, downloads are bound by the network
+ * rather than the cpu, so a slot is added while the throughput keeps rising and removed once it does not help
+ */
+class ConcurrencyController {
+
+    static final long SAMPLE_INTERVAL = 2000;
+    private static final int HOLD_SAMPLES = 5;  // samples to keep a settled limit before probing again
+    private static final int GAIN_PERCENT = 10;  // change of the throughput below it is treated as a plateau
+
+    private static final int NONE = 0;
+    private static final int UP = 1;
+    private static final int DOWN = 2;
+
+    private final AtomicLong transferred = new AtomicLong();
+    private int minLimit;
+    private int maxLimit;
+    private int limit;
+    private int lastAction = NONE;
+    private int holdSamples;
+    private long lastThroughput;
+    private long throughput;
+    private long sampleTime;
+
+    ConcurrencyController(int minLimit, int maxLimit, int limit, long now) {
+        this.sampleTime = now;
+        setBounds(minLimit, maxLimit, limit);
+    }
+
+    /**
+     * called by the jobs on their threads
+     */
+    void onTransferred(long length) {
+        transferred.addAndGet(length);
+    }
+
+    synchronized void setBounds(int minLimit, int maxLimit) {
+        setBounds(minLimit, maxLimit, limit);
+    }
+
+    private void setBounds(int minLimit, int maxLimit, int limit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        lastAction = NONE;
+        holdSamples = 0;
+    }
+
+    /**
+     * start measuring again after being idle
+     */
+    synchronized void reset(long now) {
+        transferred.set(0);
+        sampleTime = now;
+        lastThroughput = 0;
+        lastAction = NONE;
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    synchronized int getMinLimit() {
+        return minLimit;
+    }
+
+    synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return bytes per second of all jobs measured by the last sample
+     */
+    synchronized long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * measure the throughput since the last sample and move the limit a step
+     *
+     * @param saturated all slots are taken and some job is waiting for one, only then a new slot can be measured
+     * @return the new limit
+     */
+    synchronized int sample(long now, boolean saturated) {
+        long elapsed = now - sampleTime;
+        if (elapsed <= 0) return limit;
+        throughput = transferred.getAndSet(0) * 1000 / elapsed;
+        sampleTime = now;
+        boolean rose = throughput * 100 > lastThroughput * (100 + GAIN_PERCENT);
+        boolean dropped = throughput * 100 < lastThroughput * (100 - GAIN_PERCENT);
+        int action = NONE;
+        if (lastAction == UP && holdSamples == 0) {  // a slot given back is held like a settled limit, not probed
+            // the added slot helped, keep adding, otherwise take it back
+            action = rose ? (saturated ? UP : NONE) : DOWN;
+            if (action == DOWN) holdSamples = HOLD_SAMPLES;
+        } else if (lastAction == DOWN) {
+            // the removed slot was needed, give it back, otherwise try removing more
+            if (dropped) {
+                action = UP;
+                holdSamples = HOLD_SAMPLES;
+            } else if (holdSamples == 0) {
+                action = DOWN;
+            }
+        } else if (holdSamples > 0) {
+            holdSamples--;
+        } else if (saturated) {
+            action = dropped ? DOWN : UP;  // more connections may be what slows all of them down
+        }
+        if (action == UP && limit >= maxLimit || action == DOWN && limit <= minLimit) action = NONE;
+        if (action == UP) limit++;
+        if (action == DOWN) limit--;
+        lastAction = action;
+        lastThroughput = throughput;
+        return limit;
+    }
+}
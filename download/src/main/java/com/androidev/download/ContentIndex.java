@@ -0,0 +1,62 @@
+package com.androidev.download;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * the finished downloads by url and by checksum, a new task of the same content is finished from one of them
+ * instead of the network, only the tasks with a checksum are found by their content, the ones without it
+ * by a recent download of the same url if the user trusts it
+ */
+class ContentIndex {
+
+    private final Map<String, DownloadInfo> byUrl = new HashMap<>();
+    private final Map<String, DownloadInfo> byChecksum = new HashMap<>();
+
+    synchronized void add(DownloadInfo info) {
+        if (!info.isFinished()) return;
+        byUrl.put(info.url, info);
+        String checksum = getChecksumKey(info);
+        if (checksum != null) byChecksum.put(checksum, info);
+    }
+
+    synchronized void remove(DownloadInfo info) {
+        if (byUrl.get(info.url) == info) byUrl.remove(info.url);
+        String checksum = getChecksumKey(info);
+        if (checksum != null && byChecksum.get(checksum) == info) byChecksum.remove(checksum);
+    }
+
+    /**
+     * @param urlMaxAge milliseconds since a download of the same url is finished that it is trusted, 0 for never
+     * @return the finished download of the same content whose file is still there, the checksum is trusted
+     * more than the url, null if none
+     */
+    synchronized DownloadInfo find(DownloadInfo info, long urlMaxAge) {
+        String checksum = getChecksumKey(info);
+        DownloadInfo source = checksum == null ? null : byChecksum.get(checksum);
+        if (isAvailable(source, info)) return source;
+        if (urlMaxAge <= 0) return null;
+        source = byUrl.get(info.url);
+        if (source == null || System.currentTimeMillis() - source.finishTime > urlMaxAge) return null;
+        return isAvailable(source, info) ? source : null;
+    }
+
+    /**
+     * @return true if the file of the finished download is there for the other task
+     */
+    static boolean isAvailable(DownloadInfo source, DownloadInfo info) {
+        if (source == null || source == info || source.path.equals(info.path)) return false;
+        File file = new File(source.path);
+        return file.isFile() && file.length() == source.contentLength;
+    }
+
+    /**
+     * @return algorithm and checksum in lower case, null if the task has no checksum
+     */
+    private static String getChecksumKey(DownloadInfo info) {
+        if (info.checksum == null) return null;
+        return info.checksumAlgorithm + ":" + info.checksum.toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,39 @@
+package com.androidev.download;
+
+/**
+ * the Content-Range of a partial response, bytes first-last/length
+ */
+class ContentRange {
+
+    final long first;
+    final long last;
+    final long length;  // -1 if the server does not know it
+
+    private ContentRange(long first, long last, long length) {
+        this.first = first;
+        this.last = last;
+        this.length = length;
+    }
+
+    /**
+     * @return null if the header is absent or malformed
+     */
+    static ContentRange parse(String header) {
+        if (header == null) return null;
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes", 0, 5)) return null;
+        int dash = header.indexOf('-');
+        int slash = header.indexOf('/');
+        if (dash < 0 || slash < dash) return null;
+        try {
+            long first = Long.parseLong(header.substring(5, dash).trim());
+            long last = Long.parseLong(header.substring(dash + 1, slash).trim());
+            String total = header.substring(slash + 1).trim();
+            long length = "*".equals(total) ? -1 : Long.parseLong(total);
+            if (first < 0 || last < first || (length >= 0 && last >= length)) return null;
+            return new ContentRange(first, last, length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
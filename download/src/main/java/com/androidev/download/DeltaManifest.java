@@ -0,0 +1,133 @@
+package com.androidev.download;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * block checksums of the new version of a file, like the control file of zsync, every block has a rolling checksum
+ * for finding it in an old file at any offset, and an MD5 for making sure, the last block may be shorter
+ */
+public class DeltaManifest {
+
+    public final long length;
+    public final int blockSize;
+    final int[] weakSums;
+    final String[] strongSums;
+
+    /**
+     * @param length     bytes of the new version
+     * @param weakSums   rolling checksums of the blocks, see weakSum
+     * @param strongSums MD5 of the blocks in hex
+     */
+    public DeltaManifest(long length, int blockSize, int[] weakSums, String[] strongSums) {
+        if (blockSize <= 0 || length <= 0) {
+            throw new IllegalArgumentException("length and block size must be positive!");
+        }
+        long blockCount = (length + blockSize - 1) / blockSize;
+        if (weakSums.length != blockCount || strongSums.length != blockCount) {
+            throw new IllegalArgumentException("checksums do not match the blocks!");
+        }
+        this.length = length;
+        this.blockSize = blockSize;
+        this.weakSums = weakSums.clone();
+        this.strongSums = strongSums.clone();
+    }
+
+    int getBlockCount() {
+        return weakSums.length;
+    }
+
+    /**
+     * compute the manifest of the new version, for publishing it along with the file
+     */
+    public static DeltaManifest create(File file, int blockSize) throws IOException {
+        long length = file.length();
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        int[] weakSums = new int[blockCount];
+        String[] strongSums = new String[blockCount];
+        byte[] block = new byte[blockSize];
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                int len = (int) Math.min(blockSize, length - (long) i * blockSize);
+                int read = 0;
+                while (read < len) {
+                    int count = in.read(block, read, len - read);
+                    if (count < 0) throw new IOException("file is changed while reading");
+                    read += count;
+                }
+                weakSums[i] = weakSum(block, 0, len);
+                strongSums[i] = strongSum(block, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return new DeltaManifest(length, blockSize, weakSums, strongSums);
+    }
+
+    /**
+     * @param text got from toString
+     * @throws IllegalArgumentException if the text is malformed
+     */
+    public static DeltaManifest parse(String text) {
+        String[] lines = text.trim().split("\n");
+        try {
+            String[] head = lines[0].trim().split(" ");
+            long length = Long.parseLong(head[0]);
+            int blockSize = Integer.parseInt(head[1]);
+            int[] weakSums = new int[lines.length - 1];
+            String[] strongSums = new String[lines.length - 1];
+            for (int i = 1; i < lines.length; i++) {
+                String[] fields = lines[i].trim().split(" ");
+                weakSums[i - 1] = (int) Long.parseLong(fields[0], 16);
+                strongSums[i - 1] = fields[1];
+            }
+            return new DeltaManifest(length, blockSize, weakSums, strongSums);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("malformed delta manifest!", e);
+        }
+    }
+
+    /**
+     * @return "length blockSize" followed by a line "weakSum strongSum" for every block
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(length).append(' ').append(blockSize).append('\n');
+        for (int i = 0; i < weakSums.length; i++) {
+            sb.append(Integer.toHexString(weakSums[i])).append(' ').append(strongSums[i]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * the MD5 of the blocks verify the assembled file as the pieces of it
+     */
+    PieceManifest toPieceManifest() {
+        return new PieceManifest(DownloadManager.CHECKSUM_MD5, blockSize, strongSums);
+    }
+
+    /**
+     * the checksum of rsync, a is the sum of the bytes and b the sum of a after every byte, both in 16 bits,
+     * so that a window moves by a byte in constant time
+     */
+    static int weakSum(byte[] buffer, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += buffer[offset + i] & 0xff;
+            b += a;
+        }
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    static String strongSum(byte[] buffer, int offset, int length) {
+        StreamDigest digest = StreamDigest.create(DownloadManager.CHECKSUM_MD5);
+        digest.update(buffer, offset, length);
+        return digest.digest();
+    }
+}
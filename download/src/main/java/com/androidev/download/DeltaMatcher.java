@@ -0,0 +1,124 @@
+package com.androidev.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * finds the blocks of the new version in the old file like rsync, a window of a block slides over the old file a byte
+ * at a time with the rolling checksum, only the windows whose checksum is of some block are hashed with MD5,
+ * the last block is matched only if it is a whole one
+ */
+class DeltaMatcher {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final DeltaManifest manifest;
+    private final int blockSize;
+    private final int blockCount;  // whole blocks for matching
+    private final Map<Integer, List<Integer>> blocks = new HashMap<>();  // by weak checksum
+    private final BitSet found;
+    private int foundCount;
+
+    DeltaMatcher(DeltaManifest manifest) {
+        this.manifest = manifest;
+        this.blockSize = manifest.blockSize;
+        this.blockCount = (int) (manifest.length / blockSize);
+        this.found = new BitSet(manifest.getBlockCount());
+        for (int block = 0; block < blockCount; block++) {
+            List<Integer> list = blocks.get(manifest.weakSums[block]);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                blocks.put(manifest.weakSums[block], list);
+            }
+            list.add(block);
+        }
+    }
+
+    /**
+     * copy the blocks found in the base file to their places in the sink
+     *
+     * @return the blocks found
+     */
+    BitSet match(File base, DownloadSink sink) throws IOException {
+        if (blockCount == 0 || base.length() < blockSize) return found;
+        byte[] buffer = new byte[Math.max(BUFFER_SIZE, blockSize * 2)];
+        InputStream in = new FileInputStream(base);
+        try {
+            int limit = fill(in, buffer, 0);
+            int position = 0;  // start of the window in the buffer
+            boolean isEnd = false;
+            int a = 0;
+            int b = 0;
+            boolean isFresh = true;  // the checksum of the window is to be computed again
+            while (foundCount < blockCount) {
+                if (limit - position < blockSize + 1 && !isEnd) {  // keep the window and the byte after it
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                    int filled = fill(in, buffer, limit);
+                    isEnd = filled == limit;
+                    limit = filled;
+                }
+                if (limit - position < blockSize) break;
+                if (isFresh) {
+                    int sum = DeltaManifest.weakSum(buffer, position, blockSize);
+                    a = sum & 0xffff;
+                    b = sum >>> 16;
+                    isFresh = false;
+                }
+                if (copy(buffer, position, (b & 0xffff) << 16 | (a & 0xffff), sink)) {
+                    position += blockSize;
+                    isFresh = true;
+                    continue;
+                }
+                if (limit - position == blockSize) break;
+                int leaving = buffer[position] & 0xff;
+                int entering = buffer[position + blockSize] & 0xff;
+                a = a - leaving + entering;
+                b = b - blockSize * leaving + a;
+                position++;
+            }
+        } finally {
+            in.close();
+        }
+        return found;
+    }
+
+    /**
+     * @return true if the window is some block, it is written to all places of the block not found yet
+     */
+    private boolean copy(byte[] buffer, int position, int weakSum, DownloadSink sink) throws IOException {
+        List<Integer> list = blocks.get(weakSum);
+        if (list == null) return false;
+        String strongSum = DeltaManifest.strongSum(buffer, position, blockSize);
+        boolean isMatched = false;
+        for (int block : list) {
+            if (!StreamDigest.matches(strongSum, manifest.strongSums[block])) continue;
+            isMatched = true;
+            if (found.get(block)) continue;
+            sink.write((long) block * blockSize, buffer, position, blockSize);
+            found.set(block);
+            foundCount++;
+        }
+        return isMatched;
+    }
+
+    /**
+     * @return the new limit, same as the old one at the end of the file
+     */
+    private static int fill(InputStream in, byte[] buffer, int limit) throws IOException {
+        while (limit < buffer.length) {
+            int count = in.read(buffer, limit, buffer.length - limit);
+            if (count < 0) break;
+            limit += count;
+        }
+        return limit;
+    }
+}
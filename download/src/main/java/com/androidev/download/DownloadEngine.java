@@ -3,17 +3,22 @@ package com.androidev.download;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.androidev.download.DownloadState.STATE_PAUSED;
 import static com.androidev.download.DownloadState.STATE_RUNNING;
@@ -24,9 +29,13 @@ import static com.androidev.download.DownloadState.STATE_RUNNING;
 class DownloadEngine {
 
     private static final String TAG = "DownloadEngine";
-    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
+    private static final int DEFAULT_MAX_TASK = 16;
+    private static final int SELECTOR_LOOP_COUNT = 2;
+    private static final int SELECTOR_EXECUTOR_SIZE = 4;  // threads only prepare the jobs in selector mode
     private static final int KEEP_ALIVE = 10;
+    private static final int DEFAULT_MAP_WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final long DEFAULT_MEMORY_THRESHOLD = 256 * 1024;  // a pooled buffer of the largest read step
+    private static final int SPACE_RETRY_INTERVAL = 30 * 1000;
 
 
     /**
@@ -50,6 +59,11 @@ class DownloadEngine {
      */
     private List<DownloadInfo> activeInfos;
 
+    /**
+     * jobs held in STATE_WAITING because the storage can not hold them
+     */
+    private List<DownloadJob> spaceWaitingJobs;
+
     /**
      * show download notifications
      */
@@ -65,6 +79,32 @@ class DownloadEngine {
         }
     };
 
+    /**
+     * resize the slots from the throughput while there are jobs
+     */
+    private Runnable sampleConcurrencyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduler.setMaxTask(concurrency.sample(SystemClock.elapsedRealtime(), scheduler.isSaturated()));
+            if (scheduler.hasJobs()) {
+                handler.postDelayed(this, ConcurrencyController.SAMPLE_INTERVAL);
+            } else {
+                isSampling = false;
+            }
+        }
+    };
+    private boolean isSampling;
+
+    /**
+     * retry the jobs waiting for space, the space may be freed by other apps
+     */
+    private Runnable retrySpaceWaitingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            retrySpaceWaitingJobs();
+        }
+    };
+
     /**
      * for some server, the url of resource if temporary
      * maybe need setting interceptor to update the url
@@ -76,22 +116,145 @@ class DownloadEngine {
      */
     ThreadPoolExecutor executor;
 
+    /**
+     * threads for the extra segments of the running jobs, the first segment runs on the job's thread,
+     * and for the blocking work of the selector loops
+     */
+    ThreadPoolExecutor segmentExecutor;
+
+    /**
+     * read buffers shared by all jobs
+     */
+    BufferPool bufferPool;
+
+    /**
+     * how the jobs write the data, one of DownloadManager.WRITE_MODE_*
+     */
+    volatile int writeMode = DownloadManager.WRITE_MODE_STREAM;
+
+    /**
+     * bounds of the adaptive read chunk and store interval of the jobs
+     */
+    volatile int minReadStep = DownloadJob.MIN_READ_STEP;
+    volatile int maxReadStep = DownloadJob.MAX_READ_STEP;
+    volatile long minStoreStep = DownloadJob.MIN_STORE_STEP;
+    volatile long maxStoreStep = DownloadJob.MAX_STORE_STEP;
+
+    /**
+     * options of WRITE_MODE_MAPPED
+     */
+    volatile int mapWindowSize = DEFAULT_MAP_WINDOW_SIZE;
+    volatile int mapRemapPolicy = DownloadManager.REMAP_LAZY;
+
+    /**
+     * one of DownloadManager.ENGINE_MODE_*
+     */
+    volatile int engineMode = DownloadManager.ENGINE_MODE_THREAD;
+
+    /**
+     * loops of the jobs in ENGINE_MODE_SELECTOR, created on demand
+     */
+    volatile SelectorEngine selectorEngine;
+
+    /**
+     * executes the requests of the jobs
+     */
+    volatile Transport transport;
+
+    /**
+     * what the servers told about the resources, shared by the jobs
+     */
+    CapabilityCache capabilities;
+
+    /**
+     * how the failed jobs are retried, unless their tasks have their own policies
+     */
+    volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * milliseconds to wait for a response before sending a duplicate request, 0 means no hedging
+     */
+    volatile long hedgeDelay;
+
+    /**
+     * duplicate requests sent, and how many of them answered first
+     */
+    final AtomicLong hedges = new AtomicLong();
+    final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * bytes of delta jobs copied from the old files, and the ones left to download
+     */
+    final AtomicLong deltaSavedBytes = new AtomicLong();
+    final AtomicLong deltaFetchedBytes = new AtomicLong();
+
+    /**
+     * the finished downloads a new job of the same checksum, or of the same url if it is recent enough, is finished from
+     */
+    final ContentIndex contents = new ContentIndex();
+    volatile boolean isDeduplicating = true;
+    volatile long urlDeduplicationAge;  // milliseconds, 0 means the url alone is never trusted
+    final AtomicLong deduplicatedBytes = new AtomicLong();
+
+    /**
+     * the jobs of the same url share one transfer
+     */
+    private final JobCoalescer coalescer = new JobCoalescer();
+    final AtomicLong coalescedTasks = new AtomicLong();
+
+    /**
+     * the content of a task with a payload listener is kept in memory up to this length
+     */
+    volatile long memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+
+    /**
+     * bandwidth shared by all jobs
+     */
+    TokenBucket speedLimiter;
+
+    /**
+     * bytes reserved by the running jobs
+     */
+    SpaceLedger spaceLedger;
+
     /**
      * provider for inserting, deleting, querying or updating the download info with the database
      */
     DownloadProvider provider;
     Handler handler;
 
+    /**
+     * hands the slots of the executor to the jobs
+     */
+    DownloadScheduler scheduler;
+
+    /**
+     * decides how many slots the scheduler has
+     */
+    ConcurrencyController concurrency;
+
     DownloadEngine(int maxTask) {
         jobs = new HashMap<>();
         infos = new HashMap<>();
         activeInfos = new ArrayList<>();
+        spaceWaitingJobs = new ArrayList<>();
+        spaceLedger = new SpaceLedger();
+        capabilities = new CapabilityCache();
+        HttpTransport httpTransport = new HttpTransport();
+        transport = httpTransport;
+        speedLimiter = new TokenBucket(0);
         interceptors = new ArrayList<>();
         downloadJobListeners = new ArrayList<>();
         handler = new Handler(Looper.getMainLooper());
-        if (maxTask > CORE_POOL_SIZE) maxTask = CORE_POOL_SIZE;
-        executor = new ThreadPoolExecutor(maxTask, maxTask, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        int maxLimit = Math.max(maxTask, DEFAULT_MAX_TASK);
+        // threads are created on demand, the scheduler decides how many of them download at the same time
+        executor = new ThreadPoolExecutor(maxLimit, maxLimit, KEEP_ALIVE, TimeUnit.SECONDS, new PriorityBlockingQueue<>(11, DownloadScheduler.RUN_ORDER));
         executor.allowCoreThreadTimeOut(true);
+        segmentExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        bufferPool = new BufferPool(maxReadStep, maxTask * 4);
+        httpTransport.setBufferPool(bufferPool);
+        concurrency = new ConcurrencyController(1, maxLimit, maxTask, SystemClock.elapsedRealtime());
+        scheduler = new DownloadScheduler(executor, concurrency.getLimit());
     }
 
     /**
@@ -107,6 +270,7 @@ class DownloadEngine {
                     if (STATE_RUNNING == info.state) // App had been force stopped
                         info.state = STATE_PAUSED;
                     infos.put(info.key, info);
+                    contents.add(info);
                     if (info.isFinished()) continue;
                     jobs.put(info.key, new DownloadJob(DownloadEngine.this, info));
                 }
@@ -119,6 +283,16 @@ class DownloadEngine {
      */
     void destroy() {
         executor.shutdown();
+        segmentExecutor.shutdown();
+        bufferPool.clear();
+        handler.removeCallbacks(retrySpaceWaitingRunnable);
+        handler.removeCallbacks(sampleConcurrencyRunnable);
+        spaceWaitingJobs.clear();
+        for (DownloadJob job : jobs.values()) {
+            job.cancelRetry();
+        }
+        transport.shutdown();
+        if (selectorEngine != null) selectorEngine.shutdown();
         interceptors.clear();
         downloadJobListeners.clear();
     }
@@ -178,6 +352,157 @@ class DownloadEngine {
         downloadJobListeners.remove(downloadJobListener);
     }
 
+    void setWriteMode(int writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    void setBufferPoolSize(int maxCount) {
+        bufferPool.setMaxCount(maxCount);
+    }
+
+    DownloadStats getStats() {
+        DownloadStats stats = new DownloadStats();
+        stats.bufferPoolHits = bufferPool.getHits();
+        stats.bufferPoolMisses = bufferPool.getMisses();
+        stats.bufferPoolIdle = bufferPool.getIdleCount();
+        stats.bufferPoolMax = bufferPool.getMaxCount();
+        stats.concurrencyLimit = concurrency.getLimit();
+        stats.throughput = concurrency.getThroughput();
+        stats.hostQueueDepths = scheduler.getQueueDepths();
+        stats.hostConnections = scheduler.getHostConnections();
+        stats.capabilityHits = capabilities.getHits();
+        stats.capabilityMisses = capabilities.getMisses();
+        stats.hedges = hedges.get();
+        stats.hedgeWins = hedgeWins.get();
+        stats.deltaSavedBytes = deltaSavedBytes.get();
+        stats.deltaFetchedBytes = deltaFetchedBytes.get();
+        stats.deduplicatedBytes = deduplicatedBytes.get();
+        stats.coalescedTasks = coalescedTasks.get();
+        for (DownloadJob job : jobs.values()) {
+            int readStep = job.getReadStep();
+            if (readStep > 0) stats.readSteps.put(job.info.key, readStep);
+        }
+        return stats;
+    }
+
+    /**
+     * the running jobs keep their bounds until they are resumed
+     */
+    void setStepBounds(int minReadStep, int maxReadStep, long minStoreStep, long maxStoreStep) {
+        this.minReadStep = minReadStep;
+        this.maxReadStep = maxReadStep;
+        this.minStoreStep = minStoreStep;
+        this.maxStoreStep = maxStoreStep;
+        bufferPool.setBufferSize(maxReadStep);
+    }
+
+    /**
+     * the running segments keep the old transport until they finish
+     */
+    void setTransport(Transport transport) {
+        if (transport instanceof HttpTransport) ((HttpTransport) transport).setBufferPool(bufferPool);
+        Transport old = this.transport;
+        this.transport = transport;
+        if (old != transport) old.shutdown();
+    }
+
+    /**
+     * @param speedLimit bytes per second of all jobs, 0 means unlimited
+     */
+    void setSpeedLimit(long speedLimit) {
+        speedLimiter.setRate(speedLimit);
+    }
+
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * takes effect at the next failure of the job
+     */
+    void setRetryPolicy(DownloadTask task) {
+        String key = task.key;
+        if (!jobs.containsKey(key)) return;
+        jobs.get(key).info.retryPolicy = task.retryPolicy;
+    }
+
+    void setCapabilityTtl(long ttl) {
+        capabilities.setTtl(ttl);
+    }
+
+    /**
+     * the requests already waiting keep the old delay
+     */
+    void setHedgeDelay(long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * the jobs which opened their sinks keep the old threshold
+     */
+    void setMemoryThreshold(long memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * the jobs already running keep the old setting
+     */
+    void setDeduplicating(boolean isDeduplicating) {
+        this.isDeduplicating = isDeduplicating;
+    }
+
+    /**
+     * the jobs already running keep the old setting
+     */
+    void setUrlDeduplicationAge(long urlDeduplicationAge) {
+        this.urlDeduplicationAge = urlDeduplicationAge;
+    }
+
+    void setConcurrencyBounds(int minTask, int maxTask) {
+        concurrency.setBounds(minTask, maxTask);
+        resizeExecutor();
+        scheduler.setMaxTask(concurrency.getLimit());
+    }
+
+    /**
+     * the running jobs keep their mode until they are resumed
+     */
+    synchronized void setEngineMode(int engineMode) {
+        if (engineMode == DownloadManager.ENGINE_MODE_SELECTOR && selectorEngine == null) {
+            try {
+                selectorEngine = new SelectorEngine(SELECTOR_LOOP_COUNT, maxReadStep, segmentExecutor);
+            } catch (IOException e) {
+                throw new IllegalStateException("can not open selector", e);
+            }
+        }
+        this.engineMode = engineMode;
+        resizeExecutor();
+    }
+
+    /**
+     * a thread for every slot in thread mode, a few threads preparing the jobs in selector mode
+     */
+    private void resizeExecutor() {
+        int size = concurrency.getMaxLimit();
+        if (engineMode == DownloadManager.ENGINE_MODE_SELECTOR) size = Math.min(size, SELECTOR_EXECUTOR_SIZE);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        scheduler.setMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    void setMapOptions(int windowSize, int remapPolicy) {
+        this.mapWindowSize = windowSize;
+        this.mapRemapPolicy = remapPolicy;
+    }
+
     /**
      * set download notifier
      */
@@ -218,7 +543,7 @@ class DownloadEngine {
         if (jobs.containsKey(key)) {                   // has existed uncompleted job
             DownloadJob job = jobs.get(key);
             if (job.isRunning()) return;
-            job.enqueue();
+            schedule(job);
             activeInfos.add(job.info);
         } else {
             if (infos.containsKey(key)) return;         // means the job had completed
@@ -228,7 +553,7 @@ class DownloadEngine {
             jobs.put(key, job);
             onJobCreated(info);
             job.addListener(task.listener);
-            job.enqueue();
+            schedule(job);
             activeInfos.add(info);
         }
         updateNotification();
@@ -243,6 +568,8 @@ class DownloadEngine {
         DownloadInfo info = infos.get(key);
         DownloadJob job = jobs.remove(key);
         job.delete();
+        spaceWaitingJobs.remove(job);
+        release(job, info, false);
         delete(info);
         if (!activeInfos.contains(info)) return;
         activeInfos.remove(info);
@@ -266,17 +593,53 @@ class DownloadEngine {
         if (!jobs.containsKey(key)) return;
         DownloadJob job = jobs.get(key);
         if (job.isRunning()) return;
-        job.resume();
+        schedule(job);
         activeInfos.add(job.info);
         updateNotification();
     }
 
+    /**
+     * enqueue the job, or let it follow the job of the same url which is enqueued already
+     */
+    private void schedule(DownloadJob job) {
+        if (job.info.payloadListener != null || coalescer.attach(job) == null) {  // a payload is not in a file to share
+            job.enqueue();
+        } else if (job.follow()) {
+            coalescedTasks.incrementAndGet();
+        }
+    }
+
+    /**
+     * the job stops leading, the followers of a finished job take its file, the ones of a stopped job compete again
+     */
+    private void release(DownloadJob job, DownloadInfo info, boolean finished) {
+        for (DownloadJob follower : coalescer.detach(job)) {
+            if (follower.info == null || follower.info.state != DownloadState.STATE_WAITING) continue;  // paused or deleted
+            if (finished) {
+                follower.enqueue(info);
+            } else {
+                schedule(follower);
+            }
+        }
+    }
+
+    /**
+     * the followers waiting for the job report its progress as theirs, called on the main thread
+     */
+    void onLeaderProgress(DownloadJob job, long finishedLength, long contentLength) {
+        for (DownloadJob follower : coalescer.getFollowers(job)) {
+            if (follower.info == null || follower.info.state != DownloadState.STATE_WAITING) continue;  // paused or deleted
+            follower.onLeaderProgress(finishedLength, contentLength);
+        }
+    }
+
     /**
      * delete download info, delete file
      */
     void delete(final DownloadInfo info) {
         if (info == null || !infos.containsValue(info)) return;
         infos.remove(info.key);
+        contents.remove(info);
         executor.submit(new Runnable() {
             @Override
             public void run() {
@@ -285,10 +648,24 @@ class DownloadEngine {
                 if (file.exists() && !file.delete()) {
                     Log.w(TAG, "can not delete file: " + file.getPath());
                 }
+                handler.post(retrySpaceWaitingRunnable);
             }
         });
     }
 
+    /**
+     * @throws FileNotFoundException if the task is not started
+     */
+    DownloadInputStream openStream(DownloadTask task) throws FileNotFoundException {
+        String key = task.key;
+        DownloadJob job = jobs.get(key);
+        DownloadInfo info = job == null ? null : job.info;
+        if (info != null) return new DownloadInputStream(job, info);
+        info = infos.get(key);
+        if (info == null || !info.isFinished()) throw new FileNotFoundException("task is not started: " + key);
+        return new DownloadInputStream(null, info);
+    }
+
     /**
      * add download listener
      */
@@ -307,6 +684,22 @@ class DownloadEngine {
         }
     }
 
+    /**
+     * change the speed limit of the task, the stored one is changed as well
+     */
+    void setSpeedLimit(DownloadTask task) {
+        String key = task.key;
+        if (!jobs.containsKey(key)) return;
+        final DownloadJob job = jobs.get(key);
+        job.setSpeedLimit(task.speedLimit);
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (job.info != null && provider.exists(job.info)) provider.update(job.info);
+            }
+        });
+    }
+
     /**
      * delete download listener
      */
@@ -330,6 +723,11 @@ class DownloadEngine {
      */
     void onJobStarted(DownloadInfo info) {
         updateNotification();
+        if (!isSampling) {
+            isSampling = true;
+            concurrency.reset(SystemClock.elapsedRealtime());
+            handler.postDelayed(sampleConcurrencyRunnable, ConcurrencyController.SAMPLE_INTERVAL);
+        }
         for (DownloadJobListener downloadJobListener : downloadJobListeners) {
             downloadJobListener.onStarted(info);
         }
@@ -342,12 +740,43 @@ class DownloadEngine {
         String key = info.key;
         activeInfos.remove(info);
         updateNotification();
+        DownloadJob job = jobs.get(key);
+        if (job != null) release(job, info, finished);
         if (finished) {
             jobs.remove(key);
+            contents.add(info);
         }
         for (DownloadJobListener downloadJobListener : downloadJobListeners) {
             downloadJobListener.onCompleted(finished, info);
         }
+        retrySpaceWaitingJobs();
+    }
+
+    /**
+     * hold the job until some space is freed, called by the job which can not reserve the space
+     */
+    void waitForSpace(final DownloadJob job) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!spaceWaitingJobs.contains(job)) spaceWaitingJobs.add(job);
+                handler.removeCallbacks(retrySpaceWaitingRunnable);
+                handler.postDelayed(retrySpaceWaitingRunnable, SPACE_RETRY_INTERVAL);
+            }
+        });
+    }
+
+    /**
+     * enqueue the jobs waiting for space again, they will wait again if the space is still not enough
+     */
+    private void retrySpaceWaitingJobs() {
+        if (spaceWaitingJobs.isEmpty()) return;
+        List<DownloadJob> waitingJobs = new ArrayList<>(spaceWaitingJobs);
+        spaceWaitingJobs.clear();
+        for (DownloadJob job : waitingJobs) {
+            if (job.info == null || job.info.state != DownloadState.STATE_WAITING) continue;  // paused or deleted
+            job.resume();
+        }
     }
 
     /**
@@ -1,5 +1,7 @@
 package com.androidev.download;
 
+import java.util.List;
+
 /**
  * Created by 4ndroidev on 16/10/7.
  */
@@ -9,6 +11,27 @@ public class DownloadInfo implements Comparable<DownloadInfo> {
 
     int state;
     long finishedLength;
+    int segmentCount = 1;
+    List<DownloadSegment> segments;
+    long speedLimit;  // bytes per second, 0 means unlimited
+    int priority = DownloadManager.PRIORITY_NORMAL;
+    // validators of the resource whose bytes are stored, a resumed range must come from the same one
+    String eTag;
+    String lastModified;
+    RetryPolicy retryPolicy;  // null for the engine's one, not stored
+    List<String> mirrors;  // other urls of the same content, null if none
+    // expected digest of the content, null if not checked, and the digest of the stored prefix
+    String checksumAlgorithm;
+    String checksum;
+    String digestState;
+    PieceManifest pieceManifest;  // null if the pieces are not checked
+    String pieces;  // bitmap of the verified pieces
+    // old version of the content and the block checksums of the new one, null if downloaded in full, not stored
+    String deltaBase;
+    DeltaManifest deltaManifest;
+    PayloadListener payloadListener;  // the content is kept in memory for it if small enough, not stored
+    boolean isPersistent = true;  // false if the task is never stored in the database
+    boolean isInMemory;  // the written bytes are in a memory sink, their progress is not stored
 
     public long createTime;
     public long finishTime;
@@ -0,0 +1,117 @@
+package com.androidev.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * reads the file of a task while it is being downloaded, a read of the bytes not written yet blocks until they are,
+ * a seek far ahead of the written bytes has that range fetched first if the task has several segments,
+ * not thread safe, read it off the main thread
+ */
+public class DownloadInputStream extends InputStream {
+
+    private final DownloadJob job;  // null if the task is finished
+    private final DownloadInfo info;
+    private RandomAccessFile file;
+    private int generation = -1;  // of the opened file
+    private long position;
+    private long readable;  // bytes known to be written from the position
+    private long mark;
+    private final byte[] single = new byte[1];  // for read()
+
+    DownloadInputStream(DownloadJob job, DownloadInfo info) {
+        this.job = job;
+        this.info = info;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) throw new IndexOutOfBoundsException();
+        if (length == 0) return 0;
+        if (readable <= 0) {
+            readable = job == null ? info.contentLength - position : job.awaitWritten(info, position, generation);
+            if (readable <= 0) return -1;
+        }
+        if (file == null) {
+            if (job != null) generation = job.getGeneration();
+            file = new RandomAccessFile(info.path, "r");
+        }
+        file.seek(position);
+        int count = file.read(buffer, offset, (int) Math.min(length, readable));
+        if (count < 0) throw new EOFException("written bytes are missing at " + position);
+        position += count;
+        readable -= count;
+        return count;
+    }
+
+    /**
+     * move to the position, the bytes are waited for by the next read
+     */
+    public void seek(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position can't be negative!");
+        }
+        this.position = position;
+        this.readable = 0;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    /**
+     * @return bytes of the content, 0 until the download knows it
+     */
+    public long length() {
+        return info.contentLength;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+        long target = position + n;
+        long length = info.contentLength;
+        if (length > 0) target = Math.min(target, length);
+        long skipped = Math.max(0, target - position);
+        long left = readable - skipped;
+        seek(position + skipped);
+        if (left > 0) readable = left;
+        return skipped;
+    }
+
+    /**
+     * @return bytes readable without blocking as far as the last read knows
+     */
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Math.max(readable, 0), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        seek(mark);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) file.close();
+        file = null;
+    }
+}
@@ -1,13 +1,25 @@
 package com.androidev.download;
 
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Created by 4ndroidev on 16/10/6.
@@ -16,15 +28,58 @@ import java.util.List;
 // one-to-one association with DownloadInfo
 class DownloadJob implements Runnable {
 
-    private static final int MIN_READ_STEP = 8 * 1024;
-    private static final int MIN_STORE_STEP = MIN_READ_STEP * 16;
+    static final int MIN_READ_STEP = 8 * 1024;
+    static final int MAX_READ_STEP = MIN_READ_STEP * 32;
+    static final int MIN_STORE_STEP = MIN_READ_STEP * 16;
+    static final int MAX_STORE_STEP = MIN_STORE_STEP * 64;
+    private static final int MIN_STEAL_LENGTH = MAX_READ_STEP * 2;
+    private static final long MIN_STEAL_TIME = 1000;  // stealing costs a new connection, not worth for a nearly finished segment
+    private static final long STEAL_INTERVAL = 500;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    static final int MAX_RESTARTS = 1;  // the resource changing again while starting over is a failure
+    static final int MAX_PIECE_ROUNDS = 2;  // downloading the bad pieces again, then the job is corrupted
+    private static final long READ_WAIT_INTERVAL = 1000;  // a reader checks the job again even if nobody wakes it up
 
-    private boolean isPaused;
-    private boolean isDeleted;
-    private DownloadEngine engine;
+    private volatile boolean isPaused;
+    private volatile boolean isDeleted;
+    private volatile boolean isPreempted;  // gives its slot to a job of higher priority, enqueued again after stopping
+    private volatile boolean isProgressPosted;
+    private long unstoredLength;
+    private AdaptiveStep step;  // guarded by info.segments
+    private TokenBucket speedLimiter;
+    private final Object throttleLock = new Object();
+    private volatile SelectorWorker selectorWorker;  // of the running download in selector mode
+    private long reservedLength;  // bytes reserved in the engine's space ledger
+    private volatile String location;  // where the redirects of the url lead, learned by the probe
+    private boolean acceptsRanges;  // learned by the probe
+    private MirrorSet.Lease firstLease;  // of the first response
+    private int retries;  // automatic retries since the job made progress
+    private long checkpoint;  // finished length when the run started
+    private final Object digestLock = new Object();  // guards the digest and the pieces
+    private StreamDigest digest;  // of the written prefix, null if the task has no checksum
+    private PieceVerifier pieces;  // null until the length is known, or if the task has no manifest
+    private DownloadInfo source;  // of the finished job this one followed, its file is taken instead of fetching
+    private final Object readLock = new Object();  // readers of the partial file wait on it for the written bytes
+    private volatile int readerCount;  // waiting on readLock
+    private volatile int generation;  // of the file, starting over deletes it
+    private List<Future<Void>> workers;  // of the running download in thread mode, guarded by info.segments
+    private DownloadSink workerSink;  // guarded by info.segments
+    private LinkedList<DownloadSegment> pendingSegments = new LinkedList<>();  // guarded by info.segments
+    private List<DownloadSegment> activeSegments = new ArrayList<>();  // guarded by info.segments
     private List<DownloadListener> listeners;
 
     DownloadInfo info;
+    DownloadEngine engine;  // nulled once the job is cleared
+    // used by the workers of the current run
+    volatile boolean isAborted;  // one of the segments failed, stop the others
+    MirrorSet mirrors;
+    RequestHedger hedger;  // of thread mode
+    // set by the scheduler
+    long sequence;  // order of the jobs with the same priority, kept while preempted
+    String host;
+    int connections;
+    // set by the coalescer
+    String coalescingKey;  // normalized url the job leads or follows by, null if not attached
 
     private Runnable changeState = new Runnable() {
         @Override
@@ -43,6 +98,7 @@ class DownloadJob implements Runnable {
                     clear();
                     break;
                 case DownloadState.STATE_FAILED:
+                case DownloadState.STATE_CORRUPTED:
                 case DownloadState.STATE_PAUSED:
                     engine.onJobCompleted(false, info);
                     break;
@@ -50,14 +106,36 @@ class DownloadJob implements Runnable {
         }
     };
 
+    private Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            if (info == null || info.state != DownloadState.STATE_WAITING) return;  // paused or deleted meanwhile
+            engine.scheduler.schedule(DownloadJob.this);
+        }
+    };
+
     private Runnable changeProgress = new Runnable() {
         @Override
         public void run() {
+            isProgressPosted = false;  // before reading the progress, so that a later change will be posted again
             synchronized (DownloadJob.class) {
                 for (DownloadListener listener : listeners) {
                     listener.onProgressChanged(info.key, DownloadJob.this.info.finishedLength, DownloadJob.this.info.contentLength);
                 }
             }
+            engine.onLeaderProgress(DownloadJob.this, info.finishedLength, info.contentLength);
+        }
+    };
+
+    private RequestHedger.Requester requester = new RequestHedger.Requester() {
+        @Override
+        public TransportResponse execute(MirrorSet.Lease lease, String range) throws IOException {
+            return engine.transport.execute(request(lease, range));
+        }
+
+        @Override
+        public boolean isStopped() {
+            return DownloadJob.this.isStopped();
         }
     };
 
@@ -65,6 +143,7 @@ class DownloadJob implements Runnable {
         this.engine = engine;
         this.info = info;
         this.listeners = new ArrayList<>();
+        this.speedLimiter = new TokenBucket(info.speedLimit);
     }
 
     void addListener(DownloadListener listener) {
@@ -90,21 +169,96 @@ class DownloadJob implements Runnable {
         resume();
     }
 
+    /**
+     * wait for the job of the same url without taking a slot
+     *
+     * @return false if the job is running
+     */
+    boolean follow() {
+        if (isRunning()) return false;
+        cancelRetry();
+        retries = 0;
+        onStateChanged(DownloadState.STATE_WAITING, false);
+        isPaused = false;
+        return true;
+    }
+
+    /**
+     * the follower shows the progress of the transfer it waits for, its own info is left as it is
+     */
+    void onLeaderProgress(long finishedLength, long contentLength) {
+        synchronized (DownloadJob.class) {
+            for (DownloadListener listener : listeners) {
+                listener.onProgressChanged(info.key, finishedLength, contentLength);
+            }
+        }
+    }
+
+    /**
+     * enqueue the follower of a finished job
+     */
+    void enqueue(DownloadInfo source) {
+        this.source = source;
+        resume();
+    }
+
     void pause() {
         isPaused = true;
+        cancelRetry();
+        wakeUpIdleWorkers();
         if (info.state != DownloadState.STATE_WAITING) return;
+        engine.scheduler.remove(this);
         onStateChanged(DownloadState.STATE_PAUSED, false);
     }
 
+    /**
+     * checkpoint and stop, then wait in the queue again
+     */
+    void preempt() {
+        isPreempted = true;
+        wakeUpIdleWorkers();
+    }
+
+    boolean isPreempted() {
+        return isPreempted;
+    }
+
+    int getPriority() {
+        return info == null ? Integer.MAX_VALUE : info.priority;
+    }
+
     void delete() {
         isDeleted = true;
+        cancelRetry();
+        engine.scheduler.remove(this);
+        wakeUpIdleWorkers();
+        notifyReaders();
+    }
+
+    private void wakeUpIdleWorkers() {
+        SelectorWorker worker = selectorWorker;
+        if (worker != null) worker.stop();
+        List<DownloadSegment> segments = info.segments;
+        if (segments == null) return;
+        synchronized (segments) {
+            segments.notifyAll();
+        }
     }
 
     void resume() {
         if (isRunning()) return;
+        cancelRetry();
+        retries = 0;
         onStateChanged(DownloadState.STATE_WAITING, false);
         isPaused = false;
-        engine.executor.submit(this);
+        engine.scheduler.schedule(this);
+    }
+
+    /**
+     * forget the retry waiting for the backoff
+     */
+    void cancelRetry() {
+        engine.handler.removeCallbacks(retry);
     }
 
     private void clear() {
@@ -115,19 +269,27 @@ class DownloadJob implements Runnable {
 
     private void onStateChanged(int state, boolean updateDb) {
         info.state = state;
+        notifyReaders();
         if (updateDb) engine.provider.update(info);
         engine.handler.removeCallbacks(changeState);
         engine.handler.post(changeState);
     }
 
-    private void onProgressChanged(long finishedLength, long contentLength) {
-        info.finishedLength = finishedLength;
-        info.contentLength = contentLength;
-        engine.handler.removeCallbacks(changeProgress);
+    /**
+     * post the progress only if the last one has been delivered, the listeners always get the latest progress
+     */
+    private void onProgressChanged() {
+        if (isProgressPosted) return;
+        isProgressPosted = true;
         engine.handler.post(changeProgress);
     }
 
+    boolean isStopped() {
+        return isDeleted || isPaused || isPreempted;
+    }
+
     private boolean prepare() {
+        isPreempted = false;
         if (isDeleted) {
             clear();
             return false;
@@ -141,7 +303,7 @@ class DownloadJob implements Runnable {
             return false;
         } else {
             onStateChanged(DownloadState.STATE_RUNNING, false);
-            onProgressChanged(info.finishedLength, info.contentLength);
+            onProgressChanged();
             if (engine.interceptors != null) {
                 for (DownloadManager.Interceptor interceptor : engine.interceptors) {
                     interceptor.updateDownloadInfo(info);
@@ -156,73 +318,1088 @@ class DownloadJob implements Runnable {
 
     @Override
     public void run() {
-        if (!prepare()) return;
-        long finishedLength = info.finishedLength;
-        long contentLength = info.contentLength;
-        HttpURLConnection connection = null;
-        InputStream inputStream = null;
-        RandomAccessFile randomAccessFile = null;
+        DownloadEngine engine = this.engine;
+        boolean async = false;
         try {
-            connection = (HttpURLConnection) new URL(info.url).openConnection();
-            connection.setAllowUserInteraction(true);
-            connection.setConnectTimeout(5000);
-            connection.setReadTimeout(5000);
-            connection.setRequestMethod("GET");
-            if (finishedLength != 0 && contentLength > 0) {
-                connection.setRequestProperty("Range", "bytes=" + finishedLength + "-" + contentLength);
+            async = runJob();
+        } finally {
+            if (!async) onStopped(engine);
+        }
+    }
+
+    /**
+     * give the slot back, a preempted job waits for a slot again, in the place of its priority
+     */
+    private void onStopped(DownloadEngine engine) {
+        engine.scheduler.onJobStopped(this, isPreempted && info != null && info.state == DownloadState.STATE_WAITING);
+    }
+
+    /**
+     * @return true if the job goes on with the selector, it gives the slot back by itself
+     */
+    private boolean runJob() {
+        DownloadEngine engine = this.engine;  // cleared by the state change of a finished or deleted job
+        if (!prepare()) return false;
+        checkpoint = info.finishedLength;
+        mirrors = new MirrorSet(info.url, info.mirrors);
+        hedger = new RequestHedger(engine, mirrors, requester);
+        synchronized (digestLock) {
+            pieces = null;
+            if (info.checksum == null) {
+                digest = null;
             } else {
-                contentLength = connection.getContentLength();
-                if (contentLength == -1) {
-                    contentLength = Long.parseLong(connection.getHeaderField("Content-Length"));
-                }
-            }
-            int responseCode = connection.getResponseCode();
-            if (contentLength > 0 && (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_PARTIAL)) {
-                inputStream = connection.getInputStream();
-                File file = new File(info.path);
-                randomAccessFile = new RandomAccessFile(file, "rw");
-                randomAccessFile.seek(finishedLength);
-                byte[] buffer = new byte[MIN_READ_STEP];
-                int len;
-                int buck = 0;
-                long bytesRead = finishedLength;
-                while (!this.isDeleted && !this.isPaused && (len = inputStream.read(buffer)) != -1) {
-                    randomAccessFile.write(buffer, 0, len);
-                    bytesRead += len;
-                    finishedLength = bytesRead;
-                    onProgressChanged(finishedLength, contentLength);
-                    buck += len;
-                    if (buck >= MIN_STORE_STEP) {
-                        buck = 0;
-                        randomAccessFile.getFD().sync();
-                        engine.provider.update(info);
-                    }
+                digest = info.finishedLength > 0 ? StreamDigest.restore(info.checksumAlgorithm, info.digestState)
+                        : StreamDigest.create(info.checksumAlgorithm);
+            }
+        }
+        DownloadInfo source = this.source;
+        this.source = null;
+        if (info.payloadListener == null && (source != null
+                || (info.segments == null && info.finishedLength == 0 && engine.isDeduplicating)) && reuse(engine, source)) {
+            return false;
+        }
+        if (info.segments == null && info.finishedLength > 0 && info.contentLength > 0) {
+            // resume the job which was stored without segments
+            info.segments = new ArrayList<>();
+            info.segments.add(new DownloadSegment(0, info.contentLength - 1, info.finishedLength));
+        }
+        // a transport set by the user may do more than plain http, such as authentication
+        if (engine.engineMode == DownloadManager.ENGINE_MODE_SELECTOR && engine.transport instanceof HttpTransport
+                && isSelectable()) {
+            selectorWorker = new SelectorWorker(this, engine);
+            selectorWorker.start();
+            return true;
+        }
+        for (int restarts = 0; ; restarts++) {
+            TransportResponse response = null;
+            DownloadSink sink = null;
+            boolean restart = false;
+            try {
+                // the segments of a resume are checked before opening their connections, the mirrors check them anyway,
+                // a new delta job needs the length before any response for matching the old file
+                firstLease = null;
+                boolean isDelta = info.segments == null && info.deltaManifest != null;
+                if (!probe(engine, isDelta || (info.segments != null && info.segmentCount > 1 && !mirrors.hasMirrors()))
+                        && info.segments == null) {
+                    response = executeFirst();
+                }
+                sink = openSink();
+                if (!reserveSpace(sink)) {
+                    onStateChanged(DownloadState.STATE_WAITING, false);
+                    engine.waitForSpace(this);
+                    return false;
+                }
+                if (isDelta && response == null) applyDelta(engine, sink);
+                download(sink, response, firstLease);
+                response = null;
+                for (int round = 0; round < MAX_PIECE_ROUNDS && !isStopped() && reopenPieces(sink); round++) {
+                    download(sink, null, null);
                 }
-                connection.disconnect();
+                onTransferStopped(sink);
+            } catch (ResourceChangedException e) {
+                restart = restarts < MAX_RESTARTS && !isStopped();
+                if (!restart) onTransferFailed(sink, e);
+            } catch (final Exception e) {
+                onTransferFailed(sink, e);
+            } finally {
+                if (response != null)
+                    response.abort();  // not handed to a worker
+                closeSink(engine, sink);
+            }
+            if (!restart) return false;
+            restart(engine);
+        }
+    }
+
+    /**
+     * finish a new job from the file of a finished download of the same url or checksum, by a hard link or a copy,
+     * the file is verified as if it was downloaded, the job goes on with the network if it is not right
+     *
+     * @param source the finished job this one followed, null for finding one in the index
+     * @return true if the job is finished
+     */
+    private boolean reuse(DownloadEngine engine, DownloadInfo source) {
+        if (source == null) {
+            source = engine.contents.find(info, engine.urlDeduplicationAge);
+        } else if (!ContentIndex.isAvailable(source, info)) {
+            source = null;
+        }
+        if (source == null) return false;
+        File file = new File(info.path);
+        if (file.exists() && !file.delete()) return false;
+        DownloadSink sink = null;
+        try {
+            if (!link(new File(source.path), file)) copy(new File(source.path), file);
+            info.contentLength = source.contentLength;
+            if (info.url.equals(source.url)) {
+                info.eTag = source.eTag;
+                info.lastModified = source.lastModified;
+            }
+            info.segments = new ArrayList<>();
+            info.segments.add(new DownloadSegment(0, info.contentLength - 1, info.contentLength));
+            info.finishedLength = info.contentLength;
+            sink = openSink();
+            preparePieces(sink);
+            if (verify(sink)) {
+                engine.deduplicatedBytes.addAndGet(info.contentLength);
                 if (isDeleted) {
                     clear();
-                } else if (this.isPaused) {
-                    onStateChanged(DownloadState.STATE_PAUSED, true);
                 } else {
+                    sink.sync();
                     info.finishTime = System.currentTimeMillis();
                     onStateChanged(DownloadState.STATE_FINISHED, true);
                 }
-            } else {
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeSink(engine, sink);
+        }
+        restart(engine);
+        return false;
+    }
+
+    /**
+     * @return false if the file system can not link them, such as the files on different storages
+     */
+    private static boolean link(File source, File target) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        try {
+            Os.link(source.getPath(), target.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    /**
+     * copy by the kernel without passing the bytes through the java heap
+     */
+    private static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(target);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; ) {
+                long count = channel.transferTo(position, size - position, out.getChannel());
+                if (count <= 0) throw new EOFException("file is changed while copying at " + position);
+                position += count;
+            }
+            out.getFD().sync();
+        } finally {
+            in.close();
+            if (out != null) out.close();
+        }
+    }
+
+    private boolean isSelectable() {
+        if (!SelectorEngine.supports(info.url)) return false;
+        if (info.segments == null && info.deltaManifest != null) return false;  // the old file is matched by a thread
+        if (info.mirrors == null) return true;
+        for (String mirror : info.mirrors) {
+            if (!SelectorEngine.supports(mirror)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * the probe stage, learn the length, range support, validators and redirects of the resource from the cache,
+     * or by a 0-0 range request, a new job missing the cache learns them from its first response instead
+     *
+     * @param request ask the server if the cache misses
+     * @return true if the resource is known
+     */
+    boolean probe(DownloadEngine engine, boolean request) throws IOException {
+        location = null;
+        acceptsRanges = false;
+        CapabilityCache.Capability capability = engine.capabilities.get(info.url);
+        if (capability == null && request) {
+            TransportResponse response = engine.transport.execute(new TransportRequest.Builder(info.url)
+                    .header("Range", "bytes=0-0")
+                    .build());
+            try {
+                int responseCode = response.code();
+                long length = getContentLength(response.header("Content-Range"), response.header("Content-Length"));
+                if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new HttpStatusException(responseCode);
+                }
+                if (length <= 0) throw new IOException("unknown content length");
+                capability = new CapabilityCache.Capability(response.url(), responseCode == HttpURLConnection.HTTP_PARTIAL,
+                        length, response.header("ETag"), response.header("Last-Modified"));
+                engine.capabilities.put(info.url, capability);
+            } finally {
+                response.close();
+            }
+        }
+        if (capability == null) return false;
+        if (info.segments == null) {
+            int segmentCount = capability.acceptsRanges ? info.segmentCount : 1;
+            info.contentLength = capability.contentLength;
+            info.finishedLength = 0;
+            info.eTag = capability.eTag;
+            info.lastModified = capability.lastModified;
+            info.segments = DownloadSegment.split(capability.contentLength, segmentCount);
+        } else if (capability.contentLength != info.contentLength || !isSameResource(capability.eTag, capability.lastModified)
+                || (!capability.acceptsRanges && info.finishedLength > 0)) {
+            throw new ResourceChangedException("resource is changed since it was stored");
+        }
+        location = capability.url;
+        acceptsRanges = capability.acceptsRanges;
+        return true;
+    }
+
+    /**
+     * the delta stage of a new job, copy the blocks of the new version found in the old file into the sink,
+     * the segments cover only the missing ranges, the blocks double as pieces unless the task has a manifest,
+     * the job goes on in full if the server ignores ranges or the manifest is of another length
+     */
+    private void applyDelta(DownloadEngine engine, DownloadSink sink) throws IOException {
+        DeltaManifest manifest = info.deltaManifest;
+        File base = new File(info.deltaBase);
+        if (!acceptsRanges || manifest.length != info.contentLength || !base.isFile()
+                || base.getCanonicalPath().equals(new File(info.path).getCanonicalPath())) return;
+        BitSet found = new DeltaMatcher(manifest).match(base, sink);
+        String blocks = PieceVerifier.encode(found, manifest.getBlockCount());
+        long savedLength = (long) found.cardinality() * manifest.blockSize;  // only whole blocks are matched
+        sink.sync();  // the copied blocks must be stored before they count as finished
+        synchronized (info.segments) {
+            if (new PieceVerifier(manifest.toPieceManifest(), info.contentLength, blocks).reopen(info.segments) < 0) {
+                info.segments.clear();
+                info.segments.add(new DownloadSegment(0, info.contentLength - 1, info.contentLength));
+            }
+            info.finishedLength = savedLength;
+        }
+        if (info.pieceManifest == null) {
+            info.pieceManifest = manifest.toPieceManifest();
+            info.pieces = blocks;
+        }
+        engine.deltaSavedBytes.addAndGet(savedLength);
+        engine.deltaFetchedBytes.addAndGet(info.contentLength - savedLength);
+        engine.provider.update(info);
+        onProgressChanged();
+        notifyReaders();
+    }
+
+    /**
+     * ask the mirrors in turn for the first response, until one of them gives it
+     *
+     * @return the response of firstLease
+     */
+    private TransportResponse executeFirst() throws IOException {
+        firstLease = mirrors.acquire();
+        while (true) {
+            TransportResponse response = null;
+            try {
+                RequestHedger.Attempt attempt = hedger.execute(firstLease, info.segmentCount > 1 ? "bytes=0-" : null);
+                firstLease = attempt.lease;
+                response = attempt.get();
+                onFirstResponse(firstLease.mirror, response.code(), response.url(), response.header("Content-Range"),
+                        response.header("Content-Length"), response.header("Accept-Ranges"), response.header("ETag"),
+                        response.header("Last-Modified"));
+                return response;
+            } catch (IOException e) {
+                if (response != null) response.abort();
+                if (!mirrors.hasMirrors() || (firstLease = mirrors.fail(firstLease)) == null) throw e;
+            }
+        }
+    }
+
+    /**
+     * decide the segments by the first response, and keep what it tells about the resource for resuming and the later jobs,
+     * the validators and the capabilities are kept only for the url of the task, the mirrors may tag it differently
+     *
+     * @param url where the redirects lead
+     */
+    void onFirstResponse(MirrorSet.Mirror mirror, int responseCode, String url, String contentRange, String contentLength,
+                         String acceptRanges, String eTag, String lastModified) throws IOException {
+        long length = getContentLength(contentRange, contentLength);
+        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            throw new HttpStatusException(responseCode);
+        }
+        if (length <= 0) throw new IOException("unknown content length");
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+            ContentRange range = ContentRange.parse(contentRange);
+            if (range == null || range.first != 0) throw new IOException("unexpected content range: " + contentRange);
+        }
+        // only the server which supports range requests can be downloaded with several segments
+        int segmentCount = responseCode == HttpURLConnection.HTTP_PARTIAL ? info.segmentCount : 1;
+        info.contentLength = length;
+        info.finishedLength = 0;
+        info.segments = DownloadSegment.split(length, segmentCount);
+        if (!mirror.isPrimary) return;
+        info.eTag = eTag;
+        info.lastModified = lastModified;
+        location = url;
+        // a full response to a request without range tells nothing about range support
+        if (info.segmentCount > 1 || acceptRanges != null) {
+            boolean acceptsRanges = responseCode == HttpURLConnection.HTTP_PARTIAL || "bytes".equalsIgnoreCase(acceptRanges);
+            engine.capabilities.put(info.url, new CapabilityCache.Capability(url, acceptsRanges, length, eTag, lastModified));
+        }
+    }
+
+    /**
+     * the bytes of a segment are appended only if they are the requested range of the stored resource,
+     * a full response means the resource has changed or the server ignored the range,
+     * the response of a mirror is checked by the length only
+     */
+    void checkResponse(DownloadSegment segment, MirrorSet.Mirror mirror, int responseCode, String contentRange,
+                       String contentLength, String eTag, String lastModified) throws IOException {
+        if (!mirror.isPrimary) {
+            eTag = null;
+            lastModified = null;
+        }
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+            // the whole content of the first segment is fine, as long as it is the same resource
+            long length = getContentLength(null, contentLength);
+            if (segment.current == 0 && isSameResource(eTag, lastModified)
+                    && (length < 0 || length == info.contentLength)) return;
+            throw new ResourceChangedException("full response for range from " + segment.current);
+        }
+        if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+            throw new ResourceChangedException("range from " + segment.current + " is not satisfiable");
+        }
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            throw new HttpStatusException(responseCode);
+        }
+        ContentRange range = ContentRange.parse(contentRange);
+        if (!isSameResource(eTag, lastModified) || (range != null && range.length >= 0 && range.length != info.contentLength)) {
+            throw new ResourceChangedException("partial response of another resource: " + contentRange);
+        }
+        if (range == null || range.first != segment.current) {
+            throw new IOException("unexpected content range: " + contentRange + ", expected from " + segment.current);
+        }
+    }
+
+    /**
+     * @return false if the validators of the response differ from the stored ones, unknown ones are trusted
+     */
+    private boolean isSameResource(String eTag, String lastModified) {
+        if (info.eTag != null && eTag != null) return info.eTag.equals(eTag);
+        if (info.lastModified != null && lastModified != null) return info.lastModified.equals(lastModified);
+        return true;
+    }
+
+    /**
+     * @return the validator asking the server for the whole content instead of the range if the resource has changed
+     */
+    private String ifRange() {
+        if (info.eTag != null && !info.eTag.startsWith("W/")) return info.eTag;  // a weak one can not be used
+        return info.lastModified;
+    }
+
+    /**
+     * forget the stored bytes of the changed resource, the next request decides the segments again
+     */
+    void restart(DownloadEngine engine) {
+        engine.capabilities.remove(info.url);
+        location = null;
+        info.eTag = null;
+        info.lastModified = null;
+        new File(info.path).delete();
+        generation++;
+        notifyReaders();
+        resetProgress();
+    }
+
+    /**
+     * forget the written bytes, the job downloads all of the content when it runs again
+     */
+    private void resetProgress() {
+        info.segments = null;
+        info.finishedLength = 0;
+        synchronized (digestLock) {
+            if (digest != null) digest = StreamDigest.create(info.checksumAlgorithm);
+            info.digestState = null;
+            pieces = null;
+            info.pieces = null;
+        }
+        engine.provider.update(info);
+        onProgressChanged();
+    }
+
+    /**
+     * store the progress and change the state after all workers stopped
+     */
+    private void onTransferStopped(DownloadSink sink) throws IOException {
+        if (isDeleted) {
+            clear();
+        } else if (this.isPaused) {
+            storeDigest();
+            if (sink != null) sink.sync();
+            onStateChanged(DownloadState.STATE_PAUSED, true);
+        } else if (isPreempted) {
+            storeDigest();
+            if (sink != null) sink.sync();
+            onStateChanged(DownloadState.STATE_WAITING, true);
+        } else if (!verify(sink)) {
+            // starting it again downloads the bad pieces, or all of it if there is no piece to blame
+            if (!reopenPieces(sink)) restart(engine);
+            onStateChanged(DownloadState.STATE_CORRUPTED, true);
+        } else {
+            sink.sync();
+            if (sink instanceof MemorySink) deliver((MemorySink) sink);
+            info.finishTime = System.currentTimeMillis();
+            onStateChanged(DownloadState.STATE_FINISHED, true);
+        }
+    }
+
+    /**
+     * hand the content to the payload listener on the main thread before the state changes,
+     * the buffer goes back to the pool after the call
+     */
+    private void deliver(MemorySink sink) {
+        final ByteBuffer payload = sink.detach();
+        final PayloadListener listener = info.payloadListener;
+        final String key = info.key;
+        final BufferPool pool = engine.bufferPool;
+        engine.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onPayload(key, payload.asReadOnlyBuffer());
+                } finally {
+                    pool.release(payload);
+                }
+            }
+        });
+    }
+
+    /**
+     * retry after the backoff if the error is worth it, the job gives its slot back meanwhile,
+     * and the retry resumes from the stored progress
+     */
+    private void onTransferFailed(DownloadSink sink, Exception error) {
+        if (isStopped()) {  // the error is of the connection aborted by the pause, the deletion or the preemption
+            try {
+                onTransferStopped(sink);
+            } catch (IOException e) {
                 onStateChanged(DownloadState.STATE_FAILED, true);
             }
-        } catch (final Exception e) {
+            return;
+        }
+        storeDigest();
+        try {
+            if (sink != null)
+                sink.sync();  // the stored progress must not be ahead of the file
+        } catch (IOException ignored) {
+        }
+        if (info.finishedLength > checkpoint) retries = 0;  // the network worked for a while
+        RetryPolicy policy = info.retryPolicy != null ? info.retryPolicy : engine.retryPolicy;
+        long delay = policy.getDelay(retries, error);
+        if (delay < 0) {
             onStateChanged(DownloadState.STATE_FAILED, true);
+            return;
+        }
+        retries++;
+        onStateChanged(DownloadState.STATE_WAITING, true);
+        engine.handler.postDelayed(retry, delay);
+    }
+
+    /**
+     * called off the loop once the selector worker is finished, the job changes its state and gives the slot back
+     *
+     * @param sink  null if it was not opened
+     * @param error null if the transfer stopped without one
+     */
+    void onSelectorStopped(DownloadEngine engine, DownloadSink sink, IOException error, boolean isWaitingForSpace) {
+        selectorWorker = null;
+        try {
+            if (isWaitingForSpace && !isStopped()) {
+                onStateChanged(DownloadState.STATE_WAITING, false);
+                engine.waitForSpace(this);
+            } else if (error != null) {
+                onTransferFailed(sink, error);
+            } else {
+                if (!isStopped() && !isSegmentsFinished()) {
+                    throw new EOFException("segment is not finished");
+                }
+                onTransferStopped(sink);
+            }
+        } catch (IOException e) {
+            onTransferFailed(sink, e);
         } finally {
+            closeSink(engine, sink);
+            onStopped(engine);
+        }
+    }
+
+    void closeSink(DownloadEngine engine, DownloadSink sink) {
+        try {
+            if (sink != null)
+                sink.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        engine.spaceLedger.release(reservedLength);
+        reservedLength = 0;
+        // the bytes in memory are gone with the sink, the stored progress must not claim them
+        if (sink instanceof MemorySink && !((MemorySink) sink).isDetached() && info != null) resetProgress();
+    }
+
+    /**
+     * decide the sink by the known length, the content small enough is kept in memory for the payload listener
+     */
+    boolean isInMemory() {
+        info.isInMemory = info.payloadListener != null && info.contentLength > 0 && info.contentLength <= engine.memoryThreshold;
+        return info.isInMemory;
+    }
+
+    private DownloadSink openSink() throws IOException {
+        if (isInMemory()) return new MemorySink(engine.bufferPool, info.contentLength);
+        File file = new File(info.path);
+        if (engine.writeMode == DownloadManager.WRITE_MODE_MAPPED) {
+            return new MappedSink(file, info.contentLength, engine.mapWindowSize, engine.mapRemapPolicy);
+        }
+        return new FileSink(file);
+    }
+
+    /**
+     * reserve the space of the whole content before transferring, the reservation is kept in the ledger
+     * until the file system counts it, that is after fallocate or when the job stops
+     *
+     * @return false if the storage can not hold the content
+     */
+    boolean reserveSpace(DownloadSink sink) throws IOException {
+        if (sink instanceof MemorySink) return true;
+        File file = new File(info.path);
+        long length = info.contentLength - info.finishedLength;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && file.length() >= info.contentLength) {
+            length = 0;  // allocated by the last run
+        }
+        if (!engine.spaceLedger.reserve(file.getAbsoluteFile().getParentFile(), length)) return false;
+        reservedLength = length;
+        try {
+            if (sink.allocate(info.contentLength)) {
+                engine.spaceLedger.release(reservedLength);
+                reservedLength = 0;
+            }
+        } catch (InsufficientSpaceException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * download all unfinished segments, at most segmentCount of them at the same time,
+     * the current thread downloads the first one
+     *
+     * @param response opened response for the first segment, may be null
+     * @param lease    mirror of the response
+     */
+    private void download(DownloadSink sink, TransportResponse response, MirrorSet.Lease lease) throws Exception {
+        preparePieces(sink);
+        int workerCount = Math.min(info.segmentCount, collectSegments());
+        DownloadSegment first = pollSegment();
+        if (first == null) {
+            if (response != null) response.abort();
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>();
+        synchronized (info.segments) {
+            workers = futures;
+            workerSink = sink;
+        }
+        for (int i = 1; i < workerCount; i++) {
+            DownloadSegment segment = nextSegment();
+            synchronized (info.segments) {
+                futures.add(engine.segmentExecutor.submit(new SegmentWorker(this, sink, segment, null, null)));
+            }
+        }
+        Exception error = null;
+        Error fatal = null;  // rethrown once every worker is joined
+        try {
+            new SegmentWorker(this, sink, first, response, lease).call();
+        } catch (Exception e) {
+            error = e;
+        }
+        for (int i = 0; ; i++) {  // a reader may add workers meanwhile
+            Future<Void> future;
+            synchronized (info.segments) {
+                if (i == futures.size()) {
+                    workers = null;
+                    workerSink = null;
+                    break;
+                }
+                future = futures.get(i);
+            }
             try {
-                if (randomAccessFile != null)
-                    randomAccessFile.close();
-                if (inputStream != null)
-                    inputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    if (fatal == null) fatal = (Error) cause;
+                } else if (error == null) {
+                    error = cause instanceof Exception ? (Exception) cause : new IOException(cause);
+                }
+            }
+        }
+        if (fatal != null) throw fatal;
+        if (error != null) throw error;
+        if (isStopped()) return;
+        if (!isSegmentsFinished()) throw new EOFException("segment is not finished");
+    }
+
+    /**
+     * collect the unfinished segments of the run, and start the steps and the abort flag over
+     *
+     * @return count of the pending segments
+     */
+    int collectSegments() {
+        synchronized (info.segments) {
+            DownloadSegment.compact(info.segments);
+            pendingSegments.clear();
+            activeSegments.clear();
+            for (DownloadSegment segment : info.segments) {
+                if (!segment.isFinished()) pendingSegments.add(segment);
+            }
+            step = new AdaptiveStep(engine.minReadStep, engine.maxReadStep, engine.minStoreStep, engine.maxStoreStep, SystemClock.elapsedRealtime());
+            isAborted = false;
+            return pendingSegments.size();
+        }
+    }
+
+    /**
+     * @return the next pending segment, null if there is none
+     */
+    DownloadSegment pollSegment() {
+        synchronized (info.segments) {
+            return pendingSegments.poll();
+        }
+    }
+
+    /**
+     * @return false if the pending segment is taken by a worker already
+     */
+    boolean takeSegment(DownloadSegment segment) {
+        synchronized (info.segments) {
+            return pendingSegments.remove(segment);
+        }
+    }
+
+    /**
+     * the active segments are the ones an idle worker may steal from
+     */
+    void activate(DownloadSegment segment) {
+        synchronized (info.segments) {
+            segment.activate(SystemClock.elapsedRealtime());
+            activeSegments.add(segment);
+        }
+    }
+
+    void deactivate(DownloadSegment segment) {
+        synchronized (info.segments) {
+            activeSegments.remove(segment);
+        }
+    }
+
+    /**
+     * take a pending segment, if there is none, steal the second half of the segment which will be
+     * finished at last, so that an idle worker helps the lagging one
+     *
+     * @return null if there is nothing worth to do
+     */
+    DownloadSegment nextSegment() throws InterruptedException {
+        DownloadSegment stolen = null;
+        synchronized (info.segments) {
+            while (stolen == null) {
+                if (!pendingSegments.isEmpty()) return pendingSegments.poll();
+                if (isStopped() || isAborted) return null;
+                long now = SystemClock.elapsedRealtime();
+                boolean stealable = false;
+                DownloadSegment victim = null;
+                long maxTime = MIN_STEAL_TIME;
+                for (DownloadSegment segment : activeSegments) {
+                    if (segment.remaining() < MIN_STEAL_LENGTH) continue;
+                    stealable = true;
+                    long time = segment.estimateTime(now);
+                    if (time >= maxTime) {
+                        maxTime = time;
+                        victim = segment;
+                    }
+                }
+                if (!stealable) return null;
+                if (victim == null) {  // nobody is lagging yet, keep watching
+                    info.segments.wait(STEAL_INTERVAL);
+                    continue;
+                }
+                // the victim may be writing a chunk right now, no chunk is larger than half of MIN_STEAL_LENGTH
+                stolen = victim.steal(info.segments);
+            }
+        }
+        engine.provider.update(info);
+        return stolen;
+    }
+
+    private void notifyReaders() {
+        if (readerCount == 0) return;
+        synchronized (readLock) {
+            readLock.notifyAll();
+        }
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * block the reader until the byte at the position is written, a reader waiting far ahead of the written bytes
+     * has its range fetched first
+     *
+     * @param info       of the job, kept by the reader after the job is cleared
+     * @param generation of the file opened by the reader, -1 if not opened yet
+     * @return bytes readable from the position, -1 at the end of the content
+     * @throws IOException if the job failed, was deleted, or started over after the reader opened the file
+     */
+    long awaitWritten(DownloadInfo info, long position, int generation) throws IOException {
+        boolean isPrioritized = false;
+        synchronized (readLock) {
+            readerCount++;
+            try {
+                while (true) {
+                    if (isDeleted) throw new IOException("task is deleted");
+                    if (generation >= 0 && generation != this.generation) throw new IOException("task started over");
+                    int state = info.state;
+                    if (state == DownloadState.STATE_FAILED || state == DownloadState.STATE_CORRUPTED) {
+                        throw new IOException("task stopped in state " + state);
+                    }
+                    if (state == DownloadState.STATE_FINISHED) {
+                        return position < info.contentLength ? info.contentLength - position : -1;
+                    }
+                    List<DownloadSegment> segments = info.segments;
+                    if (segments != null) {
+                        if (position >= info.contentLength) return -1;
+                        long end;
+                        synchronized (segments) {
+                            end = DownloadSegment.getWrittenEnd(segments, position);
+                        }
+                        if (end > position) return end - position;
+                        if (!isPrioritized) {
+                            prioritize(info, segments, position);
+                            isPrioritized = true;
+                        }
+                    }
+                    readLock.wait(READ_WAIT_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for " + position);
+            } finally {
+                readerCount--;
+            }
+        }
+    }
+
+    /**
+     * split the segment holding the position, so that its range from the position is fetched by a new connection
+     * if the job has one to spare, or by the next free one, only worth if the segment is far from reaching it
+     */
+    private void prioritize(DownloadInfo info, List<DownloadSegment> segments, long position) {
+        if (info.segmentCount < 2) return;
+        DownloadEngine engine = this.engine;  // nulled once the job is cleared
+        if (engine == null) return;
+        DownloadSegment split = null;
+        synchronized (segments) {
+            for (DownloadSegment segment : segments) {
+                if (position < segment.start || position > segment.end) continue;
+                // the segment may be writing a chunk right now, no chunk is larger than half of MIN_STEAL_LENGTH
+                if (position - segment.current < MIN_STEAL_LENGTH) return;
+                split = segment.splitAt(segments, position);
+                break;
+            }
+            if (split == null) return;
+            if (workers != null && countRunningWorkers() < info.segmentCount && !isStopped() && !isAborted) {
+                workers.add(engine.segmentExecutor.submit(new SegmentWorker(this, workerSink, split, null, null)));
+                return;
             }
-            if (connection != null)
-                connection.disconnect();
+            pendingSegments.addFirst(split);
+            segments.notifyAll();  // an idle worker takes it at once
+        }
+        SelectorWorker worker = selectorWorker;
+        if (worker != null) worker.prioritize(split);
+    }
+
+    /**
+     * @return connections of the thread mode, the worker on the job's thread is counted until the others are joined,
+     * an idle worker waiting to steal holds its connection slot as well, guarded by info.segments
+     */
+    private int countRunningWorkers() {
+        int count = 1;
+        for (Future<Void> worker : workers) {
+            if (!worker.isDone()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * count the written data of the segment, adapt the steps and store the progress every store step
+     *
+     * @param requested bytes asked for by the read
+     */
+    void onWritten(DownloadSink sink, DownloadSegment segment, long requested, long len) throws IOException {
+        long position = segment.current;
+        boolean store = count(segment, requested, len);
+        catchUp(sink, position, position + len - 1);
+        if (store) store(sink);
+    }
+
+    /**
+     * count the written data of the segment and adapt the steps
+     *
+     * @return true if the progress is to be stored
+     */
+    boolean count(DownloadSegment segment, long requested, long len) {
+        boolean store;
+        synchronized (info.segments) {
+            long now = SystemClock.elapsedRealtime();
+            segment.onWritten(len, now);
+            step.onRead(requested, len, now);
+            info.finishedLength += len;
+            unstoredLength += len;
+            store = unstoredLength >= step.getStoreStep();
+            if (store) unstoredLength = 0;
+        }
+        engine.concurrency.onTransferred(len);
+        onProgressChanged();
+        notifyReaders();
+        return store;
+    }
+
+    void store(DownloadSink sink) throws IOException {
+        storeDigest();
+        sink.sync();
+        engine.provider.update(info);
+    }
+
+    /**
+     * hash the bytes about to be counted for the segment if they go on from the hashed prefix,
+     * the ones before it are hashed already, the ones after it are read back once the prefix reaches them
+     */
+    void hash(long position, byte[] buffer, int offset, int length) {
+        synchronized (digestLock) {
+            if (pieces != null) pieces.hash(position, buffer, offset, length);
+            if (digest == null) return;
+            long skip = digest.getCount() - position;
+            if (skip < 0 || skip >= length) return;
+            digest.update(buffer, offset + (int) skip, length - (int) skip);
+        }
+    }
+
+    /**
+     * hash the remaining bytes of the buffer like the array, the position of the buffer is kept
+     */
+    void hash(long position, ByteBuffer buffer) {
+        synchronized (digestLock) {
+            if (pieces != null) pieces.hash(position, buffer);
+            if (digest == null) return;
+            long skip = digest.getCount() - position;
+            if (skip < 0 || skip >= buffer.remaining()) return;
+            digest.update(buffer, buffer.position() + (int) skip, buffer.remaining() - (int) skip);
+        }
+    }
+
+    /**
+     * hash the written bytes the prefix and the pieces between the positions have reached but nobody hashed,
+     * those of the later segments and of WRITE_MODE_TRANSFER, read back from the sink while they are still in the page cache,
+     * the digests are not locked while reading, the writers hashing meanwhile never wait for the storage
+     */
+    void catchUp(DownloadSink sink, long from, long to) throws IOException {
+        ByteBuffer buffer = null;
+        try {
+            while (true) {
+                long position;
+                long limit;
+                synchronized (digestLock) {
+                    position = pieces == null ? -1 : pieces.findUnhashed(info.segments, from, to);
+                    if (position >= 0) {
+                        limit = Math.min(getWrittenEnd(position), pieces.limit(position));
+                    } else if (digest != null) {
+                        position = digest.getCount();
+                        limit = getWrittenEnd(position);
+                    } else {
+                        return;
+                    }
+                }
+                if (limit <= position) return;
+                if (buffer == null) buffer = engine.bufferPool.acquireBuffer();
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+                if (sink.read(position, buffer) <= 0) throw new EOFException("written bytes are missing at " + position);
+                buffer.flip();
+                hash(position, buffer);  // skips the bytes hashed by others meanwhile
+            }
+        } finally {
+            if (buffer != null) engine.bufferPool.release(buffer);
+        }
+    }
+
+    private long getWrittenEnd(long position) {
+        synchronized (info.segments) {
+            return DownloadSegment.getWrittenEnd(info.segments, position);
+        }
+    }
+
+    /**
+     * a reader may split the segments at any time, even after the workers are done
+     */
+    private boolean isSegmentsFinished() {
+        synchronized (info.segments) {
+            for (DownloadSegment segment : info.segments) {
+                if (!segment.isFinished()) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * keep the digest of the prefix and the bitmap of the verified pieces with the progress, a resume goes on from them,
+     * called before syncing the sink, a piece is stored as verified only after its bytes are
+     */
+    private void storeDigest() {
+        synchronized (digestLock) {
+            if (digest != null) info.digestState = digest.getState();
+            if (pieces != null) info.pieces = pieces.getState();
+        }
+    }
+
+    /**
+     * start verifying the pieces once the length is known, and verify the written ones which are not yet,
+     * such as those being written when the app was killed, they are read back from the file
+     */
+    void preparePieces(DownloadSink sink) throws IOException {
+        synchronized (digestLock) {
+            if (info.pieceManifest == null) return;
+            if (pieces == null) {
+                if (!info.pieceManifest.matches(info.contentLength)) {
+                    throw new IOException("pieces do not match the content length " + info.contentLength);
+                }
+                pieces = new PieceVerifier(info.pieceManifest, info.contentLength, info.pieces);
+            }
+        }
+        catchUp(sink, 0, info.contentLength - 1);
+    }
+
+    /**
+     * called after all segments are finished, the pieces which are bad or missing become segments again,
+     * the verified ones are kept
+     *
+     * @return true if some pieces are to be downloaded again
+     */
+    boolean reopenPieces(DownloadSink sink) throws IOException {
+        if (info.pieceManifest == null) return false;
+        catchUp(sink, 0, info.contentLength - 1);
+        synchronized (digestLock) {
+            if (pieces == null) return false;
+            long first;
+            synchronized (info.segments) {
+                first = pieces.reopen(info.segments);
+                if (first < 0) return false;
+                long finishedLength = 0;
+                for (DownloadSegment segment : info.segments) {
+                    finishedLength += segment.current - segment.start;
+                }
+                info.finishedLength = finishedLength;
+            }
+            // the prefix has hashed the bad bytes, it is hashed again from the file once they are fixed
+            if (digest != null && digest.getCount() > first) {
+                digest = StreamDigest.create(info.checksumAlgorithm);
+                info.digestState = null;
+            }
+            info.pieces = pieces.getState();
+        }
+        engine.provider.update(info);
+        onProgressChanged();
+        return true;
+    }
+
+    /**
+     * @return true if the task has no checksum or manifest, or the content matches them
+     */
+    private boolean verify(DownloadSink sink) throws IOException {
+        catchUp(sink, 0, info.contentLength - 1);
+        synchronized (digestLock) {
+            if (pieces != null && !pieces.isVerified()) return false;
+            if (digest == null) return true;
+            if (digest.getCount() != info.contentLength) return false;
+            return StreamDigest.matches(digest.digest(), info.checksum);
+        }
+    }
+
+    /**
+     * @return bytes to read at a time, no more than the buffer, the rest of the segment and the speed limits
+     */
+    int readStep(DownloadSegment segment, int capacity) {
+        int readStep;
+        synchronized (info.segments) {
+            readStep = step.getReadStep();
+        }
+        readStep = Math.min(readStep, Math.min(speedLimiter.getChunkLimit(), engine.speedLimiter.getChunkLimit()));
+        return (int) Math.min(Math.min(readStep, capacity), segment.remaining());
+    }
+
+    /**
+     * wait for the speed limits after reading the bytes, the task limit first, then the engine limit
+     */
+    void throttle(long len) throws InterruptedIOException {
+        speedLimiter.acquire(len);
+        synchronized (throttleLock) {  // one waiter for every job in the engine's limiter, so the jobs share it equally
+            engine.speedLimiter.acquire(len);
+        }
+    }
+
+    /**
+     * reserve the bytes read on a selector loop, which must not wait
+     *
+     * @return nanoseconds to wait for the speed limits before reading more
+     */
+    long reserveThrottle(long len) {
+        return Math.max(speedLimiter.reserve(len), engine.speedLimiter.reserve(len));
+    }
+
+    void setSpeedLimit(long speedLimit) {
+        info.speedLimit = speedLimit;
+        speedLimiter.setRate(speedLimit);
+    }
+
+    /**
+     * @return the current read chunk if the job is running, otherwise 0
+     */
+    int getReadStep() {
+        List<DownloadSegment> segments = info.segments;
+        if (segments == null || !isRunning()) return 0;
+        synchronized (segments) {
+            return step == null ? 0 : step.getReadStep();
+        }
+    }
+
+    /**
+     * a range of the stored resource is asked with If-Range, so that a changed one is sent in whole
+     */
+    TransportRequest request(MirrorSet.Lease lease, String range) {
+        if (!lease.mirror.isPrimary) {
+            return new TransportRequest.Builder(lease.mirror.url)
+                    .header("Range", range)
+                    .build();
+        }
+        return new TransportRequest.Builder(location != null ? location : info.url)
+                .header("Range", range)
+                .header("If-Range", range != null && info.segments != null ? ifRange() : null)
+                .build();
+    }
+
+    private static long getContentLength(String contentRange, String contentLength) {
+        if (contentRange != null) {
+            int index = contentRange.lastIndexOf('/');
+            try {
+                if (index >= 0) return Long.parseLong(contentRange.substring(index + 1).trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        try {
+            if (contentLength != null) return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException ignored) {
         }
+        return -1;
     }
 }
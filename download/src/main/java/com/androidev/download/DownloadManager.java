@@ -13,6 +13,61 @@ public class DownloadManager {
 
     public final static String INTENT_ACTION_DOWNLOAD = "com.androidev.download";
 
+    /**
+     * write with RandomAccessFile from heap byte arrays, default mode
+     */
+    public final static int WRITE_MODE_STREAM = 0;
+
+    /**
+     * positional FileChannel writes from pooled direct buffers
+     */
+    public final static int WRITE_MODE_CHANNEL = 1;
+
+    /**
+     * FileChannel.transferFrom the response channel, no buffer is handled by the job
+     */
+    public final static int WRITE_MODE_TRANSFER = 2;
+
+    /**
+     * write through memory mapped windows of the preallocated file, leave flushing to the page cache writeback
+     */
+    public final static int WRITE_MODE_MAPPED = 3;
+
+    /**
+     * a filled window is dropped without flushing, the page cache writes it back
+     */
+    public final static int REMAP_LAZY = 0;
+
+    /**
+     * a filled window is forced to the storage before mapping the next one
+     */
+    public final static int REMAP_FORCE = 1;
+
+    /**
+     * every running task holds a thread blocked in reading, default mode
+     */
+    public final static int ENGINE_MODE_THREAD = 0;
+
+    /**
+     * the running tasks of http urls are multiplexed by a few selector threads with non-blocking sockets,
+     * for many small downloads at the same time, https urls and urls behind a proxy still go through the transport
+     */
+    public final static int ENGINE_MODE_SELECTOR = 1;
+
+    /**
+     * priorities of the tasks, any other value is allowed, the higher runs first
+     */
+    public final static int PRIORITY_LOW = -10;
+    public final static int PRIORITY_NORMAL = 0;
+    public final static int PRIORITY_HIGH = 10;
+
+    /**
+     * algorithms of the expected checksum of a task, hashed while the content is written
+     */
+    public final static String CHECKSUM_MD5 = "MD5";
+    public final static String CHECKSUM_SHA1 = "SHA-1";
+    public final static String CHECKSUM_SHA256 = "SHA-256";
+
     private static class DownloadManagerHolder {
         private static DownloadManager instance = new DownloadManager();
     }
@@ -27,6 +82,10 @@ public class DownloadManager {
         engine.initialize(context);
     }
 
+    DownloadEngine getEngine() {
+        return engine;
+    }
+
     public static DownloadManager getInstance() {
         return DownloadManagerHolder.instance;
     }
@@ -61,6 +120,191 @@ public class DownloadManager {
         engine.removeDownloadJobListener(downloadJobListener);
     }
 
+    /**
+     * @param writeMode one of WRITE_MODE_STREAM, WRITE_MODE_CHANNEL, WRITE_MODE_TRANSFER, WRITE_MODE_MAPPED,
+     *                  takes effect on the next started segment, or the next started job for WRITE_MODE_MAPPED
+     */
+    public void setWriteMode(int writeMode) {
+        Assert.assertNotNull(engine);
+        if (writeMode < WRITE_MODE_STREAM || writeMode > WRITE_MODE_MAPPED) {
+            throw new IllegalArgumentException("unknown write mode: " + writeMode);
+        }
+        engine.setWriteMode(writeMode);
+    }
+
+    /**
+     * @param windowSize  bytes mapped at a time for each segment in WRITE_MODE_MAPPED
+     * @param remapPolicy REMAP_LAZY or REMAP_FORCE
+     */
+    public void setMapOptions(int windowSize, int remapPolicy) {
+        Assert.assertNotNull(engine);
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("window size must be positive!");
+        }
+        if (remapPolicy != REMAP_LAZY && remapPolicy != REMAP_FORCE) {
+            throw new IllegalArgumentException("unknown remap policy: " + remapPolicy);
+        }
+        engine.setMapOptions(windowSize, remapPolicy);
+    }
+
+    /**
+     * @param maxCount max idle read buffers of each kind kept for reuse, see the pool counters of getStats
+     */
+    public void setBufferPoolSize(int maxCount) {
+        Assert.assertNotNull(engine);
+        if (maxCount < 0) {
+            throw new IllegalArgumentException("max count can't be negative!");
+        }
+        engine.setBufferPoolSize(maxCount);
+    }
+
+    /**
+     * every job grows or shrinks its read chunk and the interval of storing the progress within the bounds,
+     * by the measured throughput, the read chunk can't be larger than 256 KB
+     */
+    public void setStepBounds(int minReadStep, int maxReadStep, long minStoreStep, long maxStoreStep) {
+        Assert.assertNotNull(engine);
+        if (minReadStep <= 0 || minReadStep > maxReadStep || maxReadStep > DownloadJob.MAX_READ_STEP) {
+            throw new IllegalArgumentException("invalid read step bounds!");
+        }
+        if (minStoreStep <= 0 || minStoreStep > maxStoreStep) {
+            throw new IllegalArgumentException("invalid store step bounds!");
+        }
+        engine.setStepBounds(minReadStep, maxReadStep, minStoreStep, maxStoreStep);
+    }
+
+    public DownloadStats getStats() {
+        Assert.assertNotNull(engine);
+        return engine.getStats();
+    }
+
+    /**
+     * @param transport executes the requests of all jobs, HttpTransport by default
+     */
+    public void setTransport(Transport transport) {
+        Assert.assertNotNull(engine);
+        Assert.assertNotNull(transport);
+        engine.setTransport(transport);
+    }
+
+    /**
+     * @param speedLimit bytes per second shared by all tasks, 0 means unlimited, takes effect at once
+     */
+    public void setSpeedLimit(long speedLimit) {
+        Assert.assertNotNull(engine);
+        if (speedLimit < 0) {
+            throw new IllegalArgumentException("speed limit can't be negative!");
+        }
+        engine.setSpeedLimit(speedLimit);
+    }
+
+    /**
+     * @param maxConnectionsPerHost connections of the running tasks to a host, a task takes as many as its segments,
+     *                              the hosts having waiting tasks take turns for the free slots
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        Assert.assertNotNull(engine);
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("max connections per host must be positive!");
+        }
+        engine.setMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    /**
+     * @param retryPolicy how the failed tasks are retried, unless the tasks have their own policies,
+     *                    RetryPolicy.NONE fails the tasks at the first error
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        Assert.assertNotNull(engine);
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retry policy can't be null!");
+        }
+        engine.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * @param ttl milliseconds to trust what a server told about a resource, such as the length, range support,
+     *            validators and redirects, so the later tasks and resumes of it skip asking again, 0 disables it
+     */
+    public void setCapabilityTtl(long ttl) {
+        Assert.assertNotNull(engine);
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl can't be negative!");
+        }
+        engine.setCapabilityTtl(ttl);
+    }
+
+    /**
+     * @param delay milliseconds to wait for the response of a request, after which the same range is asked again
+     *              from another mirror, or the same url, the first to answer is kept and the other is closed, 0 disables it
+     */
+    public void setHedgeDelay(long delay) {
+        Assert.assertNotNull(engine);
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay can't be negative!");
+        }
+        engine.setHedgeDelay(delay);
+    }
+
+    /**
+     * @param threshold bytes of the largest content kept in memory for a task with a payload listener,
+     *                  a larger one is written to the file
+     */
+    public void setMemoryThreshold(long threshold) {
+        Assert.assertNotNull(engine);
+        if (threshold < 0 || threshold > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("threshold must be between 0 and Integer.MAX_VALUE!");
+        }
+        engine.setMemoryThreshold(threshold);
+    }
+
+    /**
+     * @param enabled a new task of the same checksum as a finished one is finished from its file,
+     *                by a hard link or a copy, instead of the network, true by default,
+     *                see setUrlDeduplicationAge for the tasks without a checksum
+     */
+    public void setDeduplication(boolean enabled) {
+        Assert.assertNotNull(engine);
+        engine.setDeduplicating(enabled);
+    }
+
+    /**
+     * @param maxAge milliseconds since a finished download of the same url is trusted to be of the same content,
+     *               the url alone does not tell whether the resource has changed, 0 by default for never
+     */
+    public void setUrlDeduplicationAge(long maxAge) {
+        Assert.assertNotNull(engine);
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("max age can't be negative!");
+        }
+        engine.setUrlDeduplicationAge(maxAge);
+    }
+
+    /**
+     * @param minTask the fewest tasks downloading at the same time while there are enough tasks
+     * @param maxTask the most tasks downloading at the same time, tasks are added between the bounds
+     *                while the total speed keeps rising, and removed once it does not
+     */
+    public void setConcurrencyBounds(int minTask, int maxTask) {
+        Assert.assertNotNull(engine);
+        if (minTask < 1 || maxTask < minTask) {
+            throw new IllegalArgumentException("invalid concurrency bounds!");
+        }
+        engine.setConcurrencyBounds(minTask, maxTask);
+    }
+
+    /**
+     * @param engineMode ENGINE_MODE_THREAD or ENGINE_MODE_SELECTOR, takes effect on the next started task,
+     *                   raise the concurrency bounds as well to run many tasks with the selector
+     */
+    public void setEngineMode(int engineMode) {
+        Assert.assertNotNull(engine);
+        if (engineMode != ENGINE_MODE_THREAD && engineMode != ENGINE_MODE_SELECTOR) {
+            throw new IllegalArgumentException("unknown engine mode!");
+        }
+        engine.setEngineMode(engineMode);
+    }
+
     public void setDownloadNotifier(DownloadNotifier downloadNotifier) {
         Assert.assertNotNull(engine);
         engine.setDownloadNotifier(downloadNotifier);
@@ -5,8 +5,10 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -21,7 +23,7 @@ class DownloadProvider {
     }
 
     boolean insert(DownloadInfo info) {
-        if (info == null) return false;
+        if (info == null || !info.isPersistent) return false;
         synchronized (DownloadProvider.class) {
             SQLiteDatabase database = helper.getWritableDatabase();
             ContentValues contentValues = new ContentValues();
@@ -35,8 +37,20 @@ class DownloadProvider {
             contentValues.put(DatabaseHelper.COLUMN_CREATE_TIME, info.createTime);
             contentValues.put(DatabaseHelper.COLUMN_FINISH_TIME, info.finishTime);
             contentValues.put(DatabaseHelper.COLUMN_CONTENT_LENGTH, info.contentLength);
-            contentValues.put(DatabaseHelper.COLUMN_FINISHED_LENGTH, info.finishedLength);
+            contentValues.put(DatabaseHelper.COLUMN_FINISHED_LENGTH, getStoredLength(info));
             contentValues.put(DatabaseHelper.COLUMN_STATE, info.state);
+            contentValues.put(DatabaseHelper.COLUMN_SEGMENT_COUNT, info.segmentCount);
+            contentValues.put(DatabaseHelper.COLUMN_SEGMENTS, encodeSegments(info));
+            contentValues.put(DatabaseHelper.COLUMN_SPEED_LIMIT, info.speedLimit);
+            contentValues.put(DatabaseHelper.COLUMN_PRIORITY, info.priority);
+            contentValues.put(DatabaseHelper.COLUMN_ETAG, info.eTag);
+            contentValues.put(DatabaseHelper.COLUMN_LAST_MODIFIED, info.lastModified);
+            contentValues.put(DatabaseHelper.COLUMN_MIRRORS, encodeMirrors(info));
+            contentValues.put(DatabaseHelper.COLUMN_CHECKSUM_ALGORITHM, info.checksumAlgorithm);
+            contentValues.put(DatabaseHelper.COLUMN_CHECKSUM, info.checksum);
+            contentValues.put(DatabaseHelper.COLUMN_DIGEST_STATE, info.digestState);
+            contentValues.put(DatabaseHelper.COLUMN_PIECE_MANIFEST, PieceManifest.encode(info.pieceManifest));
+            contentValues.put(DatabaseHelper.COLUMN_PIECES, info.pieces);
             long result = database.insert(DatabaseHelper.TABLE_NAME, null, contentValues);
             database.close();
             return result != -1;
@@ -44,7 +58,7 @@ class DownloadProvider {
     }
 
     boolean delete(DownloadInfo info) {
-        if (info == null) return false;
+        if (info == null || !info.isPersistent) return false;
         synchronized (DownloadProvider.class) {
             SQLiteDatabase database = helper.getWritableDatabase();
             String whereClause = DatabaseHelper.COLUMN_KEY + "=?";
@@ -77,6 +91,18 @@ class DownloadProvider {
             final int index_content_length = cursor.getColumnIndex(DatabaseHelper.COLUMN_CONTENT_LENGTH);
             final int index_finished_length = cursor.getColumnIndex(DatabaseHelper.COLUMN_FINISHED_LENGTH);
             final int index_state = cursor.getColumnIndex(DatabaseHelper.COLUMN_STATE);
+            final int index_segment_count = cursor.getColumnIndex(DatabaseHelper.COLUMN_SEGMENT_COUNT);
+            final int index_segments = cursor.getColumnIndex(DatabaseHelper.COLUMN_SEGMENTS);
+            final int index_speed_limit = cursor.getColumnIndex(DatabaseHelper.COLUMN_SPEED_LIMIT);
+            final int index_priority = cursor.getColumnIndex(DatabaseHelper.COLUMN_PRIORITY);
+            final int index_etag = cursor.getColumnIndex(DatabaseHelper.COLUMN_ETAG);
+            final int index_last_modified = cursor.getColumnIndex(DatabaseHelper.COLUMN_LAST_MODIFIED);
+            final int index_mirrors = cursor.getColumnIndex(DatabaseHelper.COLUMN_MIRRORS);
+            final int index_checksum_algorithm = cursor.getColumnIndex(DatabaseHelper.COLUMN_CHECKSUM_ALGORITHM);
+            final int index_checksum = cursor.getColumnIndex(DatabaseHelper.COLUMN_CHECKSUM);
+            final int index_digest_state = cursor.getColumnIndex(DatabaseHelper.COLUMN_DIGEST_STATE);
+            final int index_piece_manifest = cursor.getColumnIndex(DatabaseHelper.COLUMN_PIECE_MANIFEST);
+            final int index_pieces = cursor.getColumnIndex(DatabaseHelper.COLUMN_PIECES);
             while (cursor.moveToNext()) {
                 DownloadInfo info = new DownloadInfo();
                 info.key = cursor.getString(index_key);
@@ -91,6 +117,18 @@ class DownloadProvider {
                 info.contentLength = cursor.getLong(index_content_length);
                 info.finishedLength = cursor.getLong(index_finished_length);
                 info.state = cursor.getInt(index_state);
+                info.segmentCount = Math.max(1, cursor.getInt(index_segment_count));
+                info.segments = DownloadSegment.decode(cursor.getString(index_segments));
+                info.speedLimit = cursor.getLong(index_speed_limit);
+                info.priority = cursor.getInt(index_priority);
+                info.eTag = cursor.getString(index_etag);
+                info.lastModified = cursor.getString(index_last_modified);
+                info.mirrors = decodeMirrors(cursor.getString(index_mirrors));
+                info.checksumAlgorithm = cursor.getString(index_checksum_algorithm);
+                info.checksum = cursor.getString(index_checksum);
+                info.digestState = cursor.getString(index_digest_state);
+                info.pieceManifest = PieceManifest.decode(cursor.getString(index_piece_manifest));
+                info.pieces = cursor.getString(index_pieces);
                 result.add(info);
             }
             cursor.close();
@@ -100,7 +138,7 @@ class DownloadProvider {
     }
 
     boolean update(DownloadInfo info) {
-        if (info == null) return false;
+        if (info == null || !info.isPersistent) return false;
         synchronized (DownloadProvider.class) {
             SQLiteDatabase database = helper.getReadableDatabase();
             ContentValues contentValues = new ContentValues();
@@ -114,8 +152,20 @@ class DownloadProvider {
             contentValues.put(DatabaseHelper.COLUMN_CREATE_TIME, info.createTime);
             contentValues.put(DatabaseHelper.COLUMN_FINISH_TIME, info.finishTime);
             contentValues.put(DatabaseHelper.COLUMN_CONTENT_LENGTH, info.contentLength);
-            contentValues.put(DatabaseHelper.COLUMN_FINISHED_LENGTH, info.finishedLength);
+            contentValues.put(DatabaseHelper.COLUMN_FINISHED_LENGTH, getStoredLength(info));
             contentValues.put(DatabaseHelper.COLUMN_STATE, info.state);
+            contentValues.put(DatabaseHelper.COLUMN_SEGMENT_COUNT, info.segmentCount);
+            contentValues.put(DatabaseHelper.COLUMN_SEGMENTS, encodeSegments(info));
+            contentValues.put(DatabaseHelper.COLUMN_SPEED_LIMIT, info.speedLimit);
+            contentValues.put(DatabaseHelper.COLUMN_PRIORITY, info.priority);
+            contentValues.put(DatabaseHelper.COLUMN_ETAG, info.eTag);
+            contentValues.put(DatabaseHelper.COLUMN_LAST_MODIFIED, info.lastModified);
+            contentValues.put(DatabaseHelper.COLUMN_MIRRORS, encodeMirrors(info));
+            contentValues.put(DatabaseHelper.COLUMN_CHECKSUM_ALGORITHM, info.checksumAlgorithm);
+            contentValues.put(DatabaseHelper.COLUMN_CHECKSUM, info.checksum);
+            contentValues.put(DatabaseHelper.COLUMN_DIGEST_STATE, info.digestState);
+            contentValues.put(DatabaseHelper.COLUMN_PIECE_MANIFEST, PieceManifest.encode(info.pieceManifest));
+            contentValues.put(DatabaseHelper.COLUMN_PIECES, info.pieces);
             String whereClause = DatabaseHelper.COLUMN_KEY + "=?";
             String[] whereArgs = new String[]{info.key};
             int result = database.update(DatabaseHelper.TABLE_NAME, contentValues, whereClause, whereArgs);
@@ -124,7 +174,7 @@ class DownloadProvider {
     }
 
     boolean exists(DownloadInfo info) {
-        if (info == null) return false;
+        if (info == null || !info.isPersistent) return false;
         synchronized (DownloadProvider.class) {
             SQLiteDatabase database = helper.getReadableDatabase();
             String sql = "select count(" + DatabaseHelper.COLUMN_KEY + ") from " +
@@ -141,6 +191,37 @@ class DownloadProvider {
         }
     }
 
+    /**
+     * the bytes in memory are lost with the app, a stored task starts over
+     */
+    private static long getStoredLength(DownloadInfo info) {
+        return info.isInMemory && !info.isFinished() ? 0 : info.finishedLength;
+    }
+
+    /**
+     * segments are updated by several download threads, take a consistent snapshot
+     */
+    private String encodeSegments(DownloadInfo info) {
+        List<DownloadSegment> segments = info.segments;
+        if (segments == null || info.isInMemory) return null;
+        synchronized (segments) {
+            return DownloadSegment.encode(segments);
+        }
+    }
+
+    /**
+     * one url a line
+     */
+    private static String encodeMirrors(DownloadInfo info) {
+        if (info.mirrors == null || info.mirrors.isEmpty()) return null;
+        return TextUtils.join("\n", info.mirrors);
+    }
+
+    private static List<String> decodeMirrors(String text) {
+        if (TextUtils.isEmpty(text)) return null;
+        return new ArrayList<>(Arrays.asList(text.split("\n")));
+    }
+
     private class DatabaseHelper extends SQLiteOpenHelper {
 
         static final String COLUMN_ID = "_id";
@@ -156,10 +237,22 @@ class DownloadProvider {
         static final String COLUMN_CONTENT_LENGTH = "contentLength";
         static final String COLUMN_FINISHED_LENGTH = "finishedLength";
         static final String COLUMN_STATE = "state";
+        static final String COLUMN_SEGMENT_COUNT = "segmentCount";
+        static final String COLUMN_SEGMENTS = "segments";
+        static final String COLUMN_SPEED_LIMIT = "speedLimit";
+        static final String COLUMN_PRIORITY = "priority";
+        static final String COLUMN_ETAG = "eTag";
+        static final String COLUMN_LAST_MODIFIED = "lastModified";
+        static final String COLUMN_MIRRORS = "mirrors";
+        static final String COLUMN_CHECKSUM_ALGORITHM = "checksumAlgorithm";
+        static final String COLUMN_CHECKSUM = "checksum";
+        static final String COLUMN_DIGEST_STATE = "digestState";
+        static final String COLUMN_PIECE_MANIFEST = "pieceManifest";
+        static final String COLUMN_PIECES = "pieces";
 
         private static final String DB_NAME = "download";
         private static final String TABLE_NAME = "download";
-        private static final int DB_VERSION = 1;
+        private static final int DB_VERSION = 9;
 
         DatabaseHelper(Context context) {
             super(context, DB_NAME, null, DB_VERSION);
@@ -174,7 +267,7 @@ class DownloadProvider {
             db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" +
                     COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     COLUMN_KEY + " TEXT, " +
-                    COLUMN_URL + " TEXT UNIQUE NOT NULL, " +
+                    COLUMN_URL + " TEXT NOT NULL, " +
                     COLUMN_NAME + " TEXT NOT NULL, " +
                     COLUMN_PATH + " TEXT, " +
                     COLUMN_SOURCE + " TEXT, " +
@@ -184,13 +277,72 @@ class DownloadProvider {
                     COLUMN_DOWNLOAD_ID + " INTEGER, " +
                     COLUMN_CONTENT_LENGTH + " INTEGER, " +
                     COLUMN_FINISHED_LENGTH + " INTEGER, " +
-                    COLUMN_STATE + " INTEGER)");
+                    COLUMN_STATE + " INTEGER, " +
+                    COLUMN_SEGMENT_COUNT + " INTEGER DEFAULT 1, " +
+                    COLUMN_SEGMENTS + " TEXT, " +
+                    COLUMN_SPEED_LIMIT + " INTEGER DEFAULT 0, " +
+                    COLUMN_PRIORITY + " INTEGER DEFAULT " + DownloadManager.PRIORITY_NORMAL + ", " +
+                    COLUMN_ETAG + " TEXT, " +
+                    COLUMN_LAST_MODIFIED + " TEXT, " +
+                    COLUMN_MIRRORS + " TEXT, " +
+                    COLUMN_CHECKSUM_ALGORITHM + " TEXT, " +
+                    COLUMN_CHECKSUM + " TEXT, " +
+                    COLUMN_DIGEST_STATE + " TEXT, " +
+                    COLUMN_PIECE_MANIFEST + " TEXT, " +
+                    COLUMN_PIECES + " TEXT)");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            db.execSQL("DROP TABLE " + TABLE_NAME);
+            if (oldVersion < 2) {
+                addColumn(db, COLUMN_SEGMENT_COUNT + " INTEGER DEFAULT 1");
+                addColumn(db, COLUMN_SEGMENTS + " TEXT");
+            }
+            if (oldVersion < 3) {
+                addColumn(db, COLUMN_SPEED_LIMIT + " INTEGER DEFAULT 0");
+            }
+            if (oldVersion < 4) {
+                addColumn(db, COLUMN_PRIORITY + " INTEGER DEFAULT " + DownloadManager.PRIORITY_NORMAL);
+            }
+            if (oldVersion < 5) {
+                addColumn(db, COLUMN_ETAG + " TEXT");
+                addColumn(db, COLUMN_LAST_MODIFIED + " TEXT");
+            }
+            if (oldVersion < 6) {
+                addColumn(db, COLUMN_MIRRORS + " TEXT");
+            }
+            if (oldVersion < 7) {
+                addColumn(db, COLUMN_CHECKSUM_ALGORITHM + " TEXT");
+                addColumn(db, COLUMN_CHECKSUM + " TEXT");
+                addColumn(db, COLUMN_DIGEST_STATE + " TEXT");
+            }
+            if (oldVersion < 8) {
+                addColumn(db, COLUMN_PIECE_MANIFEST + " TEXT");
+                addColumn(db, COLUMN_PIECES + " TEXT");
+            }
+            if (oldVersion < 9) {
+                dropUniqueUrl(db);
+            }
+        }
+
+        /**
+         * several tasks may download the same url, sqlite can not drop a constraint, so the table is copied to a new one
+         */
+        private void dropUniqueUrl(SQLiteDatabase db) {
+            String columns = TextUtils.join(", ", new String[]{COLUMN_ID, COLUMN_KEY, COLUMN_URL, COLUMN_NAME, COLUMN_PATH,
+                    COLUMN_SOURCE, COLUMN_EXTRAS, COLUMN_CREATE_TIME, COLUMN_FINISH_TIME, COLUMN_DOWNLOAD_ID,
+                    COLUMN_CONTENT_LENGTH, COLUMN_FINISHED_LENGTH, COLUMN_STATE, COLUMN_SEGMENT_COUNT, COLUMN_SEGMENTS,
+                    COLUMN_SPEED_LIMIT, COLUMN_PRIORITY, COLUMN_ETAG, COLUMN_LAST_MODIFIED, COLUMN_MIRRORS,
+                    COLUMN_CHECKSUM_ALGORITHM, COLUMN_CHECKSUM, COLUMN_DIGEST_STATE, COLUMN_PIECE_MANIFEST, COLUMN_PIECES});
+            String oldTable = TABLE_NAME + "_old";
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + oldTable);
             createTable(db);
+            db.execSQL("INSERT INTO " + TABLE_NAME + "(" + columns + ") SELECT " + columns + " FROM " + oldTable);
+            db.execSQL("DROP TABLE " + oldTable);
+        }
+
+        private void addColumn(SQLiteDatabase db, String definition) {
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + definition);
         }
     }
 }
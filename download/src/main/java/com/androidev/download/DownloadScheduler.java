@@ -0,0 +1,246 @@
+package com.androidev.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * hands the slots of the executor to the waiting jobs, the job of higher priority goes first,
+ * the hosts having waiting jobs of the same priority take turns, and the connections to each host are capped
+ */
+class DownloadScheduler {
+
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+
+    /**
+     * the other work such as updating the database goes first, then the jobs of higher priority,
+     * the jobs of the same priority run in the order they are scheduled
+     */
+    static final Comparator<Runnable> RUN_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            boolean isLeftJob = lhs instanceof DownloadJob;
+            boolean isRightJob = rhs instanceof DownloadJob;
+            if (!isLeftJob || !isRightJob) return isLeftJob == isRightJob ? 0 : (isLeftJob ? 1 : -1);
+            DownloadJob left = (DownloadJob) lhs;
+            DownloadJob right = (DownloadJob) rhs;
+            if (left.getPriority() != right.getPriority()) {
+                return left.getPriority() > right.getPriority() ? -1 : 1;
+            }
+            return left.sequence < right.sequence ? -1 : (left.sequence == right.sequence ? 0 : 1);
+        }
+    };
+
+    private final Executor executor;
+    private int maxTask;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private long sequence;
+
+    // waiting jobs of every host in RUN_ORDER, hosts in the order they take turns
+    private final Map<String, List<DownloadJob>> waitingJobs = new LinkedHashMap<>();
+    private final List<DownloadJob> runningJobs = new ArrayList<>();
+    private final List<DownloadJob> resumedJobs = new ArrayList<>();  // resumed before they stopped running
+    private final Map<String, Integer> hostConnections = new HashMap<>();
+    private String lastHost;
+
+    DownloadScheduler(Executor executor, int maxTask) {
+        this.executor = executor;
+        this.maxTask = maxTask;
+    }
+
+    /**
+     * the running jobs over the new count keep their slots until they stop
+     */
+    synchronized void setMaxTask(int maxTask) {
+        this.maxTask = maxTask;
+        dispatch();
+    }
+
+    /**
+     * @return true if all slots are taken and a waiting job could take one more
+     */
+    synchronized boolean isSaturated() {
+        if (runningJobs.size() < maxTask) return false;
+        for (List<DownloadJob> jobs : waitingJobs.values()) {
+            if (!isHostLimited(jobs.get(0))) return true;
+        }
+        return false;
+    }
+
+    synchronized boolean hasJobs() {
+        return !runningJobs.isEmpty() || !waitingJobs.isEmpty();
+    }
+
+    synchronized void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        dispatch();
+    }
+
+    /**
+     * put the job into the queue of its host, if it can not get a slot soon,
+     * preempt the running job of the lowest priority which is lower than its
+     */
+    synchronized void schedule(DownloadJob job) {
+        if (runningJobs.contains(job)) {
+            if (!resumedJobs.contains(job)) resumedJobs.add(job);
+            return;
+        }
+        if (job.info == null) return;  // finished or deleted
+        remove(job);
+        job.sequence = ++sequence;
+        job.host = hostOf(job.info.url);
+        job.connections = Math.max(1, job.info.segmentCount);
+        add(job);
+        dispatch();
+        if (!isWaiting(job)) return;
+        boolean hostLimited = isHostLimited(job);
+        DownloadJob victim = null;
+        int preempting = 0;
+        for (DownloadJob running : runningJobs) {
+            if (hostLimited && !job.host.equals(running.host)) continue;  // only the host's slot helps
+            if (running.isPreempted()) {
+                preempting++;  // its slot will be given to a waiting job
+                continue;
+            }
+            if (running.getPriority() >= job.getPriority()) continue;
+            if (victim == null || RUN_ORDER.compare(running, victim) > 0) victim = running;
+        }
+        if (victim != null && countAhead(job, hostLimited) >= preempting) {
+            victim.preempt();
+        }
+    }
+
+    /**
+     * the job stopped running, a preempted one waits again in the place it had
+     */
+    synchronized void onJobStopped(DownloadJob job, boolean requeue) {
+        if (!runningJobs.remove(job)) return;
+        int connections = hostConnections.get(job.host) - job.connections;
+        if (connections > 0) {
+            hostConnections.put(job.host, connections);
+        } else {
+            hostConnections.remove(job.host);
+        }
+        if (resumedJobs.remove(job)) {
+            schedule(job);
+        } else {
+            if (requeue) add(job);
+            dispatch();
+        }
+    }
+
+    /**
+     * the waiting job is paused or deleted
+     */
+    synchronized void remove(DownloadJob job) {
+        resumedJobs.remove(job);
+        if (job.host == null) return;
+        List<DownloadJob> jobs = waitingJobs.get(job.host);
+        if (jobs == null || !jobs.remove(job)) return;
+        if (jobs.isEmpty()) waitingJobs.remove(job.host);
+    }
+
+    /**
+     * @return waiting jobs of every host
+     */
+    synchronized Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new HashMap<>();
+        for (Map.Entry<String, List<DownloadJob>> entry : waitingJobs.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().size());
+        }
+        return result;
+    }
+
+    /**
+     * @return connections of the running jobs to every host
+     */
+    synchronized Map<String, Integer> getHostConnections() {
+        return new HashMap<>(hostConnections);
+    }
+
+    private void add(DownloadJob job) {
+        List<DownloadJob> jobs = waitingJobs.get(job.host);
+        if (jobs == null) {
+            jobs = new ArrayList<>();
+            waitingJobs.put(job.host, jobs);
+        }
+        int index = Collections.binarySearch(jobs, job, RUN_ORDER);
+        jobs.add(index < 0 ? -index - 1 : index, job);
+    }
+
+    private boolean isWaiting(DownloadJob job) {
+        List<DownloadJob> jobs = waitingJobs.get(job.host);
+        return jobs != null && jobs.contains(job);
+    }
+
+    private boolean isHostLimited(DownloadJob job) {
+        Integer connections = hostConnections.get(job.host);
+        return connections != null && connections + job.connections > maxConnectionsPerHost;
+    }
+
+    /**
+     * @return waiting jobs which will get a slot before the job, of its host or of all hosts
+     */
+    private int countAhead(DownloadJob job, boolean sameHost) {
+        int count = 0;
+        for (List<DownloadJob> jobs : waitingJobs.values()) {
+            for (DownloadJob waiting : jobs) {
+                if (sameHost && !job.host.equals(waiting.host)) break;
+                if (waiting != job && RUN_ORDER.compare(waiting, job) < 0) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * start the waiting jobs while there are free slots, a host whose connections would exceed the cap is skipped
+     * unless it has nothing running, so that a job of more segments than the cap can still run
+     */
+    private void dispatch() {
+        while (runningJobs.size() < maxTask) {
+            DownloadJob next = null;
+            String nextHost = null;
+            List<String> hosts = new ArrayList<>(waitingJobs.keySet());
+            int start = lastHost == null ? 0 : hosts.indexOf(lastHost) + 1;  // the host after the last served one
+            for (int i = 0; i < hosts.size(); i++) {
+                String host = hosts.get((start + i) % hosts.size());
+                DownloadJob head = waitingJobs.get(host).get(0);
+                if (isHostLimited(head)) continue;
+                if (next == null || head.getPriority() > next.getPriority()) {
+                    next = head;
+                    nextHost = host;
+                }
+            }
+            if (next == null) return;
+            remove(next);
+            lastHost = nextHost;
+            runningJobs.add(next);
+            Integer connections = hostConnections.get(nextHost);
+            hostConnections.put(nextHost, (connections == null ? 0 : connections) + next.connections);
+            executor.execute(next);
+        }
+    }
+
+    /**
+     * @return lower case host and port of the url, the url itself if it has no host
+     */
+    static String hostOf(String url) {
+        if (url == null) return "";
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = url.length();
+        for (char c : new char[]{'/', '?', '#'}) {
+            int index = url.indexOf(c, start);
+            if (index >= 0 && index < end) end = index;
+        }
+        String authority = url.substring(start, end);
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) authority = authority.substring(at + 1);
+        return authority.toLowerCase();
+    }
+}
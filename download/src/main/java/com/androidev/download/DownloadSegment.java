@@ -0,0 +1,154 @@
+package com.androidev.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a byte range of the resource, downloaded by one connection
+ * start and end are inclusive, current is the next byte to be written
+ */
+class DownloadSegment {
+
+    private static final String SEPARATOR = ",";
+    private static final String FIELD_SEPARATOR = ":";
+
+    long start;
+    long end;
+    long current;
+
+    // measured while downloading, not stored
+    private long activeTime;
+    private long activeLength;
+    private long speed;  // bytes per second
+
+    DownloadSegment(long start, long end, long current) {
+        this.start = start;
+        this.end = end;
+        this.current = current;
+    }
+
+    long finishedLength() {
+        return current - start;
+    }
+
+    long remaining() {
+        return end - current + 1;
+    }
+
+    boolean isFinished() {
+        return current > end;
+    }
+
+    void activate(long now) {
+        activeTime = now;
+        activeLength = 0;
+        speed = 0;
+    }
+
+    void onWritten(long length, long now) {
+        current += length;
+        activeLength += length;
+        long elapsed = now - activeTime;
+        if (elapsed > 0) speed = activeLength * 1000 / elapsed;
+    }
+
+    /**
+     * @return milliseconds to finish the segment with the measured speed,
+     * a segment has not received any data is treated as slow as it has been waiting
+     */
+    long estimateTime(long now) {
+        if (speed <= 0) return now - activeTime;
+        return remaining() * 1000 / speed;
+    }
+
+    /**
+     * give the range from the position to a new segment inserted after this one, this one keeps the bytes before it
+     *
+     * @return the new segment
+     */
+    DownloadSegment splitAt(List<DownloadSegment> segments, long position) {
+        DownloadSegment split = new DownloadSegment(position, end, position);
+        end = position - 1;
+        segments.add(segments.indexOf(this) + 1, split);
+        return split;
+    }
+
+    /**
+     * give the second half of the remaining bytes to a new segment, so that an idle connection helps this one
+     *
+     * @return the new segment
+     */
+    DownloadSegment steal(List<DownloadSegment> segments) {
+        return splitAt(segments, current + remaining() / 2);
+    }
+
+    /**
+     * split the content into count ranges of nearly the same size
+     */
+    static List<DownloadSegment> split(long contentLength, int count) {
+        List<DownloadSegment> result = new ArrayList<>();
+        if (count < 1) count = 1;
+        long step = contentLength / count;
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            long end = i == count - 1 ? contentLength - 1 : start + step - 1;
+            result.add(new DownloadSegment(start, end, start));
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * merge the finished segments into the following adjacent ones, keep the stored value short
+     */
+    static void compact(List<DownloadSegment> segments) {
+        for (int i = segments.size() - 2; i >= 0; i--) {
+            DownloadSegment segment = segments.get(i);
+            DownloadSegment next = segments.get(i + 1);
+            if (segment.isFinished() && segment.end + 1 == next.start) {
+                next.start = segment.start;
+                segments.remove(i);
+            }
+        }
+    }
+
+    /**
+     * @return end of the written bytes of the segment holding the position, the position if nothing is written there
+     */
+    static long getWrittenEnd(List<DownloadSegment> segments, long position) {
+        for (DownloadSegment segment : segments) {
+            if (position >= segment.start && position <= segment.end) return Math.max(position, segment.current);
+        }
+        return position;
+    }
+
+    /**
+     * @return segments in form of "start:end:current,start:end:current" for storing in the database
+     */
+    static String encode(List<DownloadSegment> segments) {
+        if (segments == null || segments.isEmpty()) return null;
+        StringBuilder sb = new StringBuilder();
+        for (DownloadSegment segment : segments) {
+            if (sb.length() > 0) sb.append(SEPARATOR);
+            sb.append(segment.start).append(FIELD_SEPARATOR)
+                    .append(segment.end).append(FIELD_SEPARATOR)
+                    .append(segment.current);
+        }
+        return sb.toString();
+    }
+
+    static List<DownloadSegment> decode(String value) {
+        if (value == null || value.length() == 0) return null;
+        List<DownloadSegment> result = new ArrayList<>();
+        for (String item : value.split(SEPARATOR)) {
+            String[] fields = item.split(FIELD_SEPARATOR);
+            if (fields.length != 3) return null;
+            try {
+                result.add(new DownloadSegment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+package com.androidev.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * destination of the downloaded data, written by several segment workers at the same time
+ */
+interface DownloadSink {
+
+    /**
+     * reserve the space of the whole content before writing
+     *
+     * @return true if the blocks are allocated, false if the file is only sized and may be sparse
+     * @throws InsufficientSpaceException if the storage is full
+     */
+    boolean allocate(long length) throws IOException;
+
+    void write(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * write all remaining bytes of the buffer at the position
+     */
+    void write(long position, ByteBuffer buffer) throws IOException;
+
+    /**
+     * @return bytes transferred, 0 means the end of the source
+     */
+    long transferFrom(ReadableByteChannel source, long position, long count) throws IOException;
+
+    /**
+     * read the written data back from the position, for the bytes which could not be hashed while being written
+     *
+     * @return bytes read, -1 at the end of the file
+     */
+    int read(long position, ByteBuffer buffer) throws IOException;
+
+    /**
+     * make sure the written data is stored before storing the progress
+     */
+    void sync() throws IOException;
+
+    void close() throws IOException;
+}
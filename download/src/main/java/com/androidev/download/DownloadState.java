@@ -11,4 +11,5 @@ public class DownloadState {
     public static final int STATE_FAILED = 3;
     public static final int STATE_PAUSED = 4;
     public static final int STATE_WAITING = 5;
+    public static final int STATE_CORRUPTED = 6;  // the content does not match the expected checksum
 }
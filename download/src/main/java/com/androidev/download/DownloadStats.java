@@ -0,0 +1,98 @@
+package com.androidev.download;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * snapshot of the engine counters, for tuning the engine
+ */
+public class DownloadStats {
+
+    /**
+     * read buffers reused from the pool
+     */
+    public long bufferPoolHits;
+
+    /**
+     * read buffers allocated because the pool was empty
+     */
+    public long bufferPoolMisses;
+
+    /**
+     * buffers idle in the pool
+     */
+    public int bufferPoolIdle;
+
+    /**
+     * max idle buffers of each kind kept by the pool
+     */
+    public int bufferPoolMax;
+
+    /**
+     * current read chunk of every running job, by task key
+     */
+    public Map<String, Integer> readSteps = new HashMap<>();
+
+    /**
+     * slots of the jobs sized from the throughput
+     */
+    public int concurrencyLimit;
+
+    /**
+     * bytes per second of all jobs, measured for sizing the slots
+     */
+    public long throughput;
+
+    /**
+     * jobs waiting for a slot, by host
+     */
+    public Map<String, Integer> hostQueueDepths = new HashMap<>();
+
+    /**
+     * connections of the running jobs, by host
+     */
+    public Map<String, Integer> hostConnections = new HashMap<>();
+
+    /**
+     * jobs which found what the server told about the resource in the cache
+     */
+    public long capabilityHits;
+
+    /**
+     * jobs which had to ask the server
+     */
+    public long capabilityMisses;
+
+    /**
+     * duplicate requests sent because the first one did not answer within the hedge delay
+     */
+    public long hedges;
+
+    /**
+     * duplicate requests which answered before the first one
+     */
+    public long hedgeWins;
+
+    /**
+     * bytes of delta tasks copied from their old files instead of downloaded
+     */
+    public long deltaSavedBytes;
+
+    /**
+     * bytes of delta tasks left to download because their old files did not have them
+     */
+    public long deltaFetchedBytes;
+
+    /**
+     * bytes of tasks finished from the files of finished downloads of the same content
+     */
+    public long deduplicatedBytes;
+
+    /**
+     * tasks which followed a running task of the same url instead of fetching it again
+     */
+    public long coalescedTasks;
+
+    DownloadStats() {
+    }
+}
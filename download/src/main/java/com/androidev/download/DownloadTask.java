@@ -4,6 +4,10 @@ import android.os.Environment;
 import android.text.TextUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by 4ndroidev on 16/10/6.
@@ -30,18 +34,42 @@ public class DownloadTask implements Comparable<DownloadTask> {
     public String path;
     public String source;
     public String extras;
+    public int segments = 1;
+    public long speedLimit;
+    public int priority = DownloadManager.PRIORITY_NORMAL;
+    public RetryPolicy retryPolicy;  // null for the one of the manager
+    public List<String> mirrors;  // other urls of the same content, null if none
+    public String checksumAlgorithm;  // DownloadManager.CHECKSUM_*, null if not checked
+    public String checksum;
+    public PieceManifest pieceManifest;  // null if the pieces are not checked
+    public String deltaBase;  // old version of the content, null if downloaded in full
+    public DeltaManifest deltaManifest;
+    public boolean persistent = true;
+    PayloadListener payloadListener;
     DownloadListener listener;
 
-    private DownloadTask(DownloadEngine engine, long id, String url, String name, String source, String extras, DownloadListener listener) {
-        this.engine = engine;
-        this.id = id;
-        this.url = url;
-        this.name = name;
+    private DownloadTask(Builder builder) {
+        this.engine = builder.engine;
+        this.id = builder.id;
+        this.url = builder.url;
+        this.name = builder.name;
         this.path = DOWNLOAD_PATH + File.separator + name;
-        this.source = source;
+        this.source = builder.source;
         this.key = generateKey();
-        this.extras = extras;
-        this.listener = listener;
+        this.extras = builder.extras;
+        this.segments = builder.segments;
+        this.speedLimit = builder.speedLimit;
+        this.priority = builder.priority;
+        this.retryPolicy = builder.retryPolicy;
+        this.mirrors = builder.mirrors;
+        this.checksumAlgorithm = builder.checksum == null ? null : builder.checksumAlgorithm;
+        this.checksum = builder.checksum;
+        this.pieceManifest = builder.pieceManifest;
+        this.deltaBase = builder.deltaManifest == null ? null : builder.deltaBase;  // one is useless without the other
+        this.deltaManifest = builder.deltaBase == null ? null : builder.deltaManifest;
+        this.payloadListener = builder.payloadListener;
+        this.persistent = builder.persistent;
+        this.listener = builder.listener;
         this.engine.prepare(this);
     }
 
@@ -54,6 +82,18 @@ public class DownloadTask implements Comparable<DownloadTask> {
         this.source = info.source;
         this.key = info.key;
         this.extras = info.extras;
+        this.segments = info.segmentCount;
+        this.speedLimit = info.speedLimit;
+        this.priority = info.priority;
+        this.retryPolicy = info.retryPolicy;
+        this.mirrors = info.mirrors;
+        this.checksumAlgorithm = info.checksumAlgorithm;
+        this.checksum = info.checksum;
+        this.pieceManifest = info.pieceManifest;
+        this.deltaBase = info.deltaBase;
+        this.deltaManifest = info.deltaManifest;
+        this.payloadListener = info.payloadListener;
+        this.persistent = info.isPersistent;
         this.createTime = info.createTime;
         this.listener = listener;
         this.engine.prepare(this);
@@ -70,13 +110,35 @@ public class DownloadTask implements Comparable<DownloadTask> {
     }
 
     DownloadInfo generateInfo() {
-        return new DownloadInfo(id, key, url, name, path, source, extras);
+        DownloadInfo info = new DownloadInfo(id, key, url, name, path, source, extras);
+        info.segmentCount = segments;
+        info.speedLimit = speedLimit;
+        info.priority = priority;
+        info.retryPolicy = retryPolicy;
+        info.mirrors = mirrors;
+        info.checksumAlgorithm = checksumAlgorithm;
+        info.checksum = checksum;
+        info.pieceManifest = pieceManifest;
+        info.deltaBase = deltaBase;
+        info.deltaManifest = deltaManifest;
+        info.payloadListener = payloadListener;
+        info.isPersistent = persistent;
+        return info;
     }
 
     public void start() {
         engine.enqueue(this);
     }
 
+    /**
+     * @return stream over the file while it is being downloaded, its reads block until the bytes are written,
+     * so read it off the main thread
+     * @throws IOException if the task is not started
+     */
+    public DownloadInputStream openStream() throws IOException {
+        return engine.openStream(this);
+    }
+
     public void pause() {
         engine.pause(this);
     }
@@ -90,6 +152,25 @@ public class DownloadTask implements Comparable<DownloadTask> {
         this.listener = null;
     }
 
+    /**
+     * @param speedLimit bytes per second, 0 means unlimited, takes effect at once if the task is running
+     */
+    public void setSpeedLimit(long speedLimit) {
+        if (speedLimit < 0) {
+            throw new IllegalArgumentException("speed limit can't be negative!");
+        }
+        this.speedLimit = speedLimit;
+        engine.setSpeedLimit(this);
+    }
+
+    /**
+     * @param retryPolicy null for the one of the manager, takes effect at the next failure
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        engine.setRetryPolicy(this);
+    }
+
     public void resumeListener() {
         engine.addListener(this);
     }
@@ -131,6 +212,18 @@ public class DownloadTask implements Comparable<DownloadTask> {
         private String name;
         private String source;
         private String extras;
+        private int segments = 1;
+        private long speedLimit;
+        private int priority = DownloadManager.PRIORITY_NORMAL;
+        private RetryPolicy retryPolicy;
+        private List<String> mirrors;
+        private String checksumAlgorithm;
+        private String checksum;
+        private PieceManifest pieceManifest;
+        private String deltaBase;
+        private DeltaManifest deltaManifest;
+        private PayloadListener payloadListener;
+        private boolean persistent = true;
         private DownloadListener listener;
 
         Builder(DownloadEngine engine) {
@@ -162,6 +255,96 @@ public class DownloadTask implements Comparable<DownloadTask> {
             return this;
         }
 
+        /**
+         * @param segments count of byte ranges downloaded at the same time, works only if the server supports range requests
+         */
+        public Builder segments(int segments) {
+            this.segments = segments;
+            return this;
+        }
+
+        /**
+         * @param speedLimit bytes per second of the task, 0 means unlimited
+         */
+        public Builder speedLimit(long speedLimit) {
+            this.speedLimit = speedLimit;
+            return this;
+        }
+
+        /**
+         * @param priority the task of higher priority runs first, and takes the slot of a running task of
+         *                 lower priority if all slots are busy, DownloadManager.PRIORITY_* or any other value
+         */
+        public Builder priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * @param retryPolicy how the task is retried if it fails, null for the one of the manager
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * @param mirrors other urls of the same content, the segments are downloaded from all of them at the same time,
+         *                more from the faster ones, and a failed one is left to the others, the url of the task stays the key
+         */
+        public Builder mirrors(String... mirrors) {
+            this.mirrors = mirrors.length == 0 ? null : new ArrayList<>(Arrays.asList(mirrors));
+            return this;
+        }
+
+        /**
+         * @param algorithm DownloadManager.CHECKSUM_MD5, CHECKSUM_SHA1 or CHECKSUM_SHA256
+         * @param checksum  expected digest of the content in hex, it is hashed while being written, and a task
+         *                  not matching it ends in DownloadState.STATE_CORRUPTED with the file dropped
+         */
+        public Builder checksum(String algorithm, String checksum) {
+            this.checksumAlgorithm = algorithm;
+            this.checksum = checksum;
+            return this;
+        }
+
+        /**
+         * @param pieceManifest hashes of the pieces of the content, every piece is verified once it is written,
+         *                      and only the bad ones are downloaded again, even after the app was killed
+         */
+        public Builder pieces(PieceManifest pieceManifest) {
+            this.pieceManifest = pieceManifest;
+            return this;
+        }
+
+        /**
+         * @param base     old version of the content, such as the installed apk, it is read only
+         * @param manifest block checksums of the new version, the blocks found in the old file are copied,
+         *                 only the others are downloaded, it needs a server supporting range requests
+         */
+        public Builder delta(File base, DeltaManifest manifest) {
+            this.deltaBase = base == null ? null : base.getAbsolutePath();
+            this.deltaManifest = manifest;
+            return this;
+        }
+
+        /**
+         * @param payloadListener gets the content in a buffer instead of a file if it is not larger than
+         *                        DownloadManager.setMemoryThreshold, a larger one is written to the file as usual
+         */
+        public Builder payload(PayloadListener payloadListener) {
+            this.payloadListener = payloadListener;
+            return this;
+        }
+
+        /**
+         * @param persistent false if the task is never stored in the database, it is forgotten once the app is killed
+         */
+        public Builder persistent(boolean persistent) {
+            this.persistent = persistent;
+            return this;
+        }
+
         public Builder listener(DownloadListener listener) {
             this.listener = listener;
             return this;
@@ -171,7 +354,16 @@ public class DownloadTask implements Comparable<DownloadTask> {
             if (TextUtils.isEmpty(url) || TextUtils.isEmpty("name")) {
                 throw new IllegalArgumentException("url or name can't be empty!");
             }
-            return new DownloadTask(engine, id, url, name, source, extras, listener);
+            if (segments < 1) {
+                throw new IllegalArgumentException("segments must be positive!");
+            }
+            if (speedLimit < 0) {
+                throw new IllegalArgumentException("speed limit can't be negative!");
+            }
+            if (checksum != null && !StreamDigest.isSupported(checksumAlgorithm)) {
+                throw new IllegalArgumentException("unsupported checksum algorithm!");
+            }
+            return new DownloadTask(this);
         }
 
     }
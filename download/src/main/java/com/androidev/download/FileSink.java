@@ -0,0 +1,93 @@
+package com.androidev.download;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * writes to the target file, with RandomAccessFile for byte arrays
+ * and with positional FileChannel operations for buffers and channels
+ */
+class FileSink implements DownloadSink {
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    FileSink(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+    }
+
+    /**
+     * the file is sized as well, FileChannel.transferFrom does nothing beyond the end of the file
+     */
+    @Override
+    public boolean allocate(long length) throws IOException {
+        return allocate(file, length);
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        synchronized (this) {  // seek and write share the file pointer
+            file.seek(position);
+            file.write(buffer, offset, length);
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        return channel.transferFrom(source, position, count);
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buffer) throws IOException {
+        return channel.read(buffer, position);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        file.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * allocate the blocks with fallocate to reduce the fragmentation and find out a full storage early,
+     * fall back to setLength if the file system does not support it
+     */
+    static boolean allocate(RandomAccessFile file, long length) throws IOException {
+        if (length <= 0) return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, length);
+                return true;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    throw new InsufficientSpaceException("no space for " + length + " bytes");
+                }
+            }
+        }
+        if (file.length() < length) {
+            file.setLength(length);
+        }
+        return false;
+    }
+}
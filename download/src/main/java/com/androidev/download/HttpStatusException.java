@@ -0,0 +1,18 @@
+package com.androidev.download;
+
+import java.io.IOException;
+
+/**
+ * the server answered with a status the job can not go on with
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public final int code;
+
+    HttpStatusException(int code) {
+        super("unexpected response code: " + code);
+        this.code = code;
+    }
+}
@@ -0,0 +1,172 @@
+package com.androidev.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * default transport on HttpURLConnection, a body read to the end and closed leaves its socket in the keep-alive
+ * pool of the platform, so that the jobs, resumes and retries of the same host skip the TCP and TLS handshakes,
+ * only an aborted response or a body too long to drain is disconnected, the system proxy and the redirect rules
+ * of the platform apply
+ */
+public class HttpTransport implements Transport {
+
+    private static final int MAX_DRAIN_LENGTH = 8 * 1024;  // read the rest of a small body to keep the connection
+
+    private SSLSocketFactory sslSocketFactory;  // null for the platform default
+    private HostnameVerifier hostnameVerifier;  // null for the platform default
+    private volatile BufferPool bufferPool;  // drain buffers, set by the engine
+
+    public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory) {
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    public void setHostnameVerifier(HostnameVerifier hostnameVerifier) {
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        URL url = new URL(request.url);
+        String protocol = url.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            throw new ProtocolException("unsupported protocol: " + protocol);
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            HttpsURLConnection https = (HttpsURLConnection) connection;
+            if (sslSocketFactory != null) https.setSSLSocketFactory(sslSocketFactory);
+            if (hostnameVerifier != null) https.setHostnameVerifier(hostnameVerifier);
+        }
+        connection.setConnectTimeout(request.connectTimeout);
+        connection.setReadTimeout(request.readTimeout);
+        connection.setRequestMethod(request.method);
+        connection.setUseCaches(false);
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        // the ranges are counted on the stored bytes, never let the server compress them
+        if (request.header("Accept-Encoding") == null) connection.setRequestProperty("Accept-Encoding", "identity");
+        int code;
+        try {
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();  // nothing will close it otherwise
+            throw e;
+        } catch (RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+        return new Response(connection, request.method, code, bufferPool);
+    }
+
+    @Override
+    public void shutdown() {
+        // the idle connections belong to the platform pool, they expire by themselves
+    }
+
+    private static class Response extends TransportResponse {
+
+        private final HttpURLConnection connection;
+        private final String method;
+        private final int code;
+        private final BufferPool bufferPool;
+        private InputStream body;
+        private boolean isClosed;
+
+        Response(HttpURLConnection connection, String method, int code, BufferPool bufferPool) {
+            this.connection = connection;
+            this.method = method;
+            this.code = code;
+            this.bufferPool = bufferPool;
+        }
+
+        @Override
+        public int code() {
+            return code;
+        }
+
+        @Override
+        public String header(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public String url() {
+            return connection.getURL().toString();
+        }
+
+        @Override
+        public synchronized InputStream body() throws IOException {
+            if (body == null) {
+                InputStream in;
+                if ("HEAD".equals(method) || code == 204 || code == 304) {
+                    in = null;
+                } else if (code >= 400) {
+                    in = connection.getErrorStream();
+                } else {
+                    in = connection.getInputStream();
+                }
+                body = in == null ? new ByteArrayInputStream(new byte[0]) : in;
+            }
+            return body;
+        }
+
+        /**
+         * read the rest of a small body, closing a body read to the end gives the connection back to the pool,
+         * a longer rest is not worth reading, the connection is disconnected
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (isClosed) return;
+                isClosed = true;
+            }
+            BufferPool pool = bufferPool;
+            byte[] buffer = pool != null ? pool.acquireArray() : new byte[MAX_DRAIN_LENGTH];
+            boolean isDrained = false;
+            try {
+                InputStream in = body();
+                for (int drained = 0; drained < MAX_DRAIN_LENGTH; ) {
+                    int count = in.read(buffer, 0, Math.min(buffer.length, MAX_DRAIN_LENGTH - drained));
+                    if (count == -1) {
+                        isDrained = true;
+                        break;
+                    }
+                    drained += count;
+                }
+                in.close();
+            } catch (IOException ignored) {
+                // the platform has dropped the connection
+            } finally {
+                if (pool != null) pool.release(buffer);
+            }
+            if (!isDrained) connection.disconnect();
+        }
+
+        /**
+         * the rest of the body is not read at all, the connection is disconnected at once
+         */
+        @Override
+        public void abort() {
+            synchronized (this) {
+                if (isClosed) return;
+                isClosed = true;
+            }
+            connection.disconnect();
+        }
+    }
+}
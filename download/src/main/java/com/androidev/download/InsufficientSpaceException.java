@@ -0,0 +1,15 @@
+package com.androidev.download;
+
+import java.io.IOException;
+
+/**
+ * the storage can not hold the content, the job should wait instead of failing
+ */
+class InsufficientSpaceException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    InsufficientSpaceException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,92 @@
+package com.androidev.download;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * the jobs of the same url share one transfer, the first one enqueued leads and fetches, the later ones follow it
+ * without taking a slot and report its progress, they get the file of the leader once it is finished, or compete
+ * again if it stops otherwise, used on the main thread only
+ */
+class JobCoalescer {
+
+    private final Map<String, DownloadJob> leaders = new HashMap<>();  // by normalized url
+    private final Map<DownloadJob, List<DownloadJob>> followers = new HashMap<>();  // by leader
+
+    /**
+     * @return the leader the job follows, null if the job leads
+     */
+    DownloadJob attach(DownloadJob job) {
+        String url = normalize(job.info.url);
+        job.coalescingKey = url;  // the url may be rewritten meanwhile, the job is detached by this one
+        DownloadJob leader = leaders.get(url);
+        if (leader == null || leader == job) {
+            leaders.put(url, job);
+            return null;
+        }
+        List<DownloadJob> list = followers.get(leader);
+        if (list == null) {
+            list = new ArrayList<>();
+            followers.put(leader, list);
+        }
+        if (!list.contains(job)) list.add(job);
+        return leader;
+    }
+
+    /**
+     * the job stops leading or following
+     *
+     * @return the followers of the job if it was leading, they are not attached any more
+     */
+    List<DownloadJob> detach(DownloadJob job) {
+        String url = job.coalescingKey;
+        if (url == null) return Collections.emptyList();
+        job.coalescingKey = null;
+        if (leaders.get(url) == job) {
+            leaders.remove(url);
+            List<DownloadJob> list = followers.remove(job);
+            return list == null ? Collections.<DownloadJob>emptyList() : list;
+        }
+        List<DownloadJob> list = followers.get(leaders.get(url));
+        if (list != null) list.remove(job);
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the jobs following the leader, empty if it leads none
+     */
+    List<DownloadJob> getFollowers(DownloadJob leader) {
+        List<DownloadJob> list = followers.get(leader);
+        return list == null ? Collections.<DownloadJob>emptyList() : list;
+    }
+
+    /**
+     * @return the url in lower case scheme and host, without the default port and the fragment,
+     * the url itself if it is malformed
+     */
+    static String normalize(String url) {
+        try {
+            URI uri = new URI(url).normalize();
+            if (uri.getScheme() == null || uri.getHost() == null) return url;
+            String scheme = uri.getScheme().toLowerCase(Locale.US);
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) port = -1;
+            StringBuilder sb = new StringBuilder(scheme).append("://");
+            if (uri.getRawUserInfo() != null) sb.append(uri.getRawUserInfo()).append('@');
+            sb.append(uri.getHost().toLowerCase(Locale.US));
+            if (port >= 0) sb.append(':').append(port);
+            String path = uri.getRawPath();
+            sb.append(path == null || path.isEmpty() ? "/" : path);
+            if (uri.getRawQuery() != null) sb.append('?').append(uri.getRawQuery());
+            return sb.toString();
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.androidev.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * writes to the allocated target file through memory mapped windows,
+ * every writer thread has its own window so that they never share a file pointer
+ */
+class MappedSink implements DownloadSink {
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long length;
+    private int windowSize;
+    private int remapPolicy;
+    private Map<Thread, Window> windows;
+
+    /**
+     * @param length      content length, must be known
+     * @param windowSize  max bytes of a window
+     * @param remapPolicy DownloadManager.REMAP_LAZY or DownloadManager.REMAP_FORCE
+     */
+    MappedSink(File file, long length, int windowSize, int remapPolicy) throws IOException {
+        if (length <= 0) throw new IllegalArgumentException("unknown content length");
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.length = length;
+        this.windowSize = windowSize;
+        this.remapPolicy = remapPolicy;
+        this.windows = new HashMap<>();
+    }
+
+    /**
+     * the file must be sized before mapping
+     */
+    @Override
+    public boolean allocate(long length) throws IOException {
+        return FileSink.allocate(file, length);
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer window = window(position);
+            int count = Math.min(length, window.remaining());
+            window.put(buffer, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        while (buffer.hasRemaining()) {
+            ByteBuffer window = window(position);
+            int count = Math.min(buffer.remaining(), window.remaining());
+            buffer.limit(buffer.position() + count);
+            window.put(buffer);
+            buffer.limit(limit);
+            position += count;
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        ByteBuffer window = window(position);
+        if (count < window.remaining()) {
+            window.limit(window.position() + (int) count);
+        }
+        int len = source.read(window);
+        window.limit(window.capacity());
+        return len == -1 ? 0 : len;
+    }
+
+    /**
+     * read through the file channel, the mapping is shared, so the file shows what is written to the windows
+     * without forcing them
+     */
+    @Override
+    public int read(long position, ByteBuffer buffer) throws IOException {
+        return channel.read(buffer, position);
+    }
+
+    /**
+     * force the windows, including the partial ones, then the retired windows through the file descriptor
+     */
+    @Override
+    public void sync() throws IOException {
+        synchronized (this) {
+            for (Window window : windows.values()) {
+                window.buffer.force();
+            }
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            windows.clear();
+        }
+        file.close();
+    }
+
+    /**
+     * @return the window of current thread positioned at the position, map a new one if necessary
+     */
+    private ByteBuffer window(long position) throws IOException {
+        Thread thread = Thread.currentThread();
+        Window window;
+        synchronized (this) {
+            window = windows.get(thread);
+        }
+        if (window == null || position < window.start || position >= window.start + window.buffer.capacity()) {
+            if (position >= length) throw new IOException("write beyond the content length");
+            if (window != null && remapPolicy == DownloadManager.REMAP_FORCE) {
+                window.buffer.force();
+            }
+            int size = (int) Math.min(windowSize, length - position);
+            window = new Window(position, channel.map(FileChannel.MapMode.READ_WRITE, position, size));
+            synchronized (this) {
+                windows.put(thread, window);
+            }
+        }
+        window.buffer.position((int) (position - window.start));
+        return window.buffer;
+    }
+
+    private static class Window {
+
+        private long start;
+        private MappedByteBuffer buffer;
+
+        Window(long start, MappedByteBuffer buffer) {
+            this.start = start;
+            this.buffer = buffer;
+        }
+    }
+}
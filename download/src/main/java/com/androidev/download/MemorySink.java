@@ -0,0 +1,91 @@
+package com.androidev.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * keeps a small content in a buffer instead of a file, no file, no fsync, the buffer comes from the pool if the content
+ * fits in a pooled one, the content is gone once the sink is closed, unless it is detached for the listener
+ */
+class MemorySink implements DownloadSink {
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;  // the position is never moved, the segments write through duplicates
+
+    MemorySink(BufferPool pool, long length) {
+        this.pool = pool;
+        ByteBuffer buffer = length <= pool.getBufferSize() ? pool.acquireBuffer() : null;
+        if (buffer == null || buffer.capacity() < length) {  // the pool may be resized meanwhile
+            pool.release(buffer);
+            buffer = ByteBuffer.allocate((int) length);
+        }
+        this.buffer = buffer;
+        this.buffer.clear();
+        this.buffer.limit((int) length);
+    }
+
+    @Override
+    public boolean allocate(long length) throws IOException {
+        if (length > buffer.limit()) throw new IOException("content of " + length + " bytes does not fit in memory");
+        return true;
+    }
+
+    private ByteBuffer slice(long position, long length) throws IOException {
+        if (position < 0 || position + length > buffer.limit()) {
+            throw new IOException("write out of the content at " + position);
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position((int) position);
+        target.limit((int) (position + length));
+        return target;
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        slice(position, length).put(buffer, offset, length);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer buffer) throws IOException {
+        slice(position, buffer.remaining()).put(buffer);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        int read = source.read(slice(position, Math.min(count, buffer.limit() - position)));
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buffer) throws IOException {
+        if (position >= this.buffer.limit()) return -1;
+        ByteBuffer source = slice(position, Math.min(buffer.remaining(), this.buffer.limit() - position));
+        int length = source.remaining();
+        buffer.put(source);
+        return length;
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    /**
+     * @return the content from 0 to the limit, the caller releases it to the pool
+     */
+    ByteBuffer detach() {
+        ByteBuffer content = buffer;
+        buffer = null;
+        return content;
+    }
+
+    boolean isDetached() {
+        return buffer == null;
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) pool.release(buffer);
+        buffer = null;
+    }
+}
@@ -0,0 +1,139 @@
+package com.androidev.download;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the urls a job fetches its ranges from, the url of the task first, every connection leases a mirror,
+ * the mirrors nobody has tried are leased first, so that the first segments go to different mirrors,
+ * then the one moving the most bytes per connection, a mirror which just failed is leased only if no other
+ * one is left, and after failing MAX_FAILURES times in a row it is left out for the rest of the run
+ */
+class MirrorSet {
+
+    private static final int MAX_FAILURES = 3;
+
+    static class Mirror {
+
+        final String url;
+        final boolean isPrimary;  // the url of the task, whose validators are stored
+        private long bytes;
+        private long millis;
+        private int connections;
+        private int failures;  // in a row
+
+        Mirror(String url, boolean isPrimary) {
+            this.url = url;
+            this.isPrimary = isPrimary;
+        }
+
+        /**
+         * @return bytes per second of a connection, -1 if not measured yet
+         */
+        long getThroughput() {
+            return millis == 0 ? -1 : bytes * 1000 / millis;
+        }
+    }
+
+    /**
+     * a connection to a mirror, counts the bytes it moves
+     */
+    static class Lease {
+
+        final Mirror mirror;
+        private final long startTime = SystemClock.elapsedRealtime();
+        private long bytes;
+
+        Lease(Mirror mirror) {
+            this.mirror = mirror;
+        }
+
+        void onTransferred(long length) {
+            bytes += length;
+        }
+    }
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    MirrorSet(String url, List<String> mirrorUrls) {
+        mirrors.add(new Mirror(url, true));
+        if (mirrorUrls == null) return;
+        for (String mirrorUrl : mirrorUrls) {
+            if (!url.equals(mirrorUrl)) mirrors.add(new Mirror(mirrorUrl, false));
+        }
+    }
+
+    boolean hasMirrors() {
+        return mirrors.size() > 1;
+    }
+
+    /**
+     * @return null if all mirrors failed
+     */
+    synchronized Lease acquire() {
+        Mirror best = null;
+        for (Mirror mirror : mirrors) {
+            if (mirror.failures >= MAX_FAILURES) continue;
+            if (best == null || compare(mirror, best) > 0) best = mirror;
+        }
+        if (best == null) return null;
+        best.connections++;
+        return new Lease(best);
+    }
+
+    /**
+     * lease for a hedge of a stalled request, another mirror is better than asking the stalled one again
+     *
+     * @return the best mirror other than the stalled one, the stalled one if no other is left, null if all failed
+     */
+    synchronized Lease acquireOther(Mirror stalled) {
+        Mirror best = null;
+        for (Mirror mirror : mirrors) {
+            if (mirror == stalled || mirror.failures >= MAX_FAILURES) continue;
+            if (best == null || compare(mirror, best) > 0) best = mirror;
+        }
+        if (best == null && stalled.failures < MAX_FAILURES) best = stalled;
+        if (best == null) return null;
+        best.connections++;
+        return new Lease(best);
+    }
+
+    /**
+     * @return positive if the mirror is better to lease than the other
+     */
+    private static int compare(Mirror mirror, Mirror other) {
+        if ((mirror.failures == 0) != (other.failures == 0)) return mirror.failures == 0 ? 1 : -1;
+        boolean isUntried = mirror.connections == 0 && mirror.millis == 0;
+        boolean isOtherUntried = other.connections == 0 && other.millis == 0;
+        if (isUntried != isOtherUntried) return isUntried ? 1 : -1;
+        if (mirror.getThroughput() != other.getThroughput()) return mirror.getThroughput() > other.getThroughput() ? 1 : -1;
+        return other.connections - mirror.connections;  // spread the connections while nothing is measured
+    }
+
+    /**
+     * the connection is done, its throughput counts for the mirror
+     */
+    synchronized void release(Lease lease) {
+        Mirror mirror = lease.mirror;
+        mirror.connections--;
+        long elapsed = SystemClock.elapsedRealtime() - lease.startTime;
+        if (lease.bytes > 0 && elapsed > 0) {
+            mirror.bytes += lease.bytes;
+            mirror.millis += elapsed;
+            mirror.failures = 0;
+        }
+    }
+
+    /**
+     * the connection failed, the bytes it moved before still count
+     *
+     * @return the lease of the best mirror to go on with, null if all mirrors are left out
+     */
+    synchronized Lease fail(Lease lease) {
+        release(lease);
+        lease.mirror.failures++;
+        return acquire();
+    }
+}
@@ -0,0 +1,417 @@
+package com.androidev.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * a non-blocking HTTP/1.1 exchange over a SocketChannel driven by a selector loop, plain http only,
+ * the connection is closed after the response, redirects are followed
+ */
+class NioExchange {
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    interface Listener {
+
+        /**
+         * the status and the headers are received
+         */
+        void onResponse(NioExchange exchange) throws IOException;
+
+        /**
+         * @param buffer bytes of the body from position to limit, all of them must be consumed
+         * @return nanoseconds to wait before reading more, 0 to go on
+         */
+        long onBody(NioExchange exchange, ByteBuffer buffer) throws IOException;
+
+        /**
+         * @param error null if the body is complete or the exchange is closed
+         */
+        void onFinished(NioExchange exchange, IOException error);
+    }
+
+    private final SelectorLoop loop;
+    private final TransportRequest request;
+    private final Listener listener;
+    private URL url;
+    private String method;
+    private int redirects;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer requestBuffer;
+    private byte[] headerBytes = new byte[1024];
+    private int headerLength;
+    private boolean isConnected;
+    private boolean isReceived;  // status and headers
+    private boolean isPaused;
+    private boolean isHeld;  // by the listener until release
+    private ByteBuffer heldBody;  // read along with the headers while held
+    private boolean isFinished;
+    private long activeTime;
+
+    private int code;
+    private Map<String, String> headers;
+    private long contentLength = -1;
+    private long receivedLength;
+
+    private Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            if (isFinished) return;
+            isPaused = false;
+            activeTime = System.nanoTime();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    };
+
+    NioExchange(SelectorLoop loop, TransportRequest request, Listener listener) {
+        this.loop = loop;
+        this.request = request;
+        this.listener = listener;
+        this.method = request.method;
+    }
+
+    void start() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connect(new URL(request.url));
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * stop the exchange, the listener gets onFinished without error
+     */
+    void close() {
+        if (loop.inLoop()) {
+            finish(null);
+            return;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                finish(null);
+            }
+        });
+    }
+
+    /**
+     * stop reading the body until release, called by the listener in onResponse,
+     * the timeouts do not count meanwhile
+     */
+    void hold() {
+        isHeld = true;
+        isPaused = true;
+    }
+
+    /**
+     * deliver the body read along with the headers and go on reading, called on the loop thread
+     */
+    void release() {
+        if (isFinished || !isHeld) return;
+        isHeld = false;
+        isPaused = false;
+        activeTime = System.nanoTime();
+        ByteBuffer body = heldBody;
+        heldBody = null;
+        if (body == null || !deliver(body)) key.interestOps(SelectionKey.OP_READ);
+    }
+
+    int code() {
+        return code;
+    }
+
+    String header(String name) {
+        return headers == null ? null : headers.get(name);
+    }
+
+    String url() {
+        return url.toString();
+    }
+
+    /**
+     * @return length of the body, -1 if it is delimited by closing the connection
+     */
+    long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * resolve the host off the loop, a slow lookup must not stall the other exchanges, then connect on the loop,
+     * the connect timeout covers the lookup
+     */
+    private void connect(final URL url) throws IOException {
+        if (!"http".equals(url.getProtocol())) {
+            throw new ProtocolException("unsupported protocol: " + url.getProtocol());
+        }
+        this.url = url;
+        final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        requestBuffer = ByteBuffer.wrap(encodeRequest(url));
+        activeTime = System.nanoTime();
+        loop.register(this);
+        try {
+            loop.offload(new Runnable() {
+                @Override
+                public void run() {
+                    final InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isFinished) return;  // closed or timed out meanwhile
+                            try {
+                                connect(address);
+                            } catch (IOException e) {
+                                fail(e);
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IOException("selector engine is shut down");
+        }
+    }
+
+    private void connect(InetSocketAddress address) throws IOException {
+        if (address.isUnresolved()) throw new UnknownHostException(address.getHostName());
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if (channel.connect(address)) {
+            isConnected = true;
+            key = channel.register(loop.selector(), SelectionKey.OP_WRITE, this);
+        } else {
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    private byte[] encodeRequest(URL url) throws UnsupportedEncodingException {
+        String file = url.getFile();
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) sb.append(':').append(url.getPort());
+        sb.append("\r\n");
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            String name = header.getKey();
+            if ("Host".equalsIgnoreCase(name) || "Connection".equalsIgnoreCase(name)) continue;
+            sb.append(name).append(": ").append(header.getValue()).append("\r\n");
+        }
+        // the ranges are counted on the stored bytes, never let the server compress them
+        if (request.header("Accept-Encoding") == null) sb.append("Accept-Encoding: identity\r\n");
+        String agent = System.getProperty("http.agent");
+        if (request.header("User-Agent") == null && agent != null) sb.append("User-Agent: ").append(agent).append("\r\n");
+        sb.append("Connection: close\r\n\r\n");
+        return sb.toString().getBytes("ISO-8859-1");
+    }
+
+    /**
+     * called by the loop when the channel is ready
+     */
+    void onReady(SelectionKey key) {
+        if (isFinished) return;
+        try {
+            activeTime = System.nanoTime();
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                isConnected = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                channel.write(requestBuffer);
+                if (!requestBuffer.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+            } else if (key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException(e));
+        }
+    }
+
+    void checkTimeout(long now) {
+        if (isFinished || isPaused) return;
+        long timeout = isConnected ? request.readTimeout : request.connectTimeout;
+        if (timeout > 0 && now - activeTime > timeout * 1000000L) {
+            fail(new SocketTimeoutException(isConnected ? "read timed out" : "connect timed out"));
+        }
+    }
+
+    void fail(IOException error) {
+        finish(error);
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = loop.readBuffer();
+        buffer.clear();
+        if (contentLength >= 0) {
+            buffer.limit((int) Math.min(buffer.capacity(), Math.max(1, contentLength - receivedLength)));
+        }
+        int length = channel.read(buffer);
+        if (length < 0) {
+            if (isReceived && contentLength < 0) {
+                finish(null);
+            } else {
+                fail(new EOFException("unexpected end of stream"));
+            }
+            return;
+        }
+        buffer.flip();
+        if (!isReceived && !readHeaders(buffer)) return;
+        if (isFinished) return;
+        if (isHeld) {  // the read buffer is shared, keep the bytes until release
+            key.interestOps(0);
+            if (buffer.hasRemaining()) {
+                heldBody = ByteBuffer.allocate(buffer.remaining());
+                heldBody.put(buffer);
+                heldBody.flip();
+            }
+            return;
+        }
+        if (buffer.hasRemaining()) deliver(buffer);
+    }
+
+    /**
+     * hand the bytes of the body to the listener
+     *
+     * @return true if the exchange is finished or paused by the listener
+     */
+    private boolean deliver(ByteBuffer buffer) {
+        receivedLength += buffer.remaining();
+        long wait;
+        try {
+            wait = listener.onBody(this, buffer);
+        } catch (IOException e) {
+            fail(e);
+            return true;
+        }
+        if (isFinished) return true;
+        if (contentLength >= 0 && receivedLength >= contentLength) {
+            finish(null);
+            return true;
+        }
+        if (wait <= 0) return false;
+        isPaused = true;
+        key.interestOps(0);
+        loop.schedule(resume, wait);
+        return true;
+    }
+
+    /**
+     * @return true if the headers are complete, the buffer is left at the first byte of the body
+     */
+    private boolean readHeaders(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (headerLength == headerBytes.length) {
+                if (headerLength >= MAX_HEADER_SIZE) throw new ProtocolException("headers are too large");
+                byte[] bytes = new byte[headerLength * 2];
+                System.arraycopy(headerBytes, 0, bytes, 0, headerLength);
+                headerBytes = bytes;
+            }
+            headerBytes[headerLength++] = buffer.get();
+            if (headerLength >= 4 && headerBytes[headerLength - 1] == '\n' && headerBytes[headerLength - 2] == '\r'
+                    && headerBytes[headerLength - 3] == '\n' && headerBytes[headerLength - 4] == '\r') {
+                if (onHeaders(new String(headerBytes, 0, headerLength, "ISO-8859-1"))) return true;
+                // the rest of a redirect belongs to the old connection, only an informational response is followed by another
+                if (isFinished || !isInformational(code)) return false;
+                headerLength = 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the response is skipped, an informational one or a redirect
+     */
+    private boolean onHeaders(String text) throws IOException {
+        String[] lines = text.split("\r\n");
+        String[] parts = lines[0].split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) throw new ProtocolException("unexpected status line: " + lines[0]);
+        try {
+            code = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("unexpected status line: " + lines[0]);
+        }
+        if (isInformational(code)) return false;
+        headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 1; i < lines.length; i++) {
+            int index = lines[i].indexOf(':');
+            if (index <= 0) continue;
+            String name = lines[i].substring(0, index).trim();
+            String value = lines[i].substring(index + 1).trim();
+            String previous = headers.get(name);
+            headers.put(name, previous == null ? value : previous + ", " + value);
+        }
+        String location = headers.get("Location");
+        if (location != null && isRedirect(code) && redirects < MAX_REDIRECTS) {
+            redirects++;
+            if (code == 303 && !"HEAD".equals(method)) method = "GET";
+            URL next = new URL(url, location);
+            closeChannel();
+            headerLength = 0;
+            code = 0;
+            headers = null;
+            isConnected = false;
+            connect(next);
+            return false;
+        }
+        if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+            throw new ProtocolException("chunked body is not supported by the selector");
+        }
+        if ("HEAD".equals(method) || code == 204 || code == 304) {
+            contentLength = 0;
+        } else if (headers.get("Content-Length") != null) {
+            try {
+                contentLength = Long.parseLong(headers.get("Content-Length").trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("unexpected content length: " + headers.get("Content-Length"));
+            }
+        }
+        isReceived = true;
+        listener.onResponse(this);
+        if (!isFinished && contentLength == 0) finish(null);
+        return true;
+    }
+
+    private static boolean isInformational(int code) {
+        return code >= 100 && code < 200;
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    private void closeChannel() {
+        loop.unregister(this);
+        if (key != null) key.cancel();
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void finish(IOException error) {
+        if (isFinished) return;
+        isFinished = true;
+        closeChannel();
+        listener.onFinished(this, error);
+    }
+}
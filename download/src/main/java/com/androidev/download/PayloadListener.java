@@ -0,0 +1,14 @@
+package com.androidev.download;
+
+import java.nio.ByteBuffer;
+
+/**
+ * receives the content of a task which is kept in memory instead of a file, on the main thread
+ */
+public interface PayloadListener {
+
+    /**
+     * @param payload read only, from 0 to the content length, valid only during the call, the buffer is reused after it
+     */
+    void onPayload(String key, ByteBuffer payload);
+}
@@ -0,0 +1,71 @@
+package com.androidev.download;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * hashes of the fixed-size pieces of the content, the last piece may be shorter,
+ * every piece is verified once it is written and only the bad ones are downloaded again
+ */
+public class PieceManifest {
+
+    public final String algorithm;
+    public final long pieceLength;
+    public final List<String> hashes;
+
+    /**
+     * @param algorithm   DownloadManager.CHECKSUM_MD5, CHECKSUM_SHA1 or CHECKSUM_SHA256
+     * @param pieceLength bytes of every piece but the last one
+     * @param hashes      hex digests of the pieces in order
+     */
+    public PieceManifest(String algorithm, long pieceLength, String... hashes) {
+        if (!StreamDigest.isSupported(algorithm)) {
+            throw new IllegalArgumentException("unsupported checksum algorithm!");
+        }
+        if (pieceLength <= 0) {
+            throw new IllegalArgumentException("piece length must be positive!");
+        }
+        if (hashes.length == 0) {
+            throw new IllegalArgumentException("hashes can't be empty!");
+        }
+        this.algorithm = algorithm;
+        this.pieceLength = pieceLength;
+        this.hashes = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(hashes)));
+    }
+
+    int getPieceCount() {
+        return hashes.size();
+    }
+
+    /**
+     * @return true if the pieces cover exactly the content
+     */
+    boolean matches(long contentLength) {
+        return (contentLength + pieceLength - 1) / pieceLength == hashes.size();
+    }
+
+    /**
+     * @return manifest in form of "algorithm:pieceLength:hash,hash" for storing in the database
+     */
+    static String encode(PieceManifest manifest) {
+        if (manifest == null) return null;
+        return manifest.algorithm + ":" + manifest.pieceLength + ":" + TextUtils.join(",", manifest.hashes);
+    }
+
+    /**
+     * @return null if the value is empty or malformed
+     */
+    static PieceManifest decode(String value) {
+        if (TextUtils.isEmpty(value)) return null;
+        String[] fields = value.split(":", 3);
+        try {
+            return new PieceManifest(fields[0], Long.parseLong(fields[1]), fields[2].split(","));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.androidev.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * verifies the pieces of a manifest while they are written, a piece is hashed from its start as its bytes come in order,
+ * the bytes written ahead of it by other segments are read back once it reaches them, guarded by the job
+ */
+class PieceVerifier {
+
+    private final PieceManifest manifest;
+    private final long contentLength;
+    private final int pieceCount;
+    private final BitSet verified;
+    private final BitSet bad;
+    private final Map<Integer, StreamDigest> digests = new HashMap<>();  // of the pieces being hashed
+
+    /**
+     * @param pieces the stored bitmap of the verified pieces, may be null
+     */
+    PieceVerifier(PieceManifest manifest, long contentLength, String pieces) {
+        this.manifest = manifest;
+        this.contentLength = contentLength;
+        this.pieceCount = manifest.getPieceCount();
+        this.verified = decode(pieces, pieceCount);
+        this.bad = new BitSet(pieceCount);
+    }
+
+    private long start(int piece) {
+        return piece * manifest.pieceLength;
+    }
+
+    /**
+     * @return the last byte of the piece
+     */
+    private long end(int piece) {
+        return Math.min(contentLength, start(piece) + manifest.pieceLength) - 1;
+    }
+
+    /**
+     * @return the first byte of the piece not hashed yet
+     */
+    private long hashedEnd(int piece) {
+        StreamDigest digest = digests.get(piece);
+        return start(piece) + (digest == null ? 0 : digest.getCount());
+    }
+
+    private boolean isPending(int piece) {
+        return !verified.get(piece) && !bad.get(piece);
+    }
+
+    void hash(long position, byte[] buffer, int offset, int length) {
+        long end = position + length;
+        for (int piece = (int) (position / manifest.pieceLength); piece < pieceCount && start(piece) < end; piece++) {
+            if (!isPending(piece)) continue;
+            long from = hashedEnd(piece);
+            long to = Math.min(end(piece) + 1, end);
+            if (from < position || from >= to) continue;
+            digest(piece).update(buffer, offset + (int) (from - position), (int) (to - from));
+            if (hashedEnd(piece) > end(piece)) finish(piece);
+        }
+    }
+
+    /**
+     * hash the remaining bytes of the buffer like the array, the position of the buffer is kept
+     */
+    void hash(long position, ByteBuffer buffer) {
+        long end = position + buffer.remaining();
+        for (int piece = (int) (position / manifest.pieceLength); piece < pieceCount && start(piece) < end; piece++) {
+            if (!isPending(piece)) continue;
+            long from = hashedEnd(piece);
+            long to = Math.min(end(piece) + 1, end);
+            if (from < position || from >= to) continue;
+            digest(piece).update(buffer, buffer.position() + (int) (from - position), (int) (to - from));
+            if (hashedEnd(piece) > end(piece)) finish(piece);
+        }
+    }
+
+    private StreamDigest digest(int piece) {
+        StreamDigest digest = digests.get(piece);
+        if (digest == null) {
+            digest = StreamDigest.create(manifest.algorithm);
+            digests.put(piece, digest);
+        }
+        return digest;
+    }
+
+    private void finish(int piece) {
+        StreamDigest digest = digests.remove(piece);
+        if (StreamDigest.matches(digest.digest(), manifest.hashes.get(piece))) {
+            verified.set(piece);
+        } else {
+            bad.set(piece);
+        }
+    }
+
+    /**
+     * @return the first byte of the pieces between the positions which is written but not hashed though the piece
+     * has reached it, -1 if none, the caller reads it back and hashes it
+     */
+    long findUnhashed(List<DownloadSegment> segments, long from, long to) {
+        for (int piece = (int) (from / manifest.pieceLength); piece < pieceCount && start(piece) <= to; piece++) {
+            if (!isPending(piece)) continue;
+            long position = hashedEnd(piece);
+            long written;
+            synchronized (segments) {
+                written = DownloadSegment.getWrittenEnd(segments, position);
+            }
+            if (written > position) return position;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the end of the piece holding the position, exclusive
+     */
+    long limit(long position) {
+        return end((int) (position / manifest.pieceLength)) + 1;
+    }
+
+    /**
+     * @return true if all pieces are verified
+     */
+    boolean isVerified() {
+        return verified.cardinality() == pieceCount;
+    }
+
+    /**
+     * replace the finished segments by new ones for the pieces not verified, the bad ones are hashed again,
+     * call it after all pieces are caught up
+     *
+     * @return the first byte to download again, -1 if all pieces are verified
+     */
+    long reopen(List<DownloadSegment> segments) {
+        bad.clear();
+        digests.clear();
+        List<DownloadSegment> result = new ArrayList<>();
+        long position = 0;
+        long first = -1;
+        for (int piece = 0; piece < pieceCount; piece++) {
+            if (verified.get(piece)) continue;
+            long start = start(piece);
+            while (piece + 1 < pieceCount && !verified.get(piece + 1)) piece++;
+            long end = end(piece);
+            if (position < start) result.add(new DownloadSegment(position, start - 1, start));  // verified, finished
+            result.add(new DownloadSegment(start, end, start));
+            if (first < 0) first = start;
+            position = end + 1;
+        }
+        if (first < 0) return -1;
+        if (position < contentLength) result.add(new DownloadSegment(position, contentLength - 1, contentLength));
+        segments.clear();
+        segments.addAll(result);
+        return first;
+    }
+
+    /**
+     * @return the bitmap of the verified pieces for storing
+     */
+    String getState() {
+        return encode(verified, pieceCount);
+    }
+
+    /**
+     * @return bitmap in hex, every digit holds four pieces, the lowest bit for the first one
+     */
+    static String encode(BitSet pieces, int pieceCount) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pieceCount; i += 4) {
+            int digit = 0;
+            for (int j = 0; j < 4; j++) {
+                if (pieces.get(i + j)) digit |= 1 << j;
+            }
+            sb.append(Character.forDigit(digit, 16));
+        }
+        return sb.toString();
+    }
+
+    static BitSet decode(String value, int pieceCount) {
+        BitSet pieces = new BitSet(pieceCount);
+        if (value == null) return pieces;
+        for (int i = 0; i < value.length() && i * 4 < pieceCount; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) return new BitSet(pieceCount);
+            for (int j = 0; j < 4 && i * 4 + j < pieceCount; j++) {
+                if ((digit & (1 << j)) != 0) pieces.set(i * 4 + j);
+            }
+        }
+        return pieces;
+    }
+}
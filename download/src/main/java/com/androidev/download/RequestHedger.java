@@ -0,0 +1,150 @@
+package com.androidev.download;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * executes the requests of a job in thread mode, if a request has not answered within the hedge delay, the same range
+ * is asked again from another mirror, or the same url, and whichever answers first is kept, a failed one leaves it
+ * to the other
+ */
+class RequestHedger {
+
+    /**
+     * sends a request of the job to the mirror of the lease
+     */
+    interface Requester {
+
+        /**
+         * @param range null for the whole content
+         */
+        TransportResponse execute(MirrorSet.Lease lease, String range) throws IOException;
+
+        /**
+         * @return true if no hedge is worth starting any more
+         */
+        boolean isStopped();
+    }
+
+    private final DownloadEngine engine;
+    private final MirrorSet mirrors;
+    private final Requester requester;
+
+    RequestHedger(DownloadEngine engine, MirrorSet mirrors, Requester requester) {
+        this.engine = engine;
+        this.mirrors = mirrors;
+        this.requester = requester;
+    }
+
+    /**
+     * @return the answered request, its lease replaces the given one
+     */
+    Attempt execute(MirrorSet.Lease lease, String range) throws IOException {
+        Attempt attempt = new Attempt(lease, range);
+        long delay = engine.hedgeDelay;
+        if (delay <= 0) return attempt.call();
+        CompletionService<Attempt> service = new ExecutorCompletionService<>(engine.segmentExecutor);
+        service.submit(attempt);
+        Attempt hedge = null;
+        try {
+            Future<Attempt> future = service.poll(delay, TimeUnit.MILLISECONDS);
+            if (future == null && !requester.isStopped()) {
+                MirrorSet.Lease hedgeLease = mirrors.acquireOther(lease.mirror);
+                if (hedgeLease != null) {
+                    hedge = new Attempt(hedgeLease, range);
+                    service.submit(hedge);
+                    engine.hedges.incrementAndGet();
+                }
+            }
+            Attempt winner = future != null ? future.get() : service.take().get();
+            if (hedge != null && winner.error != null) {
+                winner = service.take().get();
+            }
+            Attempt loser = winner == attempt ? hedge : attempt;
+            if (loser != null) loser.abandon();
+            if (winner == hedge && winner.error == null) engine.hedgeWins.incrementAndGet();
+            return winner;
+        } catch (InterruptedException e) {
+            attempt.close();  // the caller keeps the lease
+            if (hedge != null) hedge.abandon();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            attempt.close();  // the caller keeps the lease
+            if (hedge != null) hedge.abandon();
+            Throwable cause = e.getCause();  // an attempt keeps its IOException, anything else is unchecked
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * a request which may race with its hedge, the loser is closed once it answers
+     */
+    class Attempt implements Callable<Attempt> {
+
+        final MirrorSet.Lease lease;
+        private final String range;
+        private TransportResponse response;
+        private IOException error;
+        private boolean isAbandoned;
+
+        Attempt(MirrorSet.Lease lease, String range) {
+            this.lease = lease;
+            this.range = range;
+        }
+
+        @Override
+        public Attempt call() {
+            TransportResponse response = null;
+            IOException error = null;
+            try {
+                response = requester.execute(lease, range);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                if (!isAbandoned) {
+                    this.response = response;
+                    this.error = error;
+                    return this;
+                }
+            }
+            if (response != null) response.abort();
+            return this;
+        }
+
+        synchronized TransportResponse get() throws IOException {
+            if (error != null) throw error;
+            return response;
+        }
+
+        /**
+         * abort the response, now or once it answers
+         */
+        void close() {
+            TransportResponse response;
+            synchronized (this) {
+                isAbandoned = true;
+                response = this.response;
+                this.response = null;
+            }
+            if (response != null) response.abort();
+        }
+
+        /**
+         * the other request is kept, close this one and give its mirror back
+         */
+        void abandon() {
+            close();
+            mirrors.release(lease);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.androidev.download;
+
+import java.io.IOException;
+
+/**
+ * the resource is not the one whose bytes are stored, the job should start over instead of appending
+ */
+class ResourceChangedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    ResourceChangedException(String message) {
+        super(message);
+    }
+}
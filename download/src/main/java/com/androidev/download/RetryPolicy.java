@@ -0,0 +1,151 @@
+package com.androidev.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * how a failed task is retried, the task waits for the backoff without holding a slot,
+ * then resumes from the stored progress
+ */
+public class RetryPolicy {
+
+    /**
+     * 5 retries from 1 second to 1 minute, on network errors and 408, 429, 500, 502, 503, 504
+     */
+    public static final RetryPolicy DEFAULT = new Builder().build();
+
+    /**
+     * fail at the first error
+     */
+    public static final RetryPolicy NONE = new Builder().maxRetries(0).build();
+
+    private static final Random RANDOM = new Random();
+
+    public final int maxRetries;
+    public final long initialDelay;
+    public final long maxDelay;
+    public final double multiplier;
+    public final double jitter;
+    public final Set<Integer> retryableCodes;
+    public final List<Class<? extends IOException>> retryableErrors;
+
+    private RetryPolicy(Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.initialDelay = builder.initialDelay;
+        this.maxDelay = builder.maxDelay;
+        this.multiplier = builder.multiplier;
+        this.jitter = builder.jitter;
+        this.retryableCodes = Collections.unmodifiableSet(new HashSet<>(builder.retryableCodes));
+        this.retryableErrors = Collections.unmodifiableList(new ArrayList<>(builder.retryableErrors));
+    }
+
+    /**
+     * @param retries retries made since the task made progress
+     * @return milliseconds to wait before the next retry, -1 if the error is not worth a retry
+     */
+    long getDelay(int retries, Exception error) {
+        if (retries >= maxRetries || !isRetryable(error)) return -1;
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, retries));
+        // the tasks failed by the same outage should not come back at the same time
+        double random;
+        synchronized (RANDOM) {
+            random = RANDOM.nextDouble();
+        }
+        return (long) (delay * (1 - jitter * random));
+    }
+
+    boolean isRetryable(Exception error) {
+        if (error instanceof HttpStatusException) {
+            return retryableCodes.contains(((HttpStatusException) error).code);
+        }
+        for (Class<? extends IOException> type : retryableErrors) {
+            if (type.isInstance(error)) return true;
+        }
+        return false;
+    }
+
+    public static class Builder {
+        private int maxRetries = 5;
+        private long initialDelay = 1000;
+        private long maxDelay = 60 * 1000;
+        private double multiplier = 2;
+        private double jitter = 0.5;
+        private Set<Integer> retryableCodes = new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504));
+        private List<Class<? extends IOException>> retryableErrors = new ArrayList<>();
+
+        public Builder() {
+            retryableErrors.add(SocketException.class);  // refused, reset or unreachable
+            retryableErrors.add(SocketTimeoutException.class);
+            retryableErrors.add(UnknownHostException.class);  // no network yet
+            retryableErrors.add(EOFException.class);  // the connection dropped in the middle of the body
+        }
+
+        /**
+         * @param maxRetries retries since the task made progress, 0 means never retry
+         */
+        public Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * @param initialDelay milliseconds before the first retry
+         * @param maxDelay     milliseconds the delay grows up to
+         * @param multiplier   growth of the delay at every retry
+         */
+        public Builder backoff(long initialDelay, long maxDelay, double multiplier) {
+            this.initialDelay = initialDelay;
+            this.maxDelay = maxDelay;
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * @param jitter fraction of the delay taken off at random, between 0 and 1
+         */
+        public Builder jitter(double jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param codes http status codes worth a retry, replace the default ones
+         */
+        public Builder retryableCodes(Integer... codes) {
+            this.retryableCodes = new HashSet<>(Arrays.asList(codes));
+            return this;
+        }
+
+        /**
+         * @param errors errors worth a retry, subclasses included, replace the default ones
+         */
+        public Builder retryableErrors(Collection<Class<? extends IOException>> errors) {
+            this.retryableErrors = new ArrayList<>(errors);
+            return this;
+        }
+
+        public RetryPolicy build() {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("max retries can't be negative!");
+            }
+            if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1) {
+                throw new IllegalArgumentException("backoff must grow from a non-negative delay!");
+            }
+            if (jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("jitter must be between 0 and 1!");
+            }
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.androidev.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * downloads segments of the job one by one with its own requests in thread mode, until there is nothing worth to do,
+ * every segment is asked from the best mirror at that time, and goes on from another one if the mirror fails
+ */
+class SegmentWorker implements Callable<Void> {
+
+    private final DownloadJob job;
+    private final DownloadEngine engine;
+    private final DownloadSink sink;
+    private DownloadSegment segment;
+    private TransportResponse response;
+    private MirrorSet.Lease lease;
+
+    /**
+     * @param response opened response for the segment, may be null
+     * @param lease    mirror of the response
+     */
+    SegmentWorker(DownloadJob job, DownloadSink sink, DownloadSegment segment, TransportResponse response, MirrorSet.Lease lease) {
+        this.job = job;
+        this.engine = job.engine;
+        this.sink = sink;
+        this.segment = segment;
+        this.response = response;
+        this.lease = lease;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        MirrorSet mirrors = job.mirrors;
+        try {
+            while (segment != null) {
+                try {
+                    download();
+                } catch (IOException e) {
+                    // the written bytes are kept, the rest of the segment is asked from another mirror
+                    if (job.isStopped() || job.isAborted || e instanceof ResourceChangedException || !mirrors.hasMirrors()
+                            || (lease = mirrors.fail(lease)) == null) throw e;
+                    continue;
+                }
+                mirrors.release(lease);
+                lease = null;
+                if (job.isStopped()) break;
+                segment = job.nextSegment();
+            }
+            return null;
+        } catch (Exception e) {
+            job.isAborted = true;
+            throw e;
+        }
+    }
+
+    private void download() throws Exception {
+        InputStream inputStream = null;
+        job.activate(segment);
+        long start = segment.current;
+        try {
+            if (lease == null) {
+                lease = job.mirrors.acquire();
+                if (lease == null) throw new IOException("all mirrors failed");
+            }
+            if (response == null) {
+                RequestHedger.Attempt attempt = job.hedger.execute(lease, "bytes=" + segment.current + "-" + segment.end);
+                lease = attempt.lease;
+                response = attempt.get();
+            }
+            job.checkResponse(segment, lease.mirror, response.code(), response.header("Content-Range"), response.header("Content-Length"),
+                    response.header("ETag"), response.header("Last-Modified"));
+            inputStream = response.body();
+            switch (engine.writeMode) {
+                case DownloadManager.WRITE_MODE_CHANNEL:
+                    writeBuffers(channel(inputStream));
+                    break;
+                case DownloadManager.WRITE_MODE_TRANSFER:
+                case DownloadManager.WRITE_MODE_MAPPED:  // read into the window directly
+                    transfer(channel(inputStream));
+                    break;
+                default:
+                    writeBytes(inputStream);
+                    break;
+            }
+            if (isActive()) {
+                throw new EOFException("unexpected end of stream");
+            }
+        } finally {
+            job.deactivate(segment);
+            if (lease != null) lease.onTransferred(segment.current - start);
+            try {
+                if (inputStream != null)
+                    inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (response != null) {
+                if (segment.isFinished()) response.close();
+                else response.abort();  // stopped or failed, the rest is not wanted
+            }
+            response = null;
+        }
+    }
+
+    /**
+     * @return the channel exposed by the transport, or a channel over the body
+     */
+    private ReadableByteChannel channel(InputStream inputStream) throws IOException {
+        ReadableByteChannel channel = response.channel();
+        return channel != null ? channel : Channels.newChannel(inputStream);
+    }
+
+    private boolean isActive() {
+        return !job.isStopped() && !job.isAborted && !segment.isFinished();
+    }
+
+    private void writeBytes(InputStream inputStream) throws IOException {
+        byte[] buffer = engine.bufferPool.acquireArray();
+        try {
+            int step;
+            int len;
+            while (isActive() && (len = inputStream.read(buffer, 0, step = job.readStep(segment, buffer.length))) != -1) {
+                sink.write(segment.current, buffer, 0, len);
+                job.hash(segment.current, buffer, 0, len);
+                job.onWritten(sink, segment, step, len);
+                job.throttle(len);
+            }
+        } finally {
+            engine.bufferPool.release(buffer);
+        }
+    }
+
+    private void writeBuffers(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = engine.bufferPool.acquireBuffer();
+        try {
+            int step;
+            int len;
+            while (isActive()) {
+                buffer.clear();
+                buffer.limit(step = job.readStep(segment, buffer.capacity()));
+                if ((len = channel.read(buffer)) == -1) break;
+                buffer.flip();
+                job.hash(segment.current, buffer);
+                sink.write(segment.current, buffer);
+                job.onWritten(sink, segment, step, len);
+                job.throttle(len);
+            }
+        } finally {
+            engine.bufferPool.release(buffer);
+        }
+    }
+
+    private void transfer(ReadableByteChannel channel) throws IOException {
+        int step;
+        long len;
+        while (isActive() && (len = sink.transferFrom(channel, segment.current, step = job.readStep(segment, Integer.MAX_VALUE))) > 0) {
+            job.onWritten(sink, segment, step, len);
+            job.throttle(len);
+        }
+    }
+}
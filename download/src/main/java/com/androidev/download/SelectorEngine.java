@@ -0,0 +1,58 @@
+package com.androidev.download;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.Executor;
+
+/**
+ * a few selector loops shared by the jobs in DownloadManager.ENGINE_MODE_SELECTOR,
+ * every job is bound to one loop so that its callbacks never run at the same time
+ */
+class SelectorEngine {
+
+    private final SelectorLoop[] loops;
+    private int next;
+
+    /**
+     * @param blockingExecutor runs the work which must not block the loops, such as resolving the hosts
+     */
+    SelectorEngine(int loopCount, int bufferSize, Executor blockingExecutor) throws IOException {
+        loops = new SelectorLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new SelectorLoop("download-selector-" + i, bufferSize, blockingExecutor);
+        }
+    }
+
+    synchronized SelectorLoop nextLoop() {
+        SelectorLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        return loop;
+    }
+
+    void shutdown() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * @return false if the url needs the transport, the loops speak plain http only and connect the hosts directly,
+     * so a url going through a proxy, such as the system proxy of the wifi, is left to the transport as well
+     */
+    static boolean supports(String url) {
+        if (url == null || !url.regionMatches(true, 0, "http://", 0, "http://".length())) return false;
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) return true;
+        try {
+            for (Proxy proxy : selector.select(new URI(url))) {
+                if (proxy.type() != Proxy.Type.DIRECT) return false;
+            }
+        } catch (URISyntaxException e) {
+            return false;  // the transport reports it
+        }
+        return true;
+    }
+}
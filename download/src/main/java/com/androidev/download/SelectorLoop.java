@@ -0,0 +1,152 @@
+package com.androidev.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * an i/o thread multiplexing the exchanges registered to its selector,
+ * the exchanges and their listeners are called on this thread only
+ */
+class SelectorLoop implements Runnable {
+
+    private static final long TICK = 1000;  // milliseconds between checking the timeouts
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer;  // shared by the exchanges, every read is consumed before the next one
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Set<NioExchange> exchanges = new HashSet<>();
+    private final Executor blockingExecutor;
+    private final Thread thread;
+    private volatile boolean isClosed;
+    private long checkTime;
+
+    SelectorLoop(String name, int bufferSize, Executor blockingExecutor) throws IOException {
+        selector = Selector.open();
+        readBuffer = ByteBuffer.allocateDirect(bufferSize);
+        this.blockingExecutor = blockingExecutor;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * run the task on the loop thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * run the task off the loop thread, it posts its result back with execute
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the engine is destroyed
+     */
+    void offload(Runnable task) {
+        blockingExecutor.execute(task);
+    }
+
+    /**
+     * run the task on the loop thread after the delay, called on the loop thread
+     */
+    void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    void register(NioExchange exchange) {
+        exchanges.add(exchange);
+    }
+
+    void unregister(NioExchange exchange) {
+        exchanges.remove(exchange);
+    }
+
+    void shutdown() {
+        isClosed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!isClosed) {
+            try {
+                long timeout = TICK;
+                Timer timer = timers.peek();
+                if (timer != null) {
+                    timeout = Math.max(1, Math.min(timeout, (timer.time - System.nanoTime()) / 1000000 + 1));
+                }
+                selector.select(timeout);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    ((NioExchange) key.attachment()).onReady(key);
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while ((timer = timers.peek()) != null && timer.time <= now) {
+                    timers.poll().task.run();
+                }
+                if (now - checkTime >= TICK * 1000000) {
+                    checkTime = now;
+                    for (NioExchange exchange : new ArrayList<>(exchanges)) {
+                        exchange.checkTimeout(now);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                e.printStackTrace();  // a bad listener must not stop the other exchanges
+            }
+        }
+        for (NioExchange exchange : new ArrayList<>(exchanges)) {
+            exchange.fail(new IOException("selector loop is shut down"));
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+
+        final long time;
+        final Runnable task;
+
+        Timer(long time, Runnable task) {
+            this.time = time;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer another) {
+            return time < another.time ? -1 : (time == another.time ? 0 : 1);
+        }
+    }
+}
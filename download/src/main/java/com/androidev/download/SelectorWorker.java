@@ -0,0 +1,452 @@
+package com.androidev.download;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * downloads the segments of the job with non-blocking exchanges on one of the engine's selector loops, no thread waits for the data,
+ * the callbacks of the exchanges run on the loop thread and do only the socket i/o and the writes to the page cache there,
+ * the work which may block, such as allocating the file, reading it back, syncing and storing the progress,
+ * runs off the loop one chore after another
+ */
+class SelectorWorker implements NioExchange.Listener {
+
+    private final DownloadJob job;
+    private final DownloadInfo info;
+    private final DownloadEngine engine;
+    private final MirrorSet mirrors;
+    private final SelectorLoop loop;
+    // used on the loop thread
+    private final Map<NioExchange, DownloadSegment> exchanges = new HashMap<>();  // the segment is null until the first response
+    private final Map<NioExchange, MirrorSet.Lease> leases = new HashMap<>();
+    private final Set<NioExchange> waiting = new HashSet<>();  // no response yet, may be hedged
+    private final Map<NioExchange, NioExchange> partners = new HashMap<>();  // a request and its hedge, both ways
+    private final Set<NioExchange> hedges = new HashSet<>();
+    private final Set<NioExchange> abandoned = new HashSet<>();  // lost the race, closing
+    private boolean isPreparing = true;  // a chore is preparing the sink or finishing, no exchange may start
+    // used by the chores, and by the loop between them
+    private volatile DownloadSink sink;
+    private volatile IOException error;
+    private volatile boolean isWaitingForSpace;
+    private volatile boolean isFinished;
+    private int restarts;
+    private int pieceRounds;
+    // guarded by chores
+    private final LinkedList<Runnable> chores = new LinkedList<>();
+    private boolean isChoring;
+    private long catchUpFrom = -1;  // the written range to hash, -1 if none
+    private long catchUpTo;
+    private boolean isStoreDue;
+    private boolean isStoreQueued;
+
+    private final Runnable runChores = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable chore;
+                synchronized (chores) {
+                    chore = chores.poll();
+                    if (chore == null) {
+                        isChoring = false;
+                        return;
+                    }
+                }
+                chore.run();
+            }
+        }
+    };
+
+    private final Runnable storeProgress = new Runnable() {
+        @Override
+        public void run() {
+            long from;
+            long to;
+            boolean store;
+            synchronized (chores) {
+                from = catchUpFrom;
+                to = catchUpTo;
+                store = isStoreDue;
+                catchUpFrom = -1;
+                catchUpTo = 0;
+                isStoreDue = false;
+                isStoreQueued = false;
+            }
+            DownloadSink sink = SelectorWorker.this.sink;
+            if (sink == null) return;
+            try {
+                if (from >= 0) job.catchUp(sink, from, to);
+                if (store) job.store(sink);
+            } catch (final IOException e) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        abort(e);
+                    }
+                });
+            }
+        }
+    };
+
+    private final Runnable finish = new Runnable() {
+        @Override
+        public void run() {
+            finish();
+        }
+    };
+
+    SelectorWorker(DownloadJob job, DownloadEngine engine) {
+        this.job = job;
+        this.info = job.info;
+        this.engine = engine;
+        this.mirrors = job.mirrors;
+        this.loop = engine.selectorEngine.nextLoop();
+    }
+
+    /**
+     * called on the job's thread
+     */
+    void start() {
+        begin();
+    }
+
+    /**
+     * start the segment split for a reader at once if the job has a connection to spare
+     */
+    void prioritize(final DownloadSegment segment) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (job.isStopped() || job.isAborted || isFinished || isPreparing || exchanges.size() >= info.segmentCount) return;
+                if (!job.takeSegment(segment)) return;
+                startExchange(segment, mirrors.acquire());
+            }
+        });
+    }
+
+    /**
+     * close all exchanges, the job stops once all of them are finished
+     */
+    void stop() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (NioExchange exchange : new ArrayList<>(exchanges.keySet())) {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * run the chore off the loop after the ones before it
+     */
+    private void offload(Runnable chore) {
+        synchronized (chores) {
+            chores.add(chore);
+            if (isChoring) return;
+            isChoring = true;
+        }
+        loop.offload(runChores);
+    }
+
+    /**
+     * called off the loop, prepare the sink and start the segments, or ask for the first response
+     */
+    private void begin() {
+        int workerCount = 0;
+        try {
+            job.probe(engine, false);  // never blocks for a probe, a new job learns from its first response
+            if (info.segments == null) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        isPreparing = false;
+                        if (!job.isStopped()) startExchange(null, mirrors.acquire());
+                        if (exchanges.isEmpty()) onIdle();
+                    }
+                });
+                return;
+            }
+            if (open()) workerCount = prepareSegments();
+        } catch (IOException e) {
+            error = e;
+        }
+        launch(null, workerCount);
+    }
+
+    /**
+     * start the prepared segments on the loop
+     *
+     * @param first opened exchange for the first segment, held until it is given the segment, may be null
+     */
+    private void launch(final NioExchange first, final int workerCount) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                isPreparing = false;
+                if (!job.isStopped() && !job.isAborted && error == null) {
+                    startSegments(first, workerCount);
+                } else if (first != null) {
+                    first.close();
+                }
+                if (exchanges.isEmpty()) onIdle();
+            }
+        });
+    }
+
+    /**
+     * called on the loop once all exchanges are finished
+     */
+    private void onIdle() {
+        if (!exchanges.isEmpty() || isPreparing || isFinished) return;
+        isPreparing = true;
+        offload(finish);
+    }
+
+    /**
+     * called on the loop, stop the other segments
+     */
+    private void abort(IOException e) {
+        if (error == null) error = e;
+        job.isAborted = true;
+        for (NioExchange exchange : new ArrayList<>(exchanges.keySet())) {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param segment null for the first request
+     */
+    private void startExchange(DownloadSegment segment, MirrorSet.Lease lease) {
+        String range = segment == null ? (info.segmentCount > 1 ? "bytes=0-" : null) : "bytes=" + segment.current + "-" + segment.end;
+        NioExchange exchange = new NioExchange(loop, job.request(lease, range), this);
+        if (segment == null) {
+            exchanges.put(exchange, null);
+        } else {
+            activate(exchange, segment);
+        }
+        leases.put(exchange, lease);
+        exchange.start();
+        long delay = engine.hedgeDelay;
+        if (delay > 0) {
+            waiting.add(exchange);
+            loop.schedule(hedge(exchange, segment, range), delay * 1000000L);
+        }
+    }
+
+    /**
+     * @return task asking the range of the exchange again if it is still waiting for the response
+     */
+    private Runnable hedge(final NioExchange exchange, final DownloadSegment segment, final String range) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!waiting.contains(exchange) || job.isStopped() || job.isAborted || isFinished) return;
+                MirrorSet.Lease lease = mirrors.acquireOther(leases.get(exchange).mirror);
+                if (lease == null) return;
+                NioExchange hedge = new NioExchange(loop, job.request(lease, range), SelectorWorker.this);
+                exchanges.put(hedge, segment);  // the segment is activated once, by the request
+                leases.put(hedge, lease);
+                waiting.add(hedge);
+                partners.put(exchange, hedge);
+                partners.put(hedge, exchange);
+                hedges.add(hedge);
+                engine.hedges.incrementAndGet();
+                hedge.start();
+            }
+        };
+    }
+
+    /**
+     * called off the loop
+     */
+    private boolean open() throws IOException {
+        // the mapped windows are kept per thread, but all segments share the loop thread here
+        sink = job.isInMemory() ? new MemorySink(engine.bufferPool, info.contentLength) : new FileSink(new File(info.path));
+        if (job.reserveSpace(sink)) return true;
+        isWaitingForSpace = true;
+        return false;
+    }
+
+    /**
+     * called off the loop, verify the written pieces and collect the unfinished segments
+     *
+     * @return count of the segments to start
+     */
+    private int prepareSegments() throws IOException {
+        job.preparePieces(sink);
+        return Math.min(info.segmentCount, job.collectSegments());
+    }
+
+    /**
+     * called on the loop
+     *
+     * @param first opened exchange for the first segment, may be null
+     */
+    private void startSegments(NioExchange first, int workerCount) {
+        if (first != null && workerCount == 0) first.close();
+        for (int i = 0; i < workerCount; i++) {
+            DownloadSegment segment = job.pollSegment();
+            if (segment == null) break;
+            if (i == 0 && first != null) {
+                activate(first, segment);
+            } else {
+                startExchange(segment, mirrors.acquire());  // the first response is good, some mirror is left
+            }
+        }
+        if (first != null && workerCount > 0) first.release();  // may finish it at once, the others are started by then
+    }
+
+    private void activate(NioExchange exchange, DownloadSegment segment) {
+        job.activate(segment);
+        exchanges.put(exchange, segment);
+    }
+
+    @Override
+    public void onResponse(final NioExchange exchange) throws IOException {
+        waiting.remove(exchange);
+        NioExchange partner = partners.remove(exchange);
+        if (partner != null) {  // won the race, the other one is closed
+            partners.remove(partner);
+            waiting.remove(partner);
+            abandoned.add(partner);
+            partner.close();
+            if (hedges.contains(exchange)) engine.hedgeWins.incrementAndGet();
+        }
+        hedges.remove(exchange);
+        DownloadSegment segment = exchanges.get(exchange);
+        int responseCode = exchange.code();
+        MirrorSet.Mirror mirror = leases.get(exchange).mirror;
+        if (segment == null) {  // the first response decides the segments, its body waits for the sink
+            job.onFirstResponse(mirror, responseCode, exchange.url(), exchange.header("Content-Range"), exchange.header("Content-Length"),
+                    exchange.header("Accept-Ranges"), exchange.header("ETag"), exchange.header("Last-Modified"));
+            isPreparing = true;
+            exchange.hold();
+            offload(new Runnable() {
+                @Override
+                public void run() {
+                    int workerCount = 0;
+                    try {
+                        if (open()) workerCount = prepareSegments();
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    launch(exchange, workerCount);
+                }
+            });
+            return;
+        }
+        job.checkResponse(segment, mirror, responseCode, exchange.header("Content-Range"), exchange.header("Content-Length"),
+                exchange.header("ETag"), exchange.header("Last-Modified"));
+    }
+
+    @Override
+    public long onBody(NioExchange exchange, ByteBuffer buffer) throws IOException {
+        DownloadSegment segment = exchanges.get(exchange);
+        if (segment == null || job.isStopped() || job.isAborted) {
+            exchange.close();
+            return 0;
+        }
+        int length = (int) Math.min(buffer.remaining(), segment.remaining());
+        buffer.limit(buffer.position() + length);
+        long position = segment.current;
+        job.hash(position, buffer);
+        sink.write(position, buffer);
+        storeLater(position, position + length - 1, job.count(segment, buffer.capacity(), length));
+        leases.get(exchange).onTransferred(length);
+        if (segment.isFinished()) {  // the response of the first segment may run over the next ones
+            exchange.close();
+            return 0;
+        }
+        return job.reserveThrottle(length);
+    }
+
+    /**
+     * hash the bytes the digests have not reached inline, and store the progress if it is due, off the loop,
+     * the ranges of the writes meanwhile are merged into one chore
+     */
+    private void storeLater(long from, long to, boolean store) {
+        synchronized (chores) {
+            catchUpFrom = catchUpFrom < 0 ? from : Math.min(catchUpFrom, from);
+            catchUpTo = Math.max(catchUpTo, to);
+            isStoreDue |= store;
+            if (isStoreQueued) return;
+            isStoreQueued = true;
+        }
+        offload(storeProgress);
+    }
+
+    @Override
+    public void onFinished(NioExchange exchange, IOException e) {
+        DownloadSegment segment = exchanges.remove(exchange);
+        MirrorSet.Lease lease = leases.remove(exchange);
+        waiting.remove(exchange);
+        hedges.remove(exchange);
+        NioExchange partner = partners.remove(exchange);
+        if (partner != null) partners.remove(partner);
+        if (abandoned.remove(exchange) || partner != null) {
+            // lost the race, or failed while the other one may still answer, the segment goes on with the other
+            mirrors.release(lease);
+            return;
+        }
+        if (segment != null) job.deactivate(segment);
+        if (!job.isStopped() && !job.isAborted && !isWaitingForSpace) {
+            if (e == null && (segment == null || !segment.isFinished())) {
+                e = new EOFException("unexpected end of stream");
+            }
+            if (e != null && !(e instanceof ResourceChangedException) && mirrors.hasMirrors()
+                    && (lease = mirrors.fail(lease)) != null) {
+                startExchange(segment, lease);  // the written bytes are kept, the rest is asked from another mirror
+            } else if (e != null) {
+                abort(e);
+            } else {
+                mirrors.release(lease);
+                DownloadSegment next = job.pollSegment();
+                if (next != null) startExchange(next, mirrors.acquire());
+            }
+        } else if (lease != null) {
+            mirrors.release(lease);
+        }
+        onIdle();
+    }
+
+    /**
+     * called off the loop after the chores storing the progress
+     */
+    private void finish() {
+        if (error instanceof ResourceChangedException && restarts < DownloadJob.MAX_RESTARTS && !job.isStopped()) {
+            job.closeSink(engine, sink);  // keeps the slot, starts over with the first request
+            sink = null;
+            error = null;
+            job.isAborted = false;
+            restarts++;
+            job.restart(engine);
+            begin();
+            return;
+        }
+        if (error == null && sink != null && !isWaitingForSpace && !job.isStopped() && pieceRounds < DownloadJob.MAX_PIECE_ROUNDS) {
+            try {
+                if (job.reopenPieces(sink)) {
+                    pieceRounds++;
+                    int workerCount = prepareSegments();
+                    if (workerCount > 0) {
+                        launch(null, workerCount);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        isFinished = true;
+        job.onSelectorStopped(engine, sink, error, isWaitingForSpace);
+    }
+}
@@ -0,0 +1,33 @@
+package com.androidev.download;
+
+import java.io.File;
+
+/**
+ * records the bytes promised to the running jobs but not allocated by the file system yet,
+ * so that the jobs started at the same time do not count the same free space
+ */
+class SpaceLedger {
+
+    static final long MIN_FREE_SPACE = 16 * 1024 * 1024;  // leave some space for the system and the database
+
+    private long reserved;
+
+    /**
+     * @return false if the directory can not hold the length besides the reserved bytes
+     */
+    synchronized boolean reserve(File directory, long length) {
+        if (length <= 0) return true;
+        long usable = directory.getUsableSpace();
+        if (usable - reserved - MIN_FREE_SPACE < length) return false;
+        reserved += length;
+        return true;
+    }
+
+    synchronized void release(long length) {
+        reserved = Math.max(0, reserved - length);
+    }
+
+    synchronized long getReserved() {
+        return reserved;
+    }
+}
@@ -0,0 +1,343 @@
+package com.androidev.download;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * MD5, SHA-1 and SHA-256 whose state can be stored with the progress, MessageDigest can only be cloned,
+ * so a resumed job would have to hash the stored bytes again
+ */
+abstract class StreamDigest {
+
+    static final String MD5 = DownloadManager.CHECKSUM_MD5;
+    static final String SHA1 = DownloadManager.CHECKSUM_SHA1;
+    static final String SHA256 = DownloadManager.CHECKSUM_SHA256;
+
+    private static final int BLOCK_SIZE = 64;
+    private static final int SCRATCH_SIZE = 8 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    final int[] words;  // the chaining state
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private byte[] scratch;  // copies the bytes of direct buffers, allocated at the first one
+    private final boolean isBigEndian;
+    private long count;  // bytes hashed
+
+    StreamDigest(int[] words, boolean isBigEndian) {
+        this.words = words;
+        this.isBigEndian = isBigEndian;
+    }
+
+    static boolean isSupported(String algorithm) {
+        return MD5.equalsIgnoreCase(algorithm) || SHA1.equalsIgnoreCase(algorithm) || SHA256.equalsIgnoreCase(algorithm);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    static StreamDigest create(String algorithm) {
+        if (MD5.equalsIgnoreCase(algorithm)) return new Md5();
+        if (SHA1.equalsIgnoreCase(algorithm)) return new Sha1();
+        if (SHA256.equalsIgnoreCase(algorithm)) return new Sha256();
+        throw new IllegalArgumentException("unsupported algorithm: " + algorithm);
+    }
+
+    /**
+     * @param state got from getState, may be null
+     * @return the restored digest, a new one if the state is missing or malformed
+     */
+    static StreamDigest restore(String algorithm, String state) {
+        StreamDigest digest = create(algorithm);
+        if (state == null) return digest;
+        String[] parts = state.split(":", -1);
+        try {
+            if (parts.length != 3 || parts[1].length() != digest.words.length * 8) return digest;
+            long count = Long.parseLong(parts[0]);
+            int partial = (int) (count % BLOCK_SIZE);
+            if (count < 0 || parts[2].length() != partial * 2) return digest;
+            for (int i = 0; i < digest.words.length; i++) {
+                digest.words[i] = (int) Long.parseLong(parts[1].substring(i * 8, i * 8 + 8), 16);
+            }
+            for (int i = 0; i < partial; i++) {
+                digest.block[i] = (byte) Integer.parseInt(parts[2].substring(i * 2, i * 2 + 2), 16);
+            }
+            digest.count = count;
+        } catch (NumberFormatException e) {
+            return create(algorithm);
+        }
+        return digest;
+    }
+
+    /**
+     * @return the count of hashed bytes, the chaining state and the bytes of the partial block
+     */
+    String getState() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(count).append(':');
+        for (int word : words) {
+            appendHex(sb, word);
+        }
+        sb.append(':');
+        for (int i = 0; i < count % BLOCK_SIZE; i++) {
+            sb.append(HEX[(block[i] >> 4) & 0xf]).append(HEX[block[i] & 0xf]);
+        }
+        return sb.toString();
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    void update(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int partial = (int) (count % BLOCK_SIZE);
+            if (partial == 0 && length >= BLOCK_SIZE) {
+                process(buffer, offset);
+                count += BLOCK_SIZE;
+                offset += BLOCK_SIZE;
+                length -= BLOCK_SIZE;
+                continue;
+            }
+            int len = Math.min(length, BLOCK_SIZE - partial);
+            System.arraycopy(buffer, offset, block, partial, len);
+            count += len;
+            offset += len;
+            length -= len;
+            if (partial + len == BLOCK_SIZE) process(block, 0);
+        }
+    }
+
+    /**
+     * hash the bytes from position to limit, the position of the buffer is kept
+     */
+    void update(ByteBuffer buffer) {
+        update(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * hash the bytes of the buffer from the index, the position and the limit of the buffer are kept
+     */
+    void update(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + offset, length);
+            return;
+        }
+        if (scratch == null) scratch = new byte[SCRATCH_SIZE];
+        int position = buffer.position();
+        int limit = buffer.limit();
+        try {
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            while (buffer.hasRemaining()) {
+                int len = Math.min(buffer.remaining(), scratch.length);
+                buffer.get(scratch, 0, len);
+                update(scratch, 0, len);
+            }
+        } finally {
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * pad the last block, the digest can not be updated any more
+     *
+     * @return the digest in lowercase hex
+     */
+    String digest() {
+        long bits = count * 8;
+        byte[] padding = new byte[(int) (BLOCK_SIZE - (count + 8) % BLOCK_SIZE) + 8];
+        padding[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            int shift = isBigEndian ? (7 - i) * 8 : i * 8;
+            padding[padding.length - 8 + i] = (byte) (bits >>> shift);
+        }
+        update(padding, 0, padding.length);
+        StringBuilder sb = new StringBuilder();
+        for (int word : words) {
+            appendHex(sb, isBigEndian ? word : Integer.reverseBytes(word));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the hex digest is the expected one, in any case
+     */
+    static boolean matches(String digest, String expected) {
+        return expected != null && digest.equals(expected.trim().toLowerCase(Locale.US));
+    }
+
+    private static void appendHex(StringBuilder sb, int word) {
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            sb.append(HEX[(word >>> shift) & 0xf]);
+        }
+    }
+
+    int readInt(byte[] buffer, int offset) {
+        if (isBigEndian) {
+            return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16 | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+        }
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8 | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * hash a whole block at the offset into the words
+     */
+    abstract void process(byte[] buffer, int offset);
+
+    private static class Md5 extends StreamDigest {
+
+        private static final int[] SHIFTS = {7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21};
+        private static final int[] K = new int[64];
+
+        static {
+            for (int i = 0; i < 64; i++) {
+                K[i] = (int) (long) Math.floor(Math.abs(Math.sin(i + 1)) * 4294967296.0);
+            }
+        }
+
+        private final int[] m = new int[16];
+
+        Md5() {
+            super(new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476}, false);
+        }
+
+        @Override
+        void process(byte[] buffer, int offset) {
+            for (int i = 0; i < 16; i++) {
+                m[i] = readInt(buffer, offset + i * 4);
+            }
+            int a = words[0], b = words[1], c = words[2], d = words[3];
+            for (int i = 0; i < 64; i++) {
+                int f;
+                int g;
+                if (i < 16) {
+                    f = (b & c) | (~b & d);
+                    g = i;
+                } else if (i < 32) {
+                    f = (d & b) | (~d & c);
+                    g = (5 * i + 1) & 15;
+                } else if (i < 48) {
+                    f = b ^ c ^ d;
+                    g = (3 * i + 5) & 15;
+                } else {
+                    f = c ^ (b | ~d);
+                    g = (7 * i) & 15;
+                }
+                int temp = d;
+                d = c;
+                c = b;
+                b = b + Integer.rotateLeft(a + f + K[i] + m[g], SHIFTS[(i >> 4) * 4 + (i & 3)]);
+                a = temp;
+            }
+            words[0] += a;
+            words[1] += b;
+            words[2] += c;
+            words[3] += d;
+        }
+    }
+
+    private static class Sha1 extends StreamDigest {
+
+        private final int[] w = new int[80];
+
+        Sha1() {
+            super(new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0}, true);
+        }
+
+        @Override
+        void process(byte[] buffer, int offset) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = readInt(buffer, offset + i * 4);
+            }
+            for (int i = 16; i < 80; i++) {
+                w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+            }
+            int a = words[0], b = words[1], c = words[2], d = words[3], e = words[4];
+            for (int i = 0; i < 80; i++) {
+                int f;
+                int k;
+                if (i < 20) {
+                    f = (b & c) | (~b & d);
+                    k = 0x5a827999;
+                } else if (i < 40) {
+                    f = b ^ c ^ d;
+                    k = 0x6ed9eba1;
+                } else if (i < 60) {
+                    f = (b & c) | (b & d) | (c & d);
+                    k = 0x8f1bbcdc;
+                } else {
+                    f = b ^ c ^ d;
+                    k = 0xca62c1d6;
+                }
+                int temp = Integer.rotateLeft(a, 5) + f + e + k + w[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = temp;
+            }
+            words[0] += a;
+            words[1] += b;
+            words[2] += c;
+            words[3] += d;
+            words[4] += e;
+        }
+    }
+
+    private static class Sha256 extends StreamDigest {
+
+        private static final int[] K = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2};
+
+        private final int[] w = new int[64];
+
+        Sha256() {
+            super(new int[]{0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19}, true);
+        }
+
+        @Override
+        void process(byte[] buffer, int offset) {
+            for (int i = 0; i < 16; i++) {
+                w[i] = readInt(buffer, offset + i * 4);
+            }
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            int a = words[0], b = words[1], c = words[2], d = words[3], e = words[4], f = words[5], g = words[6], h = words[7];
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+                int ch = (e & f) ^ (~e & g);
+                int temp1 = h + s1 + ch + K[i] + w[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+                int maj = (a & b) ^ (a & c) ^ (b & c);
+                int temp2 = s0 + maj;
+                h = g;
+                g = f;
+                f = e;
+                e = d + temp1;
+                d = c;
+                c = b;
+                b = a;
+                a = temp1 + temp2;
+            }
+            words[0] += a;
+            words[1] += b;
+            words[2] += c;
+            words[3] += d;
+            words[4] += e;
+            words[5] += f;
+            words[6] += g;
+            words[7] += h;
+        }
+    }
+}
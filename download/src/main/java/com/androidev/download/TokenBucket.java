@@ -0,0 +1,97 @@
+package com.androidev.download;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * limits the bytes per second, the waiting threads are served in order so that none of them starves,
+ * the rate can be changed at any time, the waiting threads pick up the new rate at once
+ */
+class TokenBucket {
+
+    private static final long BURST_MILLIS = 100;  // tokens saved while idle, at most 100 ms of data
+
+    private long rate;  // bytes per second, 0 means unlimited
+    private double tokens;
+    private long refillTime;
+    private final Deque<Thread> waiters = new ArrayDeque<>();
+
+    TokenBucket(long rate) {
+        this.rate = rate;
+        this.refillTime = System.nanoTime();
+    }
+
+    synchronized void setRate(long rate) {
+        if (this.rate == rate) return;
+        refill(System.nanoTime());
+        this.rate = rate;
+        tokens = Math.min(tokens, capacity());
+        notifyAll();
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * @return max bytes a read should take at a time to keep the flow smooth, Integer.MAX_VALUE if unlimited
+     */
+    synchronized int getChunkLimit() {
+        return rate <= 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, Math.max(1024, rate / 10));
+    }
+
+    /**
+     * take the bytes which have been read, wait until the bucket is not in debt
+     */
+    synchronized void acquire(long bytes) throws InterruptedIOException {
+        if (rate <= 0) return;
+        Thread self = Thread.currentThread();
+        waiters.add(self);
+        try {
+            while (rate > 0) {
+                long now = System.nanoTime();
+                refill(now);
+                if (waiters.peek() == self && tokens > 0) {
+                    tokens -= bytes;  // may run into debt, the next one waits for it
+                    return;
+                }
+                if (waiters.peek() == self) {
+                    long nanos = (long) (-tokens * 1000000000L / rate) + 1;
+                    wait(nanos / 1000000, (int) (nanos % 1000000));
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while throttling");
+        } finally {
+            waiters.remove(self);
+            notifyAll();
+        }
+    }
+
+    /**
+     * take the bytes without waiting, for the selector loops which must not block
+     *
+     * @return nanoseconds until the bucket is out of debt, 0 if it is not in debt
+     */
+    synchronized long reserve(long bytes) {
+        if (rate <= 0) return 0;
+        refill(System.nanoTime());
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1000000000L / rate) + 1;
+    }
+
+    private long capacity() {
+        return rate * BURST_MILLIS / 1000;
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(capacity(), tokens + (now - refillTime) * (double) rate / 1000000000L);
+        }
+        refillTime = now;
+    }
+}
@@ -0,0 +1,22 @@
+package com.androidev.download;
+
+import java.io.IOException;
+
+/**
+ * owns the connections of the engine, every range request of the jobs goes through it,
+ * an implementation may keep connections alive or multiplex the requests of a host on one connection
+ */
+public interface Transport {
+
+    /**
+     * execute the request, may be called by several threads at the same time
+     *
+     * @return the response, must be closed by the caller
+     */
+    TransportResponse execute(TransportRequest request) throws IOException;
+
+    /**
+     * release all connections, called when the engine is destroyed
+     */
+    void shutdown();
+}
@@ -0,0 +1,80 @@
+package com.androidev.download;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * a request executed by Transport
+ */
+public class TransportRequest {
+
+    public final String method;
+    public final String url;
+    public final int connectTimeout;
+    public final int readTimeout;
+    public final Map<String, String> headers;
+
+    private TransportRequest(Builder builder) {
+        this.method = builder.method;
+        this.url = builder.url;
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(builder.headers));
+    }
+
+    public String header(String name) {
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) return entry.getValue();
+        }
+        return null;
+    }
+
+    public static class Builder {
+        private String method = "GET";
+        private String url;
+        private int connectTimeout = 5000;
+        private int readTimeout = 5000;
+        private Map<String, String> headers = new LinkedHashMap<>();
+
+        public Builder(String url) {
+            this.url = url;
+        }
+
+        public Builder method(String method) {
+            this.method = method;
+            return this;
+        }
+
+        public Builder url(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public Builder header(String name, String value) {
+            if (value == null) {
+                headers.remove(name);
+            } else {
+                headers.put(name, value);
+            }
+            return this;
+        }
+
+        public Builder connectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder readTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        public TransportRequest build() {
+            if (url == null || url.length() == 0) {
+                throw new IllegalArgumentException("url can't be empty!");
+            }
+            return new TransportRequest(this);
+        }
+    }
+}
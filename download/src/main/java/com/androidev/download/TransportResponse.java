@@ -0,0 +1,48 @@
+package com.androidev.download;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * response of a TransportRequest, holds the connection until it is closed
+ */
+public abstract class TransportResponse implements Closeable {
+
+    public abstract int code();
+
+    /**
+     * @param name case insensitive
+     * @return null if absent
+     */
+    public abstract String header(String name);
+
+    /**
+     * @return url of the response, differs from the request if redirected
+     */
+    public abstract String url();
+
+    public abstract InputStream body() throws IOException;
+
+    /**
+     * @return channel of the body for FileChannel.transferFrom, null if the transport can not expose one
+     */
+    public ReadableByteChannel channel() throws IOException {
+        return null;
+    }
+
+    /**
+     * release the connection, it may be reused only if the body has been read to the end
+     */
+    @Override
+    public abstract void close();
+
+    /**
+     * release the connection when the rest of the body is not wanted, such as a stopped download or the loser
+     * of a hedged request, the transport may drop the connection instead of reading the rest, close by default
+     */
+    public void abort() {
+        close();
+    }
+}
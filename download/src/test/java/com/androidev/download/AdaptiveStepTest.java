@@ -0,0 +1,78 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveStepTest {
+
+    private static final int MIN_READ = 1024;
+    private static final int MAX_READ = 8 * 1024;
+    private static final long MIN_STORE = 16 * 1024;
+    private static final long MAX_STORE = 1024 * 1024;
+
+    private final AdaptiveStep step = new AdaptiveStep(MIN_READ, MAX_READ, MIN_STORE, MAX_STORE, 0);
+    private long now;
+
+    @Test
+    public void startsAtTheMinimum() {
+        assertEquals(MIN_READ, step.getReadStep());
+        assertEquals(MIN_STORE, step.getStoreStep());
+    }
+
+    @Test
+    public void waitsForTheSample() {
+        step.onRead(MIN_READ, MIN_READ, 499);
+        assertEquals(MIN_READ, step.getReadStep());
+    }
+
+    @Test
+    public void fullReadsGrowTheStep() {
+        for (int sample = 0; sample < 5; sample++) {
+            sample(4, 4);
+        }
+        assertEquals(MAX_READ, step.getReadStep());  // doubled up to the maximum
+    }
+
+    @Test
+    public void partialReadsShrinkTheStep() {
+        sample(4, 4);
+        sample(4, 4);
+        assertEquals(MIN_READ * 4, step.getReadStep());
+        sample(4, 0);
+        assertEquals(MIN_READ * 2, step.getReadStep());
+        sample(8, 1);  // less than a quarter
+        assertEquals(MIN_READ, step.getReadStep());
+        sample(4, 0);
+        assertEquals(MIN_READ, step.getReadStep());
+    }
+
+    @Test
+    public void mixedReadsKeepTheStep() {
+        sample(4, 4);
+        sample(4, 2);
+        sample(4, 1);  // a quarter
+        assertEquals(MIN_READ * 2, step.getReadStep());
+    }
+
+    @Test
+    public void storeStepFollowsTheSpeed() {
+        step.onRead(100 * 1024, 100 * 1024, 500);  // 200 KB/s
+        assertEquals(200 * 1024, step.getStoreStep());
+        step.onRead(100, 100, 1000);
+        assertEquals(MIN_STORE, step.getStoreStep());
+        step.onRead(MAX_STORE, MAX_STORE, 1500);
+        assertEquals(MAX_STORE, step.getStoreStep());
+    }
+
+    /**
+     * a sample of the reads, the full ones return the whole step, the others a tenth of it
+     */
+    private void sample(int reads, int fullReads) {
+        for (int i = 0; i < reads; i++) {
+            int requested = step.getReadStep();
+            if (i == reads - 1) now += 500;
+            step.onRead(requested, i < fullReads ? requested : requested / 10, now);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    private final BufferPool pool = new BufferPool(1024, 2);
+
+    @Test
+    public void reuseReleasedBuffers() {
+        byte[] array = pool.acquireArray();
+        ByteBuffer buffer = pool.acquireBuffer();
+        assertEquals(1024, array.length);
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+        assertEquals(2, pool.getMisses());
+        pool.release(array);
+        buffer.position(100);
+        pool.release(buffer);
+        assertSame(array, pool.acquireArray());
+        ByteBuffer reused = pool.acquireBuffer();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());  // cleared for the next worker
+        assertEquals(1024, reused.limit());
+        assertEquals(2, pool.getHits());
+    }
+
+    @Test
+    public void idleBuffersAreBounded() {
+        byte[][] arrays = {pool.acquireArray(), pool.acquireArray(), pool.acquireArray()};
+        ByteBuffer[] buffers = {pool.acquireBuffer(), pool.acquireBuffer(), pool.acquireBuffer()};
+        for (int i = 0; i < 3; i++) {
+            pool.release(arrays[i]);
+            pool.release(buffers[i]);
+        }
+        assertEquals(4, pool.getIdleCount());  // two of each kind
+        pool.setMaxCount(1);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(1, pool.getMaxCount());
+    }
+
+    @Test
+    public void dropForeignBuffers() {
+        pool.release(new byte[512]);
+        pool.release(ByteBuffer.allocate(1024));  // heap, such as the content of a MemorySink
+        pool.release(ByteBuffer.allocateDirect(512));
+        pool.release((byte[]) null);
+        pool.release((ByteBuffer) null);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void dropBuffersOfTheOldSize() {
+        byte[] array = pool.acquireArray();
+        pool.release(pool.acquireBuffer());
+        pool.setBufferSize(2048);
+        assertEquals(2048, pool.getBufferSize());
+        assertEquals(0, pool.getIdleCount());
+        pool.release(array);  // borrowed before the change
+        assertEquals(0, pool.getIdleCount());
+        byte[] resized = pool.acquireArray();
+        assertNotSame(array, resized);
+        assertEquals(2048, resized.length);
+        assertEquals(2048, pool.acquireBuffer().capacity());
+    }
+
+    @Test
+    public void clearDropsIdleBuffers() {
+        pool.release(pool.acquireArray());
+        pool.release(pool.acquireBuffer());
+        pool.clear();
+        assertEquals(0, pool.getIdleCount());
+    }
+}
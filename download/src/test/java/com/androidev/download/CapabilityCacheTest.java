@@ -0,0 +1,58 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CapabilityCacheTest {
+
+    private static final String URL = "http://example.com/file";
+
+    private final CapabilityCache cache = new CapabilityCache();
+
+    @Test
+    public void entryExpiresAfterTheTtl() {
+        cache.setTtl(1000);
+        CapabilityCache.Capability capability = capability(URL, 5000);
+        cache.put(URL, capability);
+        assertSame(capability, cache.get(URL, 5999));
+        assertNull(cache.get(URL, 6000));
+        assertNull(cache.get(URL, 5999));  // removed once expired
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void zeroTtlDisablesTheCache() {
+        cache.put(URL, capability(URL, 0));
+        cache.setTtl(0);
+        assertNull(cache.get(URL, 0));
+        cache.put(URL, capability(URL, 0));
+        assertNull(cache.get(URL, 0));
+    }
+
+    @Test
+    public void changedResourceIsRemoved() {
+        cache.put(URL, capability(URL, 0));
+        cache.remove(URL);
+        assertNull(cache.get(URL, 0));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        for (int i = 0; i < 64; i++) {
+            cache.put(URL + i, capability(URL + i, 0));
+        }
+        cache.get(URL + 0, 0);  // used, the second one is the eldest now
+        cache.put(URL, capability(URL, 0));
+        assertEquals(URL + 0, cache.get(URL + 0, 0).url);
+        assertNull(cache.get(URL + 1, 0));
+        assertEquals(URL, cache.get(URL, 0).url);
+    }
+
+    private static CapabilityCache.Capability capability(String url, long time) {
+        return new CapabilityCache.Capability(url, true, 1024, "\"etag\"", null, time);
+    }
+}
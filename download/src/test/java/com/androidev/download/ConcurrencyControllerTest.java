@@ -0,0 +1,83 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrencyControllerTest {
+
+    private long now;
+
+    @Test
+    public void addSlotsWhileTheThroughputRises() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 2, now);
+        assertEquals(3, sample(controller, 100, true));
+        assertEquals(4, sample(controller, 200, true));
+        assertEquals(5, sample(controller, 300, true));
+        assertEquals(300, controller.getThroughput());
+        assertEquals(5, sample(controller, 400, false));  // no job waits for the slot
+    }
+
+    @Test
+    public void plateauTakesTheSlotBackAndHolds() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 2, now);
+        assertEquals(3, sample(controller, 100, true));
+        assertEquals(2, sample(controller, 105, true));  // within the gain, the slot did not help
+        for (int i = 0; i < 6; i++) {
+            assertEquals("sample " + i, 2, sample(controller, 105, true));
+        }
+        assertEquals(3, sample(controller, 105, true));  // probing again
+    }
+
+    @Test
+    public void dropTakesSlotsAway() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 4, now);
+        assertEquals(4, sample(controller, 100, false));
+        assertEquals(3, sample(controller, 50, true));  // more connections slow all of them down
+        assertEquals(2, sample(controller, 50, true));  // did not drop, remove more
+        assertEquals(3, sample(controller, 40, true));  // the removed slot was needed
+        for (int i = 0; i < 5; i++) {
+            assertEquals("sample " + i, 3, sample(controller, 50, true));
+        }
+        assertEquals(4, sample(controller, 50, true));  // probing again
+    }
+
+    @Test
+    public void limitStaysInItsBounds() {
+        ConcurrencyController controller = new ConcurrencyController(2, 3, 10, now);
+        assertEquals(3, controller.getLimit());
+        assertEquals(3, sample(controller, 100, true));
+        controller.setBounds(1, 8);
+        assertEquals(3, controller.getLimit());
+        controller.setBounds(1, 2);
+        assertEquals(2, controller.getLimit());
+        assertEquals(1, sample(controller, 10, true));
+        assertEquals(1, sample(controller, 10, true));  // at the minimum
+    }
+
+    @Test
+    public void resetForgetsTheLastThroughput() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 2, now);
+        assertEquals(2, sample(controller, 1000, false));
+        now += 60000;
+        controller.reset(now);
+        assertEquals(3, sample(controller, 100, true));  // not a drop from the one before the idle time
+    }
+
+    @Test
+    public void sampleWithoutElapsedTime() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 2, now);
+        controller.onTransferred(1000);
+        assertEquals(2, controller.sample(now, true));
+        assertEquals(0, controller.getThroughput());
+    }
+
+    /**
+     * @return the limit after a sample of the throughput
+     */
+    private int sample(ConcurrencyController controller, long bytesPerSecond, boolean saturated) {
+        controller.onTransferred(bytesPerSecond * ConcurrencyController.SAMPLE_INTERVAL / 1000);
+        now += ConcurrencyController.SAMPLE_INTERVAL;
+        return controller.sample(now, saturated);
+    }
+}
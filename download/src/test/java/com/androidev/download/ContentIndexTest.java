@@ -0,0 +1,87 @@
+package com.androidev.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ContentIndexTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ContentIndex index = new ContentIndex();
+    private int nextId;
+
+    @Test
+    public void sameChecksumOfAnotherUrl() throws IOException {
+        DownloadInfo finished = finished("http://a/file", "ABC");
+        index.add(finished);
+        assertSame(finished, index.find(task("http://b/file", "abc"), 0));
+        assertNull(index.find(task("http://b/file", "abd"), 0));
+    }
+
+    @Test
+    public void sameUrlOnlyIfOptedIn() throws IOException {
+        DownloadInfo finished = finished("http://a/file", null);
+        index.add(finished);
+        assertNull(index.find(task("http://a/file", null), 0));
+        assertSame(finished, index.find(task("http://a/file", null), HOUR));
+    }
+
+    @Test
+    public void sameUrlTooOld() throws IOException {
+        DownloadInfo finished = finished("http://a/file", null);
+        finished.finishTime = System.currentTimeMillis() - 2 * HOUR;
+        index.add(finished);
+        assertNull(index.find(task("http://a/file", null), HOUR));
+    }
+
+    @Test
+    public void missingFileIsNotReused() throws IOException {
+        DownloadInfo finished = finished("http://a/file", "abc");
+        index.add(finished);
+        new File(finished.path).delete();
+        assertNull(index.find(task("http://a/file", "abc"), HOUR));
+    }
+
+    @Test
+    public void removedIsNotFound() throws IOException {
+        DownloadInfo finished = finished("http://a/file", "abc");
+        index.add(finished);
+        index.remove(finished);
+        assertNull(index.find(task("http://a/file", "abc"), HOUR));
+    }
+
+    private DownloadInfo finished(String url, String checksum) throws IOException {
+        DownloadInfo info = task(url, checksum);
+        FileOutputStream out = new FileOutputStream(info.path);
+        try {
+            out.write(new byte[10]);
+        } finally {
+            out.close();
+        }
+        info.contentLength = 10;
+        info.state = DownloadState.STATE_FINISHED;
+        info.finishTime = System.currentTimeMillis();
+        return info;
+    }
+
+    private DownloadInfo task(String url, String checksum) throws IOException {
+        nextId++;
+        DownloadInfo info = new DownloadInfo(nextId, "key-" + nextId, url, "name", new File(folder.getRoot(), "file-" + nextId).getPath(), null, null);
+        if (checksum != null) {
+            info.checksumAlgorithm = StreamDigest.SHA256;
+            info.checksum = checksum;
+        }
+        return info;
+    }
+}
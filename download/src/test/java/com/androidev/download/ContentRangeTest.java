@@ -0,0 +1,52 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ContentRangeTest {
+
+    @Test
+    public void parsesARange() {
+        ContentRange range = ContentRange.parse("bytes 10-19/100");
+        assertEquals(10, range.first);
+        assertEquals(19, range.last);
+        assertEquals(100, range.length);
+    }
+
+    @Test
+    public void toleratesCaseAndSpaces() {
+        ContentRange range = ContentRange.parse("  Bytes 0 - 0 / 1 ");
+        assertEquals(0, range.first);
+        assertEquals(0, range.last);
+        assertEquals(1, range.length);
+    }
+
+    @Test
+    public void unknownLength() {
+        ContentRange range = ContentRange.parse("bytes 100-199/*");
+        assertEquals(100, range.first);
+        assertEquals(199, range.last);
+        assertEquals(-1, range.length);
+    }
+
+    @Test
+    public void rejectsMalformedHeaders() {
+        assertNull(ContentRange.parse(null));
+        assertNull(ContentRange.parse(""));
+        assertNull(ContentRange.parse("items 0-9/10"));
+        assertNull(ContentRange.parse("bytes */100"));  // of a 416
+        assertNull(ContentRange.parse("bytes 0-9"));
+        assertNull(ContentRange.parse("bytes 9/0-10"));
+        assertNull(ContentRange.parse("bytes a-9/10"));
+        assertNull(ContentRange.parse("bytes 0-9/ten"));
+    }
+
+    @Test
+    public void rejectsImpossibleRanges() {
+        assertNull(ContentRange.parse("bytes 10-9/100"));
+        assertNull(ContentRange.parse("bytes 0-100/100"));
+        assertNull(ContentRange.parse("bytes -1-9/100"));
+    }
+}
@@ -0,0 +1,143 @@
+package com.androidev.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaMatcherTest {
+
+    private static final int BLOCK_SIZE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void weakSumOfKnownBytes() {
+        assertEquals(0x000a0006, DeltaManifest.weakSum(new byte[]{1, 2, 3}, 0, 3));  // a = 6, b = 1 + 3 + 6
+        byte[] high = new byte[300];
+        Arrays.fill(high, (byte) 0xff);
+        int sum = DeltaManifest.weakSum(high, 0, high.length);
+        assertEquals((255 * 300) & 0xffff, sum & 0xffff);  // both halves wrap in 16 bits
+        assertEquals((255 * 300 * 301 / 2) & 0xffff, sum >>> 16);
+    }
+
+    @Test
+    public void findShiftedBlocks() throws IOException {
+        byte[] content = random(BLOCK_SIZE * 8, 1);
+        // the old version lacks the first 37 bytes, has another byte in front, and block 3 is changed
+        byte[] old = new byte[content.length - 37 + 1];
+        System.arraycopy(content, 37, old, 1, content.length - 37);
+        old[0] = 42;
+        old[3 * BLOCK_SIZE - 37 + 1 + 5] ^= 1;  // in block 3
+        BitSet found = match(content, old);
+        assertFalse(found.get(0));  // partly missing
+        assertTrue(found.get(1));
+        assertTrue(found.get(2));
+        assertFalse(found.get(3));
+        for (int block = 4; block < 8; block++) {
+            assertTrue("block " + block, found.get(block));
+        }
+    }
+
+    @Test
+    public void copyBlocksToTheirPlaces() throws IOException {
+        byte[] content = random(BLOCK_SIZE * 4, 2);
+        byte[] old = new byte[BLOCK_SIZE * 2 + 11];
+        System.arraycopy(content, BLOCK_SIZE * 3, old, 3, BLOCK_SIZE);  // the last block first
+        System.arraycopy(content, BLOCK_SIZE, old, BLOCK_SIZE + 7, BLOCK_SIZE);
+        MemorySink sink = new MemorySink(new BufferPool(16, 1), content.length);
+        BitSet found = new DeltaMatcher(manifest(content)).match(write(old), sink);
+        assertEquals(2, found.cardinality());
+        assertTrue(found.get(1));
+        assertTrue(found.get(3));
+        ByteBuffer buffer = ByteBuffer.allocate(content.length);
+        sink.read(0, buffer);
+        byte[] copied = buffer.array();
+        assertArrayEquals(Arrays.copyOfRange(content, BLOCK_SIZE, BLOCK_SIZE * 2), Arrays.copyOfRange(copied, BLOCK_SIZE, BLOCK_SIZE * 2));
+        assertArrayEquals(Arrays.copyOfRange(content, BLOCK_SIZE * 3, BLOCK_SIZE * 4), Arrays.copyOfRange(copied, BLOCK_SIZE * 3, BLOCK_SIZE * 4));
+    }
+
+    @Test
+    public void repeatedBlockIsCopiedToAllPlaces() throws IOException {
+        byte[] block = random(BLOCK_SIZE, 3);
+        byte[] content = new byte[BLOCK_SIZE * 3];
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(block, 0, content, i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        BitSet found = match(content, block);
+        assertEquals(3, found.cardinality());
+    }
+
+    @Test
+    public void partialLastBlockIsNotMatched() throws IOException {
+        byte[] content = random(BLOCK_SIZE * 2 + 10, 4);
+        BitSet found = match(content, content.clone());
+        assertTrue(found.get(0));
+        assertTrue(found.get(1));
+        assertFalse(found.get(2));
+    }
+
+    @Test
+    public void fileLongerThanTheBuffer() throws IOException {
+        byte[] content = random(700 * 1024, 5);  // more than the buffer of the matcher
+        byte[] old = new byte[content.length + 1];
+        System.arraycopy(content, 0, old, 1, content.length);
+        BitSet found = new DeltaMatcher(new DeltaManifest(content.length, 4096, weakSums(content, 4096), strongSums(content, 4096)))
+                .match(write(old), new MemorySink(new BufferPool(16, 1), content.length));
+        assertEquals(content.length / 4096, found.cardinality());
+    }
+
+    private BitSet match(byte[] content, byte[] old) throws IOException {
+        return new DeltaMatcher(manifest(content)).match(write(old), new MemorySink(new BufferPool(16, 1), content.length));
+    }
+
+    private DeltaManifest manifest(byte[] content) throws IOException {
+        return DeltaManifest.create(write(content), BLOCK_SIZE);
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static int[] weakSums(byte[] content, int blockSize) {
+        int[] sums = new int[(content.length + blockSize - 1) / blockSize];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = DeltaManifest.weakSum(content, i * blockSize, Math.min(blockSize, content.length - i * blockSize));
+        }
+        return sums;
+    }
+
+    private static String[] strongSums(byte[] content, int blockSize) {
+        String[] sums = new String[(content.length + blockSize - 1) / blockSize];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = DeltaManifest.strongSum(content, i * blockSize, Math.min(blockSize, content.length - i * blockSize));
+        }
+        return sums;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
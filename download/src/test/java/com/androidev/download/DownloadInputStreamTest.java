@@ -0,0 +1,214 @@
+package com.androidev.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadInputStreamTest {
+
+    private static final String URL = "http://example.com/file";
+    private static final int KB = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LocalTransport transport = new LocalTransport();
+    private DownloadEngine engine;
+    private int nextId;
+
+    @Before
+    public void setUp() {
+        engine = new DownloadEngine(1);
+        engine.provider = new DownloadProvider(null);  // never touched by the infos which are not persistent
+        engine.setTransport(transport);
+        engine.setDeduplicating(false);
+    }
+
+    @After
+    public void tearDown() {
+        engine.destroy();
+    }
+
+    @Test(timeout = 20000)
+    public void readBlocksUntilWritten() throws Exception {
+        byte[] content = random(64 * KB, 1);
+        transport.put(URL, content);
+        transport.setBytesPerSecond(32 * KB);
+        DownloadJob job = start(info(1));
+        DownloadInputStream stream = new DownloadInputStream(job, job.info);
+        byte[] read = new byte[content.length];
+        int count = stream.read(read, 0, read.length);  // nothing is written when it is called
+        assertTrue(count > 0);
+        assertTrue(job.info.finishedLength < content.length);
+        readFully(stream, read, count, read.length - count);
+        assertArrayEquals(content, read);
+        assertEquals(-1, stream.read());
+        waitForState(job.info, DownloadState.STATE_FINISHED);
+        stream.close();
+    }
+
+    @Test(timeout = 20000)
+    public void readAcrossSegmentSplit() throws Exception {
+        byte[] content = random(KB * KB, 2);
+        transport.put(URL, content);
+        transport.setBytesPerSecond(256 * KB);
+        // a resumed job of one segment, its second connection is spare for the reader
+        DownloadInfo info = info(2);
+        info.contentLength = content.length;
+        info.segments = new ArrayList<>(Arrays.asList(new DownloadSegment(0, content.length - 1, 0)));
+        DownloadJob job = start(info);
+        DownloadInputStream stream = new DownloadInputStream(job, info);
+        int split = 768 * KB;
+        stream.seek(split);
+        byte[] read = new byte[4 * KB];
+        readFully(stream, read, 0, read.length);  // fetched by the new connection
+        assertTrue(job.info.finishedLength < split);
+        assertArrayEquals(Arrays.copyOfRange(content, split, split + read.length), read);
+        assertEquals(2, info.segments.size());
+        stream.seek(split - 2 * KB);
+        readFully(stream, read, 0, read.length);  // the end of the first segment, then the split one
+        assertArrayEquals(Arrays.copyOfRange(content, split - 2 * KB, split + 2 * KB), read);
+        stream.seek(content.length - 1);
+        assertEquals(content[content.length - 1] & 0xff, stream.read());
+        assertEquals(-1, stream.read());
+        stream.close();
+    }
+
+    @Test(timeout = 20000)
+    public void endOfContent() throws Exception {
+        byte[] content = random(16 * KB, 3);
+        transport.put(URL, content);
+        DownloadJob job = start(info(1));
+        waitForState(job.info, DownloadState.STATE_FINISHED);
+        DownloadInputStream stream = new DownloadInputStream(job, job.info);
+        byte[] read = new byte[content.length];
+        readFully(stream, read, 0, read.length);
+        assertArrayEquals(content, read);
+        assertEquals(-1, stream.read(read, 0, read.length));
+        stream.seek(content.length + 1);
+        assertEquals(-1, stream.read());
+        stream.close();
+        stream = new DownloadInputStream(null, job.info);  // of a finished task
+        readFully(stream, read, 0, read.length);
+        assertArrayEquals(content, read);
+        assertEquals(-1, stream.read());
+        stream.close();
+    }
+
+    @Test(timeout = 20000)
+    public void readOfFailedTask() throws Exception {
+        DownloadJob job = start(info(1));  // nothing at the url
+        DownloadInputStream stream = new DownloadInputStream(job, job.info);
+        try {
+            stream.read();
+            fail();
+        } catch (IOException e) {
+            assertEquals("task stopped in state " + DownloadState.STATE_FAILED, e.getMessage());
+        }
+        stream.close();
+    }
+
+    @Test(timeout = 20000)
+    public void readOfDeletedTask() throws Exception {
+        byte[] content = random(64 * KB, 4);
+        transport.put(URL, content);
+        transport.setBytesPerSecond(8 * KB);
+        DownloadJob job = start(info(1));
+        DownloadInputStream stream = new DownloadInputStream(job, job.info);
+        assertEquals(content[0] & 0xff, stream.read());
+        job.delete();
+        stream.seek(content.length - 1);  // not written, the deletion wakes it up
+        try {
+            stream.read();
+            fail();
+        } catch (IOException e) {
+            assertEquals("task is deleted", e.getMessage());
+        }
+        stream.close();
+    }
+
+    @Test(timeout = 20000)
+    public void readAfterStartingOver() throws Exception {
+        byte[] content = random(64 * KB, 5);
+        transport.put(URL, content);
+        transport.setBytesPerSecond(16 * KB);
+        DownloadJob job = start(info(1));
+        DownloadInfo info = job.info;
+        DownloadInputStream stream = new DownloadInputStream(job, info);
+        assertEquals(content[0] & 0xff, stream.read());
+        job.pause();
+        waitForState(info, DownloadState.STATE_PAUSED);
+        byte[] changed = random(content.length, 6);
+        transport.put(URL, changed);
+        transport.setBytesPerSecond(0);
+        job.resume();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (job.getGeneration() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        stream.seek(0);
+        try {
+            stream.read();
+            fail();
+        } catch (IOException e) {
+            assertEquals("task started over", e.getMessage());
+        }
+        stream.close();
+        waitForState(info, DownloadState.STATE_FINISHED);
+        stream = new DownloadInputStream(job, info);
+        byte[] read = new byte[changed.length];
+        readFully(stream, read, 0, read.length);
+        assertArrayEquals(changed, read);
+        stream.close();
+    }
+
+    private DownloadInfo info(int segmentCount) {
+        int id = ++nextId;
+        DownloadInfo info = new DownloadInfo(id, "key-" + id, URL, "name", folder.getRoot() + "/file-" + id, null, null);
+        info.isPersistent = false;
+        info.segmentCount = segmentCount;
+        info.retryPolicy = RetryPolicy.NONE;
+        return info;
+    }
+
+    private DownloadJob start(DownloadInfo info) {
+        DownloadJob job = new DownloadJob(engine, info);
+        job.resume();
+        return job;
+    }
+
+    private static void waitForState(DownloadInfo info, int state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (info.state != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, info.state);
+    }
+
+    private static void readFully(DownloadInputStream stream, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = stream.read(buffer, offset, length);
+            assertTrue(count > 0);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,151 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSegmentTest {
+
+    @Test
+    public void splitCoversTheContent() {
+        for (long length : new long[]{1, 7, 100, 1001}) {
+            for (int count = 1; count <= 5; count++) {
+                List<DownloadSegment> segments = DownloadSegment.split(length, count);
+                assertEquals(count, segments.size());
+                long next = 0;
+                for (DownloadSegment segment : segments) {
+                    assertEquals(next, segment.start);
+                    assertEquals(segment.start, segment.current);
+                    next = segment.end + 1;
+                }
+                assertEquals(length, next);
+            }
+        }
+    }
+
+    @Test
+    public void splitIntoNearlyEqualRanges() {
+        List<DownloadSegment> segments = DownloadSegment.split(10, 3);
+        assertRange(segments.get(0), 0, 2);
+        assertRange(segments.get(1), 3, 5);
+        assertRange(segments.get(2), 6, 9);  // the last one takes the rest
+        assertEquals(1, DownloadSegment.split(10, 0).size());
+    }
+
+    @Test
+    public void progressOfASegment() {
+        DownloadSegment segment = new DownloadSegment(10, 19, 10);
+        assertEquals(10, segment.remaining());
+        segment.activate(1000);
+        segment.onWritten(4, 2000);
+        assertEquals(14, segment.current);
+        assertEquals(4, segment.finishedLength());
+        assertEquals(1500, segment.estimateTime(2000));  // 6 bytes left at 4 bytes per second
+        segment.onWritten(6, 3000);
+        assertTrue(segment.isFinished());
+        assertEquals(0, segment.remaining());
+    }
+
+    @Test
+    public void waitingSegmentIsSlow() {
+        DownloadSegment segment = new DownloadSegment(0, 99, 0);
+        segment.activate(1000);
+        assertEquals(500, segment.estimateTime(1500));
+    }
+
+    @Test
+    public void compactMergesFinishedIntoTheNext() {
+        List<DownloadSegment> segments = new ArrayList<>(Arrays.asList(
+                new DownloadSegment(0, 9, 10), new DownloadSegment(10, 19, 20), new DownloadSegment(20, 29, 25),
+                new DownloadSegment(30, 39, 30)));
+        DownloadSegment.compact(segments);
+        assertEquals(2, segments.size());
+        assertRange(segments.get(0), 0, 29);
+        assertEquals(25, segments.get(0).current);
+        assertRange(segments.get(1), 30, 39);
+    }
+
+    @Test
+    public void compactKeepsTheLastFinished() {
+        List<DownloadSegment> segments = new ArrayList<>(Arrays.asList(new DownloadSegment(0, 9, 5), new DownloadSegment(10, 19, 20)));
+        DownloadSegment.compact(segments);
+        assertEquals(2, segments.size());
+    }
+
+    @Test
+    public void writtenEnd() {
+        List<DownloadSegment> segments = Arrays.asList(new DownloadSegment(0, 9, 6), new DownloadSegment(10, 19, 10));
+        assertEquals(6, DownloadSegment.getWrittenEnd(segments, 0));
+        assertEquals(6, DownloadSegment.getWrittenEnd(segments, 6));  // not written yet
+        assertEquals(9, DownloadSegment.getWrittenEnd(segments, 9));
+        assertEquals(10, DownloadSegment.getWrittenEnd(segments, 10));
+        assertEquals(25, DownloadSegment.getWrittenEnd(segments, 25));  // out of the segments
+    }
+
+    @Test
+    public void encodeAndDecode() {
+        List<DownloadSegment> segments = Arrays.asList(new DownloadSegment(0, 9, 6), new DownloadSegment(10, 19, 12));
+        String value = DownloadSegment.encode(segments);
+        assertEquals("0:9:6,10:19:12", value);
+        List<DownloadSegment> decoded = DownloadSegment.decode(value);
+        assertEquals(2, decoded.size());
+        assertRange(decoded.get(1), 10, 19);
+        assertEquals(12, decoded.get(1).current);
+    }
+
+    @Test
+    public void decodeRejectsMalformedValues() {
+        assertNull(DownloadSegment.encode(new ArrayList<DownloadSegment>()));
+        assertNull(DownloadSegment.decode(null));
+        assertNull(DownloadSegment.decode(""));
+        assertNull(DownloadSegment.decode("0:9"));
+        assertNull(DownloadSegment.decode("0:9:x"));
+        assertFalse(DownloadSegment.decode("0:9:10").get(0).remaining() > 0);
+    }
+
+    @Test
+    public void stealTheSecondHalfOfTheRemaining() {
+        DownloadSegment first = new DownloadSegment(0, 99, 0);
+        DownloadSegment victim = new DownloadSegment(100, 199, 120);
+        DownloadSegment last = new DownloadSegment(200, 299, 200);
+        List<DownloadSegment> segments = new ArrayList<>(Arrays.asList(first, victim, last));
+        DownloadSegment stolen = victim.steal(segments);
+        assertRange(victim, 100, 159);
+        assertEquals(120, victim.current);
+        assertRange(stolen, 160, 199);
+        assertEquals(160, stolen.current);
+        assertEquals(Arrays.asList(first, victim, stolen, last), segments);
+    }
+
+    @Test
+    public void stealOddRemaining() {
+        DownloadSegment victim = new DownloadSegment(0, 4, 0);
+        List<DownloadSegment> segments = new ArrayList<>(Arrays.asList(victim));
+        DownloadSegment stolen = victim.steal(segments);
+        assertEquals(5, victim.remaining() + stolen.remaining());
+        assertEquals(victim.end + 1, stolen.start);
+    }
+
+    @Test
+    public void splitAtThePositionOfAReader() {
+        DownloadSegment segment = new DownloadSegment(0, 99, 10);
+        List<DownloadSegment> segments = new ArrayList<>(Arrays.asList(segment));
+        DownloadSegment split = segment.splitAt(segments, 70);
+        assertRange(segment, 0, 69);
+        assertRange(split, 70, 99);
+        assertEquals(70, split.current);
+        assertEquals(70, DownloadSegment.getWrittenEnd(segments, 70));
+    }
+
+    static void assertRange(DownloadSegment segment, long start, long end) {
+        assertEquals(start, segment.start);
+        assertEquals(end, segment.end);
+    }
+}
@@ -0,0 +1,126 @@
+package com.androidev.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileSinkTest {
+
+    private static final int SEGMENT_LENGTH = 10000;
+    private static final int CHUNK = 1024;  // the last chunk of a segment is partial
+    private static final int[] ORDER = {2, 0, 3, 1};  // the segments finish out of order
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = random(SEGMENT_LENGTH * ORDER.length, 1);
+
+    @Test
+    public void streamMode() throws IOException {
+        File file = folder.newFile();
+        write(new FileSink(file), DownloadManager.WRITE_MODE_STREAM);
+        assertArrayEquals(content, read(file));
+    }
+
+    @Test
+    public void channelMode() throws IOException {
+        File file = folder.newFile();
+        write(new FileSink(file), DownloadManager.WRITE_MODE_CHANNEL);
+        assertArrayEquals(content, read(file));
+    }
+
+    @Test
+    public void transferMode() throws IOException {
+        File file = folder.newFile();
+        write(new FileSink(file), DownloadManager.WRITE_MODE_TRANSFER);
+        assertArrayEquals(content, read(file));
+    }
+
+    @Test
+    public void mappedMode() throws IOException {
+        File file = folder.newFile();
+        // windows smaller than a segment, so that every segment remaps on the way
+        write(new MappedSink(file, content.length, 4096, DownloadManager.REMAP_LAZY), DownloadManager.WRITE_MODE_MAPPED);
+        assertArrayEquals(content, read(file));
+    }
+
+    @Test
+    public void readBackWhatIsWritten() throws IOException {
+        FileSink sink = new FileSink(folder.newFile());
+        sink.allocate(content.length);
+        sink.write(SEGMENT_LENGTH, content, SEGMENT_LENGTH, CHUNK);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+        assertEquals(CHUNK, sink.read(SEGMENT_LENGTH, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, SEGMENT_LENGTH, SEGMENT_LENGTH + CHUNK), buffer.array());
+        buffer.clear();
+        assertEquals(-1, sink.read(content.length, buffer));
+        sink.close();
+    }
+
+    /**
+     * write the segments in chunks the way a segment worker does in the mode
+     */
+    private void write(DownloadSink sink, int writeMode) throws IOException {
+        sink.allocate(content.length);
+        for (int segment : ORDER) {
+            long position = segment * SEGMENT_LENGTH;
+            long end = position + SEGMENT_LENGTH;
+            ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(content, (int) position, SEGMENT_LENGTH));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);  // like the pooled ones
+            while (position < end) {
+                int length = (int) Math.min(CHUNK, end - position);
+                switch (writeMode) {
+                    case DownloadManager.WRITE_MODE_CHANNEL:
+                        buffer.clear();
+                        buffer.put(content, (int) position, length);
+                        buffer.flip();
+                        sink.write(position, buffer);
+                        break;
+                    case DownloadManager.WRITE_MODE_TRANSFER:
+                    case DownloadManager.WRITE_MODE_MAPPED:
+                        length = (int) sink.transferFrom(channel, position, length);
+                        assertTrue(length > 0);
+                        break;
+                    default:
+                        sink.write(position, content, (int) position, length);
+                        break;
+                }
+                position += length;
+            }
+        }
+        sink.sync();
+        sink.close();
+    }
+
+    private byte[] read(File file) throws IOException {
+        assertEquals(content.length, file.length());
+        byte[] bytes = new byte[content.length];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
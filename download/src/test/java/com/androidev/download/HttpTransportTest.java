@@ -0,0 +1,50 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class HttpTransportTest extends TransportContract {
+
+    private LocalHttpServer server;
+
+    @Override
+    Transport open(String path, byte[] content) throws IOException {
+        server = new LocalHttpServer();
+        server.put(path, content);
+        return new HttpTransport();
+    }
+
+    @Override
+    String url(String path) {
+        return server.url(path);
+    }
+
+    @Override
+    void close() {
+        server.shutdown();
+    }
+
+    @Test
+    public void closeDrainsWithPooledBuffer() throws IOException {
+        BufferPool pool = new BufferPool(16, 1);
+        ((HttpTransport) transport).setBufferPool(pool);
+        for (int i = 0; i < 2; i++) {
+            transport.execute(new TransportRequest.Builder(url("/content")).build()).close();
+        }
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void abortSkipsTheDrain() throws IOException {
+        BufferPool pool = new BufferPool(16, 1);
+        ((HttpTransport) transport).setBufferPool(pool);
+        TransportResponse response = transport.execute(new TransportRequest.Builder(url("/content")).build());
+        response.abort();
+        response.close();
+        assertEquals(0, pool.getMisses() + pool.getHits());
+    }
+}
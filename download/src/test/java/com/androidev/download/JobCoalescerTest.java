@@ -0,0 +1,72 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class JobCoalescerTest {
+
+    private final JobCoalescer coalescer = new JobCoalescer();
+    private int nextId;
+
+    @Test
+    public void sameUrlFollowsTheLeader() {
+        DownloadJob leader = job("http://example.com/file");
+        DownloadJob follower = job("HTTP://Example.com:80/file#top");
+        assertNull(coalescer.attach(leader));
+        assertSame(leader, coalescer.attach(follower));
+        assertNull(coalescer.attach(job("http://example.com/other")));
+        assertEquals(Arrays.asList(follower), coalescer.detach(leader));
+    }
+
+    @Test
+    public void detachByTheAttachedUrl() {
+        DownloadJob leader = job("http://example.com/file");
+        DownloadJob follower = job("http://example.com/file");
+        coalescer.attach(leader);
+        coalescer.attach(follower);
+        leader.info.url = "http://mirror.example.com/file";  // rewritten by an interceptor
+        assertEquals(Arrays.asList(follower), coalescer.detach(leader));
+        assertNull(coalescer.attach(job("http://example.com/file")));  // the leader is gone
+    }
+
+    @Test
+    public void followerLeavesTheLeader() {
+        DownloadJob leader = job("http://example.com/file");
+        DownloadJob follower = job("http://example.com/file");
+        coalescer.attach(leader);
+        coalescer.attach(follower);
+        follower.info.url = "http://example.com/moved";
+        assertEquals(Collections.emptyList(), coalescer.detach(follower));
+        assertEquals(Collections.emptyList(), coalescer.detach(leader));
+        assertEquals(Collections.emptyList(), coalescer.detach(leader));  // not attached any more
+    }
+
+    @Test
+    public void followersOfTheLeader() {
+        DownloadJob leader = job("http://example.com/file");
+        DownloadJob follower = job("http://example.com/file");
+        coalescer.attach(leader);
+        coalescer.attach(follower);
+        assertEquals(Arrays.asList(follower), coalescer.getFollowers(leader));
+        assertEquals(Collections.emptyList(), coalescer.getFollowers(follower));
+        coalescer.detach(follower);
+        assertEquals(Collections.emptyList(), coalescer.getFollowers(leader));
+    }
+
+    @Test
+    public void normalizeUrls() {
+        assertEquals("http://example.com/", JobCoalescer.normalize("HTTP://EXAMPLE.COM"));
+        assertEquals("https://example.com:8443/a/c?x=1", JobCoalescer.normalize("https://Example.com:8443/a/b/../c?x=1#f"));
+        assertEquals("not a url", JobCoalescer.normalize("not a url"));
+    }
+
+    private DownloadJob job(String url) {
+        return new DownloadJob(null, new DownloadInfo(++nextId, "key-" + nextId, url, "name", "path", null, null));
+    }
+}
@@ -0,0 +1,22 @@
+package com.androidev.download;
+
+import java.io.IOException;
+
+public class LocalTransportTest extends TransportContract {
+
+    @Override
+    Transport open(String path, byte[] content) throws IOException {
+        LocalTransport transport = new LocalTransport();
+        transport.put(url(path), content);
+        return transport;
+    }
+
+    @Override
+    String url(String path) {
+        return "local://" + path;
+    }
+
+    @Override
+    void close() {
+    }
+}
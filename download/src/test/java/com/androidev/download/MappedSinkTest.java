@@ -0,0 +1,123 @@
+package com.androidev.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MappedSinkTest {
+
+    private static final int WINDOW_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = random(WINDOW_SIZE * 5 + 100, 1);
+
+    @Test
+    public void writeAcrossWindows() throws IOException {
+        MappedSink sink = open(DownloadManager.REMAP_LAZY);
+        sink.write(1000, content, 1000, WINDOW_SIZE * 2);  // remaps twice
+        ByteBuffer buffer = ByteBuffer.wrap(content, 1000 + WINDOW_SIZE * 2, WINDOW_SIZE * 2);
+        sink.write(1000 + WINDOW_SIZE * 2, buffer);
+        assertEquals(0, buffer.remaining());
+        assertEquals(1000 + WINDOW_SIZE * 4, buffer.limit());  // the limit of the caller is kept
+        sink.sync();
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 1000 + WINDOW_SIZE * 4), read(sink, 1000, WINDOW_SIZE * 4));
+        sink.close();
+    }
+
+    @Test
+    public void transferStopsAtTheEndOfTheWindow() throws IOException {
+        MappedSink sink = open(DownloadManager.REMAP_FORCE);
+        sink.write(0, content, 0, 10);  // maps the window of the first bytes
+        assertEquals(6, sink.transferFrom(Channels.newChannel(new ByteArrayInputStream(content, WINDOW_SIZE - 6, 100)),
+                WINDOW_SIZE - 6, 100));
+        assertEquals(94, sink.transferFrom(Channels.newChannel(new ByteArrayInputStream(content, WINDOW_SIZE, 94)),
+                WINDOW_SIZE, 100));  // a new window, the source ends first
+        assertEquals(0, sink.transferFrom(Channels.newChannel(new ByteArrayInputStream(new byte[0])), WINDOW_SIZE + 94, 100));
+        assertArrayEquals(Arrays.copyOfRange(content, WINDOW_SIZE - 6, WINDOW_SIZE + 94), read(sink, WINDOW_SIZE - 6, 100));
+        sink.close();
+    }
+
+    @Test
+    public void lastWindowIsShorter() throws IOException {
+        MappedSink sink = open(DownloadManager.REMAP_LAZY);
+        int position = content.length - 50;
+        assertEquals(50, sink.transferFrom(Channels.newChannel(new ByteArrayInputStream(content, position, 100)), position, 100));
+        assertArrayEquals(Arrays.copyOfRange(content, position, content.length), read(sink, position, 50));
+        sink.close();
+    }
+
+    @Test
+    public void windowsOfEveryThread() throws Exception {
+        final MappedSink sink = open(DownloadManager.REMAP_FORCE);
+        final int half = content.length / 2;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int position = half; position < content.length; position += 1000) {
+                        sink.write(position, content, position, Math.min(1000, content.length - position));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        for (int position = 0; position < half; position += 1000) {
+            sink.write(position, content, position, Math.min(1000, half - position));
+        }
+        thread.join();
+        sink.sync();
+        assertArrayEquals(content, read(sink, 0, content.length));
+        sink.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void writeBeyondTheContent() throws IOException {
+        MappedSink sink = open(DownloadManager.REMAP_LAZY);
+        try {
+            sink.write(content.length, new byte[1], 0, 1);
+        } finally {
+            sink.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownLength() throws IOException {
+        new MappedSink(folder.newFile(), -1, WINDOW_SIZE, DownloadManager.REMAP_LAZY);
+    }
+
+    private MappedSink open(int remapPolicy) throws IOException {
+        File file = folder.newFile();
+        MappedSink sink = new MappedSink(file, content.length, WINDOW_SIZE, remapPolicy);
+        sink.allocate(content.length);
+        return sink;
+    }
+
+    private static byte[] read(DownloadSink sink, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (sink.read(position + buffer.position(), buffer) < 0) break;
+        }
+        return buffer.array();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
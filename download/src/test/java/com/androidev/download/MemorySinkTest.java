@@ -0,0 +1,92 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemorySinkTest {
+
+    private final BufferPool pool = new BufferPool(1024, 2);
+    private final byte[] content = random(600, 1);
+
+    @Test
+    public void writeSegmentsOutOfOrder() throws IOException {
+        MemorySink sink = new MemorySink(pool, content.length);
+        assertTrue(sink.allocate(content.length));
+        sink.write(400, ByteBuffer.wrap(content, 400, 200));
+        sink.write(0, content, 0, 200);
+        assertEquals(200, sink.transferFrom(Channels.newChannel(new ByteArrayInputStream(content, 200, 200)), 200, 1000));
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        assertEquals(content.length, sink.read(0, buffer));
+        assertArrayEquals(content, Arrays.copyOf(buffer.array(), content.length));
+        buffer.clear();
+        assertEquals(-1, sink.read(content.length, buffer));
+        sink.close();
+    }
+
+    @Test
+    public void smallContentIsPooled() throws IOException {
+        MemorySink sink = new MemorySink(pool, content.length);
+        sink.write(0, content, 0, content.length);
+        ByteBuffer payload = sink.detach();
+        assertTrue(sink.isDetached());
+        assertTrue(payload.isDirect());
+        assertEquals(0, payload.position());
+        assertEquals(content.length, payload.limit());
+        byte[] bytes = new byte[content.length];
+        payload.duplicate().get(bytes);
+        assertArrayEquals(content, bytes);
+        sink.close();  // detached, released once delivered
+        assertEquals(0, pool.getIdleCount());
+        pool.release(payload);
+        assertEquals(1, pool.getIdleCount());
+        new MemorySink(pool, content.length).close();
+        assertEquals(1, pool.getIdleCount());  // the same buffer again
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void largeContentIsNotPooled() {
+        MemorySink sink = new MemorySink(pool, 2000);
+        ByteBuffer payload = sink.detach();
+        assertFalse(payload.isDirect());
+        assertEquals(2000, payload.limit());
+        pool.release(payload);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getMisses());
+    }
+
+    @Test
+    public void writeOutOfTheContent() throws IOException {
+        MemorySink sink = new MemorySink(pool, content.length);
+        try {
+            sink.write(content.length - 10, content, 0, 20);
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            sink.allocate(content.length + 1);
+            fail();
+        } catch (IOException expected) {
+        }
+        sink.close();
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
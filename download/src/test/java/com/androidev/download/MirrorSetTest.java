@@ -0,0 +1,91 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MirrorSetTest {
+
+    private static final String URL = "http://example.com/file";
+    private static final String MIRROR = "http://mirror.example.com/file";
+    private static final String OTHER = "http://other.example.com/file";
+
+    @Test
+    public void untriedMirrorsFirst() {
+        MirrorSet mirrors = new MirrorSet(URL, Arrays.asList(MIRROR, OTHER));
+        MirrorSet.Lease first = mirrors.acquire();
+        assertEquals(URL, first.mirror.url);
+        assertTrue(first.mirror.isPrimary);
+        assertEquals(MIRROR, mirrors.acquire().mirror.url);
+        assertEquals(OTHER, mirrors.acquire().mirror.url);
+        mirrors.release(first);
+        assertEquals(URL, mirrors.acquire().mirror.url);  // the fewest connections
+    }
+
+    @Test
+    public void failedMirrorIsLeasedLast() {
+        MirrorSet mirrors = new MirrorSet(URL, Collections.singletonList(MIRROR));
+        MirrorSet.Lease lease = mirrors.fail(mirrors.acquire());
+        assertEquals(MIRROR, lease.mirror.url);  // goes on from the other one
+        assertEquals(MIRROR, mirrors.acquire().mirror.url);  // even with more connections
+    }
+
+    @Test
+    public void mirrorIsLeftOutAfterFailingInARow() {
+        MirrorSet mirrors = new MirrorSet(URL, Collections.singletonList(MIRROR));
+        MirrorSet.Lease lease = mirrors.acquire();
+        int failures = 0;
+        while (lease != null) {
+            lease = mirrors.fail(lease);
+            failures++;
+        }
+        assertEquals(6, failures);  // three of each
+        assertNull(mirrors.acquire());
+    }
+
+    @Test
+    public void hedgeGoesToAnotherMirror() {
+        MirrorSet mirrors = new MirrorSet(URL, Arrays.asList(MIRROR, OTHER));
+        MirrorSet.Lease stalled = mirrors.acquire();
+        MirrorSet.Lease hedge = mirrors.acquireOther(stalled.mirror);
+        assertEquals(MIRROR, hedge.mirror.url);
+        assertEquals(OTHER, mirrors.acquireOther(hedge.mirror).mirror.url);
+    }
+
+    @Test
+    public void hedgeAsksTheSameUrlWithoutMirrors() {
+        MirrorSet mirrors = new MirrorSet(URL, null);
+        assertFalse(mirrors.hasMirrors());
+        MirrorSet.Lease stalled = mirrors.acquire();
+        assertEquals(URL, mirrors.acquireOther(stalled.mirror).mirror.url);
+    }
+
+    @Test
+    public void hedgeSkipsTheMirrorsLeftOut() {
+        MirrorSet mirrors = new MirrorSet(URL, Collections.singletonList(MIRROR));
+        MirrorSet.Lease stalled = mirrors.acquire();
+        for (int i = 0; i < 3; i++) {
+            MirrorSet.Lease lease = mirrors.acquireOther(stalled.mirror);
+            assertEquals(MIRROR, lease.mirror.url);
+            mirrors.release(mirrors.fail(lease));
+        }
+        assertEquals(URL, mirrors.acquireOther(stalled.mirror).mirror.url);  // only the stalled one is left
+        for (int i = 0; i < 3; i++) {
+            mirrors.fail(mirrors.acquire());
+        }
+        assertNull(mirrors.acquireOther(stalled.mirror));
+    }
+
+    @Test
+    public void urlOfTheTaskIsNotAMirror() {
+        MirrorSet mirrors = new MirrorSet(URL, Collections.singletonList(URL));
+        assertFalse(mirrors.hasMirrors());
+        assertTrue(new MirrorSet(URL, Arrays.asList(URL, MIRROR)).hasMirrors());
+    }
+}
@@ -0,0 +1,158 @@
+package com.androidev.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NioExchangeTest {
+
+    private static final byte[] CONTENT = new byte[100 * 1024];
+
+    static {
+        new Random(13).nextBytes(CONTENT);
+    }
+
+    private LocalHttpServer server;
+    private ExecutorService executor;
+    private SelectorLoop loop;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        server.put("/content", CONTENT);
+        executor = Executors.newCachedThreadPool();
+        loop = new SelectorLoop("test-selector", 16 * 1024, executor);
+    }
+
+    @After
+    public void tearDown() {
+        loop.shutdown();
+        executor.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void wholeBody() throws Exception {
+        Recorder recorder = run(new TransportRequest.Builder(server.url("/content")).build());
+        assertNull(recorder.error);
+        assertEquals(200, recorder.code);
+        assertArrayEquals(CONTENT, recorder.body.toByteArray());
+    }
+
+    @Test
+    public void rangeOfTheBody() throws Exception {
+        Recorder recorder = run(new TransportRequest.Builder(server.url("/content")).header("Range", "bytes=1000-1999").build());
+        assertEquals(206, recorder.code);
+        assertEquals("bytes 1000-1999/" + CONTENT.length, recorder.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(CONTENT, 1000, 2000), recorder.body.toByteArray());
+    }
+
+    @Test
+    public void followRedirectWithABody() throws Exception {
+        server.redirect("/old", server.url("/content"));
+        server.redirect("/older", "/old");  // relative
+        Recorder recorder = run(new TransportRequest.Builder(server.url("/older")).build());
+        assertNull(recorder.error);
+        assertEquals(200, recorder.code);
+        assertEquals(server.url("/content"), recorder.url);
+        assertArrayEquals(CONTENT, recorder.body.toByteArray());  // nothing of the bodies of the redirects
+    }
+
+    @Test
+    public void heldBodyIsDeliveredOnRelease() throws Exception {
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onResponse(final NioExchange exchange) throws IOException {
+                super.onResponse(exchange);
+                exchange.hold();
+                loop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        isReleased = true;
+                        exchange.release();
+                    }
+                }, TimeUnit.MILLISECONDS.toNanos(100));
+            }
+
+            @Override
+            public long onBody(NioExchange exchange, ByteBuffer buffer) throws IOException {
+                assertTrue(isReleased);
+                return super.onBody(exchange, buffer);
+            }
+        };
+        run(new TransportRequest.Builder(server.url("/content")).build(), recorder);
+        assertNull(recorder.error);
+        assertArrayEquals(CONTENT, recorder.body.toByteArray());
+    }
+
+    @Test
+    public void refusedConnection() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        Recorder recorder = run(new TransportRequest.Builder("http://127.0.0.1:" + port + "/").build());
+        assertNotNull(recorder.error);
+        assertEquals(0, recorder.code);
+    }
+
+    private Recorder run(TransportRequest request) throws InterruptedException {
+        return run(request, new Recorder());
+    }
+
+    private Recorder run(TransportRequest request, Recorder recorder) throws InterruptedException {
+        new NioExchange(loop, request, recorder).start();
+        assertTrue(recorder.finished.await(10, TimeUnit.SECONDS));
+        return recorder;
+    }
+
+    private static class Recorder implements NioExchange.Listener {
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        volatile int code;
+        volatile String url;
+        volatile String contentRange;
+        volatile IOException error;
+        volatile boolean isReleased;
+
+        @Override
+        public void onResponse(NioExchange exchange) throws IOException {
+            code = exchange.code();
+            url = exchange.url();
+            contentRange = exchange.header("Content-Range");
+        }
+
+        @Override
+        public long onBody(NioExchange exchange, ByteBuffer buffer) throws IOException {
+            synchronized (body) {
+                while (buffer.hasRemaining()) {
+                    body.write(buffer.get());
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public void onFinished(NioExchange exchange, IOException error) {
+            this.error = error;
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.androidev.download;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PieceVerifierTest {
+
+    private static final int LENGTH = 250;  // three pieces, the last one is short
+    private static final int PIECE_LENGTH = 100;
+
+    private byte[] content;
+    private PieceManifest manifest;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[LENGTH];
+        new Random(20).nextBytes(content);
+        String[] hashes = new String[3];
+        for (int i = 0; i < hashes.length; i++) {
+            byte[] piece = Arrays.copyOfRange(content, i * PIECE_LENGTH, Math.min(LENGTH, (i + 1) * PIECE_LENGTH));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(piece)) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            hashes[i] = sb.toString();
+        }
+        manifest = new PieceManifest(StreamDigest.SHA1, PIECE_LENGTH, hashes);
+    }
+
+    @Test
+    public void verifyInOrder() {
+        PieceVerifier verifier = new PieceVerifier(manifest, LENGTH, null);
+        for (int position = 0; position < LENGTH; position += 30) {
+            verifier.hash(position, content, position, Math.min(30, LENGTH - position));
+        }
+        assertTrue(verifier.isVerified());
+        assertEquals("7", verifier.getState());
+        assertEquals(-1, verifier.reopen(new ArrayList<DownloadSegment>()));
+    }
+
+    @Test
+    public void reopenTheBadPiece() {
+        content[150] ^= 1;
+        PieceVerifier verifier = new PieceVerifier(manifest, LENGTH, null);
+        verifier.hash(0, content, 0, LENGTH);
+        assertFalse(verifier.isVerified());
+        assertEquals("5", verifier.getState());
+        List<DownloadSegment> segments = new ArrayList<>(DownloadSegment.split(LENGTH, 2));
+        assertEquals(100, verifier.reopen(segments));
+        assertEquals(3, segments.size());
+        assertTrue(segments.get(0).isFinished());
+        DownloadSegmentTest.assertRange(segments.get(1), 100, 199);
+        assertEquals(100, segments.get(1).current);
+        assertTrue(segments.get(2).isFinished());
+    }
+
+    @Test
+    public void catchUpTheBytesWrittenAhead() {
+        PieceVerifier verifier = new PieceVerifier(manifest, LENGTH, null);
+        verifier.hash(50, content, 50, 100);  // ahead of piece 0, the start of piece 1
+        verifier.hash(0, content, 0, 50);
+        List<DownloadSegment> segments = Arrays.asList(new DownloadSegment(0, LENGTH - 1, 150));
+        assertEquals(50, verifier.findUnhashed(segments, 0, 149));
+        assertEquals(100, verifier.limit(50));
+        verifier.hash(50, content, 50, 50);  // read back
+        assertEquals(-1, verifier.findUnhashed(segments, 0, 149));
+        verifier.hash(150, content, 150, 100);
+        assertTrue(verifier.isVerified());
+        assertEquals(LENGTH, verifier.limit(220));
+    }
+
+    @Test
+    public void hashByteBuffersInPlace() {
+        PieceVerifier verifier = new PieceVerifier(manifest, LENGTH, null);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LENGTH + 10);
+        buffer.position(10);
+        buffer.put(content);
+        for (int position = 0; position < LENGTH; position += 70) {
+            buffer.limit(10 + Math.min(LENGTH, position + 70)).position(10 + position);
+            verifier.hash(position, buffer);
+            assertEquals(10 + position, buffer.position());
+        }
+        assertTrue(verifier.isVerified());
+    }
+
+    @Test
+    public void storedPiecesAreNotHashedAgain() {
+        PieceVerifier verifier = new PieceVerifier(manifest, LENGTH, "5");
+        verifier.hash(100, content, 100, 100);
+        assertTrue(verifier.isVerified());
+    }
+
+    @Test
+    public void encodeAndDecode() {
+        BitSet pieces = new BitSet();
+        pieces.set(0);
+        pieces.set(5);
+        pieces.set(8);
+        assertEquals("121", PieceVerifier.encode(pieces, 9));
+        assertEquals(pieces, PieceVerifier.decode("121", 9));
+        assertEquals(new BitSet(), PieceVerifier.decode("1x", 9));
+        assertEquals(new BitSet(), PieceVerifier.decode(null, 9));
+    }
+}
@@ -0,0 +1,177 @@
+package com.androidev.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestHedgerTest {
+
+    private static final String URL = "http://example.com/file";
+    private static final String MIRROR = "http://mirror.example.com/file";
+
+    private final Map<String, LocalTransport> transports = new HashMap<>();
+    private final List<String> aborted = Collections.synchronizedList(new ArrayList<String>());
+    private volatile String failing;  // url whose requests fail after its latency
+    private volatile boolean isStopped;
+    private DownloadEngine engine;
+    private MirrorSet mirrors;
+    private RequestHedger hedger;
+
+    private final RequestHedger.Requester requester = new RequestHedger.Requester() {
+        @Override
+        public TransportResponse execute(MirrorSet.Lease lease, String range) throws IOException {
+            String url = lease.mirror.url;
+            TransportResponse response = transports.get(url).execute(new TransportRequest.Builder(url)
+                    .header("Range", range)
+                    .build());
+            if (url.equals(failing)) throw new IOException("connection reset");
+            return new RecordingResponse(url, response);
+        }
+
+        @Override
+        public boolean isStopped() {
+            return isStopped;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        byte[] content = new byte[1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        for (String url : Arrays.asList(URL, MIRROR)) {
+            LocalTransport transport = new LocalTransport();
+            transport.put(url, content);
+            transports.put(url, transport);
+        }
+        engine = new DownloadEngine(1);
+        engine.setHedgeDelay(100);
+        mirrors = new MirrorSet(URL, Collections.singletonList(MIRROR));
+        hedger = new RequestHedger(engine, mirrors, requester);
+    }
+
+    @After
+    public void tearDown() {
+        engine.destroy();
+    }
+
+    @Test
+    public void slowRequestLosesToTheHedge() throws Exception {
+        transports.get(URL).setLatency(1000);
+        RequestHedger.Attempt attempt = hedger.execute(acquire(URL), "bytes=0-");
+        assertEquals(MIRROR, attempt.lease.mirror.url);
+        assertEquals(206, attempt.get().code());
+        assertEquals(1, engine.hedges.get());
+        assertEquals(1, engine.hedgeWins.get());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!aborted.contains(URL) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList(URL), aborted);  // once it answers
+    }
+
+    @Test
+    public void failedWinnerLeavesItToTheOther() throws Exception {
+        transports.get(URL).setLatency(300);
+        transports.get(MIRROR).setLatency(600);
+        failing = URL;
+        RequestHedger.Attempt attempt = hedger.execute(acquire(URL), "bytes=0-");
+        assertEquals(MIRROR, attempt.lease.mirror.url);
+        assertEquals(206, attempt.get().code());
+        assertEquals(1, engine.hedges.get());
+        assertEquals(1, engine.hedgeWins.get());
+    }
+
+    @Test
+    public void noHedgeWithinTheDelay() throws Exception {
+        engine.setHedgeDelay(500);
+        RequestHedger.Attempt attempt = hedger.execute(acquire(URL), "bytes=0-");
+        assertEquals(URL, attempt.lease.mirror.url);
+        assertEquals(206, attempt.get().code());
+        assertEquals(0, engine.hedges.get());
+        assertEquals(0, transports.get(MIRROR).getRequestCount());
+    }
+
+    @Test
+    public void noHedgeForStoppedJob() throws Exception {
+        transports.get(URL).setLatency(300);
+        isStopped = true;
+        RequestHedger.Attempt attempt = hedger.execute(acquire(URL), "bytes=0-");
+        assertEquals(URL, attempt.lease.mirror.url);
+        assertEquals(0, engine.hedges.get());
+        assertEquals(0, transports.get(MIRROR).getRequestCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void failedRequestWithoutHedge() throws Exception {
+        engine.setHedgeDelay(0);
+        failing = URL;
+        RequestHedger.Attempt attempt = hedger.execute(acquire(URL), "bytes=0-");
+        assertTrue(attempt.lease.mirror.isPrimary);
+        attempt.get();
+    }
+
+    private MirrorSet.Lease acquire(String url) {
+        MirrorSet.Lease lease = mirrors.acquire();
+        assertEquals(url, lease.mirror.url);
+        return lease;
+    }
+
+    /**
+     * records the url of the response which is aborted
+     */
+    private class RecordingResponse extends TransportResponse {
+
+        private final String url;
+        private final TransportResponse response;
+
+        RecordingResponse(String url, TransportResponse response) {
+            this.url = url;
+            this.response = response;
+        }
+
+        @Override
+        public int code() {
+            return response.code();
+        }
+
+        @Override
+        public String header(String name) {
+            return response.header(name);
+        }
+
+        @Override
+        public String url() {
+            return response.url();
+        }
+
+        @Override
+        public InputStream body() throws IOException {
+            return response.body();
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+
+        @Override
+        public void abort() {
+            aborted.add(url);
+            response.abort();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void backoffGrowsUpToTheMax() {
+        RetryPolicy policy = new RetryPolicy.Builder().maxRetries(10).backoff(100, 1000, 2).jitter(0).build();
+        IOException error = new SocketTimeoutException();
+        assertEquals(100, policy.getDelay(0, error));
+        assertEquals(200, policy.getDelay(1, error));
+        assertEquals(800, policy.getDelay(3, error));
+        assertEquals(1000, policy.getDelay(4, error));
+        assertEquals(1000, policy.getDelay(9, error));
+        assertEquals(-1, policy.getDelay(10, error));
+    }
+
+    @Test
+    public void jitterTakesOffAtMostItsFraction() {
+        RetryPolicy policy = new RetryPolicy.Builder().backoff(1000, 1000, 1).jitter(0.5).build();
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(0, new EOFException());
+            assertTrue(String.valueOf(delay), delay >= 500 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void defaultRetryableErrors() {
+        RetryPolicy policy = RetryPolicy.DEFAULT;
+        assertTrue(policy.isRetryable(new ConnectException()));  // a SocketException
+        assertTrue(policy.isRetryable(new SocketTimeoutException()));
+        assertTrue(policy.isRetryable(new EOFException()));
+        assertTrue(policy.isRetryable(new HttpStatusException(503)));
+        assertFalse(policy.isRetryable(new HttpStatusException(404)));
+        assertFalse(policy.isRetryable(new FileNotFoundException()));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void customRetryableErrors() {
+        RetryPolicy policy = new RetryPolicy.Builder()
+                .retryableCodes(404)
+                .retryableErrors(Collections.<Class<? extends IOException>>singletonList(FileNotFoundException.class))
+                .build();
+        assertTrue(policy.isRetryable(new HttpStatusException(404)));
+        assertFalse(policy.isRetryable(new HttpStatusException(503)));
+        assertTrue(policy.isRetryable(new FileNotFoundException()));
+        assertFalse(policy.isRetryable(new SocketTimeoutException()));
+        assertEquals(Arrays.<Class<? extends IOException>>asList(FileNotFoundException.class), policy.retryableErrors);
+    }
+
+    @Test
+    public void noneNeverRetries() {
+        assertEquals(-1, RetryPolicy.NONE.getDelay(0, new SocketTimeoutException()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShrinkingBackoff() {
+        new RetryPolicy.Builder().backoff(1000, 100, 2).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsJitterOverOne() {
+        new RetryPolicy.Builder().jitter(1.5).build();
+    }
+}
@@ -0,0 +1,74 @@
+package com.androidev.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceLedgerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SpaceLedger ledger = new SpaceLedger();
+
+    @Test
+    public void reservationsShareTheFreeSpace() {
+        File directory = folder.getRoot();
+        long available = directory.getUsableSpace() - SpaceLedger.MIN_FREE_SPACE;
+        long length = available / 10 * 6;  // the usable space may change a little meanwhile
+        assertTrue(ledger.reserve(directory, length));
+        assertEquals(length, ledger.getReserved());
+        assertFalse(ledger.reserve(directory, length));
+        assertEquals(length, ledger.getReserved());
+        ledger.release(length);
+        assertEquals(0, ledger.getReserved());
+        assertTrue(ledger.reserve(directory, length));
+    }
+
+    @Test
+    public void minFreeSpaceIsLeft() {
+        File directory = folder.getRoot();
+        assertFalse(ledger.reserve(directory, directory.getUsableSpace()));
+        assertEquals(0, ledger.getReserved());
+    }
+
+    @Test
+    public void nothingToReserve() {
+        File directory = folder.getRoot();
+        assertTrue(ledger.reserve(directory, 0));
+        assertTrue(ledger.reserve(directory, -1));
+        assertEquals(0, ledger.getReserved());
+    }
+
+    @Test
+    public void releaseNeverGoesNegative() {
+        File directory = folder.getRoot();
+        assertTrue(ledger.reserve(directory, 100));
+        assertTrue(ledger.reserve(directory, 50));
+        assertEquals(150, ledger.getReserved());
+        ledger.release(100);
+        assertEquals(50, ledger.getReserved());
+        ledger.release(100);
+        assertEquals(0, ledger.getReserved());
+    }
+
+    @Test
+    public void allocateSizesTheFile() throws IOException {
+        File file = folder.newFile();
+        FileSink sink = new FileSink(file);
+        assertFalse(sink.allocate(0));  // unknown length
+        assertEquals(0, file.length());
+        assertFalse(sink.allocate(4096));  // sized by setLength, SDK_INT is 0 on the jvm
+        assertEquals(4096, file.length());
+        sink.allocate(1024);
+        assertEquals(4096, file.length());  // never truncates the written bytes
+        sink.close();
+    }
+}
@@ -0,0 +1,143 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamDigestTest {
+
+    private static final String[] ALGORITHMS = {StreamDigest.MD5, StreamDigest.SHA1, StreamDigest.SHA256};
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String TWO_BLOCKS = "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq";  // padded into a second block
+
+    @Test
+    public void knownAnswers() {
+        assertDigest(StreamDigest.MD5, "", "d41d8cd98f00b204e9800998ecf8427e");
+        assertDigest(StreamDigest.MD5, "abc", "900150983cd24fb0d6963f7d28e17f72");
+        assertDigest(StreamDigest.MD5, TWO_BLOCKS, "8215ef0796a20bcaaae116d3876c664a");
+        assertDigest(StreamDigest.SHA1, "", "da39a3ee5e6b4b0d3255bfef95601890afd80709");
+        assertDigest(StreamDigest.SHA1, "abc", "a9993e364706816aba3e25717850c26c9cd0d89d");
+        assertDigest(StreamDigest.SHA1, TWO_BLOCKS, "84983e441c3bd26ebaae4aa1f95129e5e54670f1");
+        assertDigest(StreamDigest.SHA256, "", "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+        assertDigest(StreamDigest.SHA256, "abc", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+        assertDigest(StreamDigest.SHA256, TWO_BLOCKS, "248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1");
+    }
+
+    @Test
+    public void sameAsMessageDigestInAnyChunks() throws Exception {
+        Random random = new Random(19);
+        for (String algorithm : ALGORITHMS) {
+            for (int length : new int[]{1, 55, 56, 63, 64, 65, 1000, 64 * 1024 + 3}) {
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                StreamDigest digest = StreamDigest.create(algorithm);
+                for (int offset = 0; offset < length; ) {
+                    int count = Math.min(length - offset, 1 + random.nextInt(200));
+                    digest.update(data, offset, count);
+                    offset += count;
+                }
+                assertEquals(algorithm + " of " + length, expected(algorithm, data), digest.digest());
+            }
+        }
+    }
+
+    @Test
+    public void byteBuffersOfAnyKind() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(20).nextBytes(data);
+        for (String algorithm : ALGORITHMS) {
+            StreamDigest heap = StreamDigest.create(algorithm);
+            StreamDigest direct = StreamDigest.create(algorithm);
+            ByteBuffer wrapped = ByteBuffer.wrap(data, 100, data.length - 100).slice();  // an array offset
+            ByteBuffer copy = ByteBuffer.allocateDirect(data.length - 100);
+            copy.put(wrapped.duplicate()).flip();
+            for (int position = 0; position < wrapped.capacity(); position += 3001) {
+                int limit = Math.min(wrapped.capacity(), position + 3001);
+                wrapped.limit(limit).position(position);
+                heap.update(wrapped);
+                assertEquals(position, wrapped.position());  // kept
+                copy.limit(limit).position(position);
+                direct.update(copy);
+                assertEquals(position, copy.position());
+            }
+            String expected = expected(algorithm, Arrays.copyOfRange(data, 100, data.length));
+            assertEquals(expected, heap.digest());
+            assertEquals(expected, direct.digest());
+        }
+    }
+
+    @Test
+    public void rangeOfADirectBuffer() throws Exception {
+        byte[] data = new byte[30000];
+        new Random(22).nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.position(5).limit(25000);
+        StreamDigest digest = StreamDigest.create(StreamDigest.SHA256);
+        digest.update(buffer, 100, 10000);
+        digest.update(buffer, 10100, 19900);  // over the limit of the buffer, from the index
+        assertEquals(5, buffer.position());
+        assertEquals(25000, buffer.limit());
+        assertEquals(expected(StreamDigest.SHA256, Arrays.copyOfRange(data, 100, data.length)), digest.digest());
+    }
+
+    @Test
+    public void restoredStateGoesOn() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(21).nextBytes(data);
+        for (String algorithm : ALGORITHMS) {
+            for (int split : new int[]{0, 1, 63, 64, 130, 999}) {
+                StreamDigest digest = StreamDigest.create(algorithm);
+                digest.update(data, 0, split);
+                StreamDigest restored = StreamDigest.restore(algorithm, digest.getState());
+                assertEquals(split, restored.getCount());
+                restored.update(data, split, data.length - split);
+                assertEquals(algorithm + " split at " + split, expected(algorithm, data), restored.digest());
+            }
+        }
+    }
+
+    @Test
+    public void malformedStateStartsOver() {
+        StreamDigest digest = StreamDigest.create(StreamDigest.SHA1);
+        digest.update(new byte[70], 0, 70);
+        String state = digest.getState();
+        assertEquals(0, StreamDigest.restore(StreamDigest.SHA1, null).getCount());
+        assertEquals(0, StreamDigest.restore(StreamDigest.SHA1, "garbage").getCount());
+        assertEquals(0, StreamDigest.restore(StreamDigest.SHA256, state).getCount());  // words of another algorithm
+        assertEquals(0, StreamDigest.restore(StreamDigest.SHA1, "71" + state.substring(2)).getCount());  // partial block of another count
+        assertEquals(0, StreamDigest.restore(StreamDigest.SHA1, state.replace(':', 'x')).getCount());
+    }
+
+    @Test
+    public void matchesInAnyCase() {
+        assertTrue(StreamDigest.matches("900150983cd24fb0d6963f7d28e17f72", " 900150983CD24FB0D6963F7D28E17F72\n"));
+        assertFalse(StreamDigest.matches("900150983cd24fb0d6963f7d28e17f72", null));
+        assertTrue(StreamDigest.isSupported("sha-256"));
+        assertFalse(StreamDigest.isSupported("SHA-512"));
+    }
+
+    private static void assertDigest(String algorithm, String text, String expected) {
+        byte[] bytes = text.getBytes(ASCII);
+        StreamDigest digest = StreamDigest.create(algorithm);
+        digest.update(bytes, 0, bytes.length);
+        assertEquals(algorithm + " of \"" + text + "\"", expected, digest.digest());
+    }
+
+    private static String expected(String algorithm, byte[] data) throws Exception {
+        byte[] hash = MessageDigest.getInstance(algorithm).digest(data);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.androidev.download;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void unlimitedNeverWaits() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(0);
+        assertEquals(0, bucket.reserve(1 << 30));
+        bucket.acquire(1 << 30);
+        assertEquals(Integer.MAX_VALUE, bucket.getChunkLimit());
+    }
+
+    @Test
+    public void chunkLimitIsATenthOfASecond() {
+        assertEquals(1024, new TokenBucket(5000).getChunkLimit());
+        assertEquals(10000, new TokenBucket(100000).getChunkLimit());
+    }
+
+    @Test
+    public void reserveReturnsTheDebt() {
+        TokenBucket bucket = new TokenBucket(1000);
+        long nanos = bucket.reserve(100);  // 100 ms of data, the bucket starts empty
+        assertTrue(String.valueOf(nanos), nanos > TimeUnit.MILLISECONDS.toNanos(90) && nanos <= TimeUnit.MILLISECONDS.toNanos(100) + 1);
+        assertTrue(bucket.reserve(100) > nanos);  // deeper in debt
+    }
+
+    @Test
+    public void acquireKeepsTheRate() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(100000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            bucket.acquire(2000);  // the first one goes at once, the others wait for 200 ms in all
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(String.valueOf(millis), millis >= 150 && millis < 2000);
+    }
+
+    @Test
+    public void newRateReachesTheWaiters() throws Exception {
+        final TokenBucket bucket = new TokenBucket(10);
+        bucket.acquire(1000);  // 100 seconds in debt
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bucket.acquire(1);
+                    done.countDown();
+                } catch (InterruptedIOException ignored) {
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        bucket.setRate(0);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void interruptedWaiterThrows() throws Exception {
+        final TokenBucket bucket = new TokenBucket(10);
+        bucket.acquire(1000);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bucket.acquire(1);
+                } catch (InterruptedIOException e) {
+                    error.set(e);
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join(1000);
+        assertTrue(error.get() instanceof InterruptedIOException);
+    }
+}
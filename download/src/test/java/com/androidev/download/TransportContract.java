@@ -0,0 +1,135 @@
+package com.androidev.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * what the jobs expect of every transport, checked against the local stand-ins of a server
+ */
+public abstract class TransportContract {
+
+    static final byte[] CONTENT = new byte[100];
+
+    static {
+        new Random(100).nextBytes(CONTENT);
+    }
+
+    Transport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        transport = open("/content", CONTENT);
+    }
+
+    @After
+    public void tearDown() {
+        transport.shutdown();
+        close();
+    }
+
+    /**
+     * @return the transport reaching the content by url(path)
+     */
+    abstract Transport open(String path, byte[] content) throws IOException;
+
+    abstract String url(String path);
+
+    abstract void close();
+
+    @Test
+    public void wholeContent() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/content")));
+        assertEquals(200, response.code());
+        assertEquals("100", response.header("Content-Length"));
+        assertEquals("bytes", response.header("accept-ranges"));
+        assertNotNull(response.header("ETag"));
+        assertArrayEquals(CONTENT, readFully(response));
+    }
+
+    @Test
+    public void closedRange() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/content")).header("Range", "bytes=10-19"));
+        assertEquals(206, response.code());
+        assertEquals("bytes 10-19/100", response.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(CONTENT, 10, 20), readFully(response));
+    }
+
+    @Test
+    public void openRange() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/content")).header("Range", "bytes=90-"));
+        assertEquals(206, response.code());
+        assertEquals("bytes 90-99/100", response.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(CONTENT, 90, 100), readFully(response));
+    }
+
+    @Test
+    public void rangeBeyondTheEnd() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/content")).header("Range", "bytes=100-"));
+        assertEquals(416, response.code());
+        assertEquals("bytes */100", response.header("Content-Range"));
+        response.close();
+    }
+
+    @Test
+    public void ifRangeOfTheSameContent() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/content")));
+        String eTag = response.header("ETag");
+        response.close();
+        response = execute(new TransportRequest.Builder(url("/content")).header("Range", "bytes=50-").header("If-Range", eTag));
+        assertEquals(206, response.code());
+        assertArrayEquals(Arrays.copyOfRange(CONTENT, 50, 100), readFully(response));
+    }
+
+    @Test
+    public void ifRangeOfAnotherContent() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/content"))
+                .header("Range", "bytes=50-").header("If-Range", "\"changed\""));
+        assertEquals(200, response.code());
+        assertArrayEquals(CONTENT, readFully(response));
+    }
+
+    @Test
+    public void headHasNoBody() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/content")).method("HEAD"));
+        assertEquals(200, response.code());
+        assertEquals("100", response.header("Content-Length"));
+        assertEquals(0, readFully(response).length);
+    }
+
+    @Test
+    public void missingContent() throws IOException {
+        TransportResponse response = execute(new TransportRequest.Builder(url("/missing")));
+        assertEquals(404, response.code());
+        response.close();
+    }
+
+    private TransportResponse execute(TransportRequest.Builder builder) throws IOException {
+        return transport.execute(builder.build());
+    }
+
+    static byte[] readFully(TransportResponse response) throws IOException {
+        try {
+            InputStream in = response.body();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.androidev.download;
+
+import java.util.Arrays;
+
+/**
+ * a content served by LocalHttpServer and LocalTransport, answers the range of a request the same way for both
+ */
+class LocalContent {
+
+    final byte[] bytes;
+    final String eTag;
+
+    LocalContent(byte[] bytes) {
+        this.bytes = bytes;
+        this.eTag = "\"" + Integer.toHexString(Arrays.hashCode(bytes)) + "-" + bytes.length + "\"";
+    }
+
+    /**
+     * @param range   Range header of the request, may be null
+     * @param ifRange If-Range header of the request, the whole content is sent if it is not the current ETag
+     */
+    Slice slice(String range, String ifRange) {
+        if (ifRange != null && !ifRange.equals(eTag)) range = null;  // changed, send the whole content
+        long start = 0;
+        long end = bytes.length - 1;
+        if (range == null || !range.startsWith("bytes=")) return new Slice(200, start, end);
+        String[] values = range.substring("bytes=".length()).split("-", -1);
+        try {
+            start = Long.parseLong(values[0].trim());
+            if (values.length > 1 && values[1].trim().length() > 0) {
+                end = Math.min(end, Long.parseLong(values[1].trim()));
+            }
+        } catch (NumberFormatException e) {
+            start = bytes.length;
+        }
+        if (start >= bytes.length || start > end) return new Slice(416, 0, -1);
+        return new Slice(206, start, end);
+    }
+
+    /**
+     * the part of the content a response sends
+     */
+    static class Slice {
+
+        final int code;  // 200, 206 or 416
+        final long start;
+        final long end;  // inclusive
+
+        Slice(int code, long start, long end) {
+            this.code = code;
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+    }
+}
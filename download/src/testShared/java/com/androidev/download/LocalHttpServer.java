@@ -0,0 +1,233 @@
+package com.androidev.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * in-process http server on the loopback for tests and benchmarks, serves the registered contents
+ * with range and keep-alive support, latency and throughput can be simulated
+ */
+class LocalHttpServer {
+
+    private final ServerSocket serverSocket;
+    private final Map<String, LocalContent> contents;
+    private final Map<String, String> redirects = new HashMap<>();  // guarded by contents
+    private volatile long latency;
+    private volatile long bytesPerSecond;
+    private int requestCount;
+
+    LocalHttpServer() throws IOException {
+        contents = new HashMap<>();
+        serverSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "local-http-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return url of the path on this server
+     */
+    String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    void put(String path, byte[] content) {
+        synchronized (contents) {
+            contents.put(path, new LocalContent(content));
+        }
+    }
+
+    void remove(String path) {
+        synchronized (contents) {
+            contents.remove(path);
+            redirects.remove(path);
+        }
+    }
+
+    /**
+     * answer the path with a 302 to the location, the response has a short body as some servers send
+     */
+    void redirect(String path, String location) {
+        synchronized (contents) {
+            redirects.put(path, location);
+        }
+    }
+
+    /**
+     * @param latency milliseconds before every response
+     */
+    void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param bytesPerSecond throughput of every response body, 0 means unlimited
+     */
+    void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException ignored) {
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }, "local-http-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        String requestLine;
+        while ((requestLine = readLine(in)) != null && requestLine.length() > 0) {
+            String[] parts = requestLine.split(" ");
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int index = line.indexOf(':');
+                if (index > 0) headers.put(line.substring(0, index).trim().toLowerCase(Locale.US), line.substring(index + 1).trim());
+            }
+            if (line == null || parts.length < 3) return;
+            synchronized (this) {
+                requestCount++;
+            }
+            sleep(latency);
+            boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection")) && !"HTTP/1.0".equals(parts[2]);
+            respond(out, parts[0], parts[1], headers.get("range"), headers.get("if-range"), keepAlive);
+            out.flush();
+            if (!keepAlive) return;
+        }
+    }
+
+    private void respond(OutputStream out, String method, String path, String range, String ifRange, boolean keepAlive) throws IOException {
+        LocalContent content;
+        String location;
+        synchronized (contents) {
+            content = contents.get(path);
+            location = redirects.get(path);
+        }
+        StringBuilder sb = new StringBuilder();
+        if (location != null) {
+            byte[] body = "moved".getBytes("ISO-8859-1");
+            sb.append("HTTP/1.1 302 Found\r\nLocation: ").append(location).append("\r\nContent-Length: ").append(body.length).append("\r\n");
+            writeHead(out, sb, keepAlive);
+            if (!"HEAD".equals(method)) out.write(body);
+            return;
+        }
+        if (content == null) {
+            sb.append("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n");
+            writeHead(out, sb, keepAlive);
+            return;
+        }
+        LocalContent.Slice slice = content.slice(range, ifRange);
+        if (slice.code == 416) {
+            sb.append("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */").append(content.bytes.length)
+                    .append("\r\nContent-Length: 0\r\n");
+            writeHead(out, sb, keepAlive);
+            return;
+        }
+        long start = slice.start;
+        long end = slice.end;
+        sb.append(slice.code == 206 ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("ETag: ").append(content.eTag).append("\r\n");
+        if (slice.code == 206) {
+            sb.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(content.bytes.length).append("\r\n");
+        }
+        sb.append("Content-Length: ").append(slice.length()).append("\r\n");
+        writeHead(out, sb, keepAlive);
+        if ("HEAD".equals(method)) return;
+        for (long position = start; position <= end; ) {
+            int count = (int) Math.min(end - position + 1, 16 * 1024);
+            long speed = bytesPerSecond;
+            if (speed > 0) {
+                count = (int) Math.max(1, Math.min(count, speed / 100));  // 10 ms of data at most
+                out.flush();
+                long nanos = count * 1000000000L / speed;
+                try {
+                    Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            out.write(content.bytes, (int) position, count);
+            position += count;
+        }
+    }
+
+    private static void writeHead(OutputStream out, StringBuilder sb, boolean keepAlive) throws IOException {
+        sb.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @return the line without CRLF, null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') sb.setLength(length - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+}
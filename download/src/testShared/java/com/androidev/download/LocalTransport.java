@@ -0,0 +1,169 @@
+package com.androidev.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * in-process stand-in of a server for tests, serves the registered contents with range and If-Range support
+ * like LocalHttpServer, latency and throughput can be simulated
+ */
+class LocalTransport implements Transport {
+
+    private final Map<String, LocalContent> contents;
+    private volatile long latency;
+    private volatile long bytesPerSecond;
+    private int requestCount;
+
+    LocalTransport() {
+        contents = new HashMap<>();
+    }
+
+    void put(String url, byte[] content) {
+        synchronized (contents) {
+            contents.put(url, new LocalContent(content));
+        }
+    }
+
+    void remove(String url) {
+        synchronized (contents) {
+            contents.remove(url);
+        }
+    }
+
+    /**
+     * @param latency milliseconds before every response
+     */
+    void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param bytesPerSecond throughput of every response body, 0 means unlimited
+     */
+    void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        synchronized (this) {
+            requestCount++;
+        }
+        sleep(latency);
+        LocalContent content;
+        synchronized (contents) {
+            content = contents.get(request.url);
+        }
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (content == null) {
+            headers.put("Content-Length", "0");
+            return new Response(request.url, 404, headers, new byte[0], 0, 0);
+        }
+        LocalContent.Slice slice = content.slice(request.header("Range"), request.header("If-Range"));
+        if (slice.code == 416) {
+            headers.put("Content-Range", "bytes */" + content.bytes.length);
+            headers.put("Content-Length", "0");
+            return new Response(request.url, 416, headers, content.bytes, 0, 0);
+        }
+        headers.put("Accept-Ranges", "bytes");
+        headers.put("ETag", content.eTag);
+        if (slice.code == 206) {
+            headers.put("Content-Range", "bytes " + slice.start + "-" + slice.end + "/" + content.bytes.length);
+        }
+        long length = slice.length();
+        headers.put("Content-Length", String.valueOf(length));
+        if ("HEAD".equals(request.method)) length = 0;
+        return new Response(request.url, slice.code, headers, content.bytes, (int) slice.start, (int) length);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class Response extends TransportResponse {
+
+        private final String url;
+        private final int code;
+        private final Map<String, String> headers;
+        private final InputStream body;
+
+        Response(String url, int code, Map<String, String> headers, byte[] content, int offset, int length) {
+            this.url = url;
+            this.code = code;
+            this.headers = headers;
+            this.body = new ThrottledInputStream(content, offset, length);
+        }
+
+        @Override
+        public int code() {
+            return code;
+        }
+
+        @Override
+        public String header(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public String url() {
+            return url;
+        }
+
+        @Override
+        public InputStream body() {
+            return body;
+        }
+
+        @Override
+        public ReadableByteChannel channel() {
+            return Channels.newChannel(body);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class ThrottledInputStream extends ByteArrayInputStream {
+
+        ThrottledInputStream(byte[] content, int offset, int length) {
+            super(content, offset, length);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            long speed = bytesPerSecond;
+            if (speed > 0) {
+                length = (int) Math.max(1, Math.min(length, speed / 100));  // 10 ms of data at most
+                long nanos = length * 1000000000L / speed;
+                try {
+                    Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            return super.read(buffer, offset, length);
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
+import static com.androidev.download.DownloadState.STATE_CORRUPTED;
 import static com.androidev.download.DownloadState.STATE_FAILED;
 import static com.androidev.download.DownloadState.STATE_FINISHED;
 import static com.androidev.download.DownloadState.STATE_PAUSED;
@@ -169,6 +170,7 @@ public class MainActivity extends AppCompatActivity {
             final DownloadTask task = tasks.get(position);
             switch (state) {
                 case STATE_FAILED:
+                case STATE_CORRUPTED:
                 case STATE_PREPARED:
                     task.start();
                     break;
@@ -188,6 +190,7 @@ public class MainActivity extends AppCompatActivity {
             this.state = state;
             switch (state) {
                 case STATE_FAILED:
+                case STATE_CORRUPTED:
                     download.setText(R.string.download_retry);
                     break;
                 case STATE_PREPARED:
@@ -25,6 +25,7 @@ import com.androidev.download.sample.util.FileManager;
 import java.util.List;
 import java.util.Locale;
 
+import static com.androidev.download.DownloadState.STATE_CORRUPTED;
 import static com.androidev.download.DownloadState.STATE_FAILED;
 import static com.androidev.download.DownloadState.STATE_FINISHED;
 import static com.androidev.download.DownloadState.STATE_PAUSED;
@@ -257,6 +258,7 @@ public class DownloadingFragment extends Fragment implements View.OnClickListene
                 switch (state) {
                     case STATE_PREPARED:
                     case STATE_FAILED:
+                    case STATE_CORRUPTED:
                         task.start();
                         break;
                     case STATE_PAUSED:
@@ -299,6 +301,7 @@ public class DownloadingFragment extends Fragment implements View.OnClickListene
                     status.setText(R.string.label_download);
                     break;
                 case STATE_FAILED:
+                case STATE_CORRUPTED:
                     status.setText(R.string.download_retry);
                     break;
                 case STATE_PAUSED: